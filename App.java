@@ -1,115 +1,176 @@
-import java.io.*;
-import java.util.*;
-import java.util.concurrent.TimeUnit;
-import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
-import javax.imageio.ImageIO;
-
-public class App {/*  */
-    public static void main(String[] args) throws IOException, ClassNotFoundException{
-
-        //Create an instance of Utility
-        Utility Utility = new Utility();
-
-        //Define original file directory to loop through
-        String ImageDirectory = "Original/";
-
-        // List all files in the directory
-        File directory = new File(ImageDirectory);
-        File[] files = directory.listFiles();
-
-        if (files != null) {
-            for (File file : files) {
-                if (file.isFile()) {
-                    String imageName = file.getName();
-
-                    //Converting image to pixels
-
-                    ImagetoPixelConverter ImagetoPixelConverter = new ImagetoPixelConverter(ImageDirectory + imageName);
-
-                    //Converting the image to pixels
-
-                    int[][][] pixelData = ImagetoPixelConverter.getPixelData();
-                    int width = ImagetoPixelConverter.getWidth();
-                    int height = ImagetoPixelConverter.getHeight();
-
-                    for (int x = 0; x < width; x++) {
-                        for (int y = 0; y < height; y++) {
-                            int red = pixelData[x][y][0];
-                            int green = pixelData[x][y][1];
-                            int blue = pixelData[x][y][2];
-                        }
-                    }
-
-                    // Now you have the image data in 'pixelData' that will be taken in by Compress
-
-                    // Define location and name for the compressed file to be created
-                    String compressed_file_name = "Compressed/" + imageName.substring(0, imageName.lastIndexOf('.')) + ".bin";
-
-                    // start compress timer
-                    long compressStartTime = System.currentTimeMillis();
-                    
-                    //call compress function
-                    Utility.Compress(pixelData, compressed_file_name);
-                    
-                    //end timer for compress and record the total time passed
-                    long compressEndTime = System.currentTimeMillis();
-                    long compressExecutionTime = compressEndTime - compressStartTime;
-                    System.out.println("Compress Execution Time for "+ imageName + " : " + compressExecutionTime + " milliseconds");
-
-                    //Check the original file size
-                    File originalFile = new File(ImageDirectory + imageName);
-                    long originalFileSize = originalFile.length();
-                    System.out.println("Size of the original file for " + imageName + ": " + originalFileSize + " bytes"); 
-                    
-                    // Check size of the compressed file
-                    File compressedFile = new File(compressed_file_name);
-                    long compressedFileSize = compressedFile.length();
-                    System.out.println("Size of the compressed file for " + imageName + ": " + compressedFileSize + " bytes"); 
-                    
-                    //Find the Difference
-                    long differenceInFileSize = originalFileSize - compressedFileSize;
-                    System.out.println("Bytes saved from compression of " + imageName + ": " + differenceInFileSize + " bytes"); 
-
-                    // start decompress timer
-                    long decompressStartTime = System.currentTimeMillis();
-
-                    // call decompress function
-                    int [][][] newPixelData = Utility.Decompress(compressed_file_name);
-                    
-                    //end timer for decompress and record the total time passed
-                    long decompressEndTime = System.currentTimeMillis();
-                    long decompressExecutionTime = decompressEndTime - decompressStartTime;
-                    System.out.println("Decompress Execution Time for " + imageName + " : " + decompressExecutionTime + " milliseconds");
-                    
-
-                    //convert back to image for visualisation
-                    PixeltoImageConverter PixeltoImageConverter = new PixeltoImageConverter(newPixelData);
-                    PixeltoImageConverter.saveImage("Decompressed/" + imageName, "png");
-
-                    //Get the two bufferedimages for calculations
-                    BufferedImage originalimage = ImageIO.read(new File(ImageDirectory + imageName));
-                    BufferedImage decompressedimage = ImageIO.read(new File("Decompressed/" + imageName)); 
-
-                    //calculate MAE
-                    double MAE = MAECalculator.calculateMAE(originalimage, decompressedimage);
-                    System.out.println("Mean Absolute Error of :" + imageName + " is " + MAE) ;
-
-                    //calculate MSE
-                    double MSE = MSECalculator.calculateMSE(originalimage, decompressedimage);
-                    System.out.println("Mean Squared Error of :" + imageName + " is " + MSE) ;                  
-
-                    //calculate PSNR
-                    double PSNR = PSNRCalculator.calculatePSNR(originalimage, decompressedimage);
-                    System.out.println("PSNR of :" + imageName + " is " + PSNR);   
-
-                }
-            }
-        }
-
-    }
-}
-
-
-        
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+
+public class App {/*  */
+    public static void main(String[] args) throws IOException {
+
+        // Batch mode: java App --batch [--workers N] [--heap-budget MB] [--corpus COLORS]
+        if (args.length > 0 && args[0].equals("--batch")) {
+            int workers = Runtime.getRuntime().availableProcessors();
+            long heapBudget = Runtime.getRuntime().maxMemory() / 2;
+            int corpusColors = 0;
+            if (args.length % 2 == 0) {
+                throw new IllegalArgumentException(
+                        "Usage: java App --batch [--workers N] [--heap-budget MB] [--corpus COLORS]");
+            }
+            for (int i = 1; i < args.length - 1; i += 2) {
+                if (args[i].equals("--workers")) {
+                    workers = Integer.parseInt(args[i + 1]);
+                } else if (args[i].equals("--heap-budget")) {
+                    heapBudget = Long.parseLong(args[i + 1]) << 20;
+                } else if (args[i].equals("--corpus")) {
+                    corpusColors = Integer.parseInt(args[i + 1]);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            try {
+                new BatchCompressor(workers, heapBudget, corpusColors).run("Original/", "Compressed/", "Decompressed/");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
+        // Streaming mode for images larger than the heap: java App --stream <image> [--band-rows N]
+        // --band-rows is the number of block rows held at once. 8-bit RGB(A) and palette PNGs are
+        // decoded once whatever it is; other images are decoded again up to each band, so their
+        // read time grows with (rows / band rows) and they want bands as large as the heap allows.
+        if (args.length > 0 && args[0].equals("--stream")) {
+            int bandRows = 512;
+            if (args.length < 2 || args.length % 2 != 0) {
+                throw new IllegalArgumentException("Usage: java App --stream <image> [--band-rows N]");
+            }
+            for (int i = 2; i < args.length - 1; i += 2) {
+                if (args[i].equals("--band-rows")) {
+                    bandRows = Integer.parseInt(args[i + 1]);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            String imageName = new File(args[1]).getName();
+            String baseName = imageName.contains(".") ? imageName.substring(0, imageName.lastIndexOf('.')) : imageName;
+            String compressedFileName = "Compressed/" + baseName + ".bin";
+            StreamingCompressor streamingCompressor = new StreamingCompressor(2, bandRows);
+
+            long start = System.currentTimeMillis();
+            streamingCompressor.compress(args[1], compressedFileName);
+            System.out.println("Compress Execution Time for " + imageName + " : "
+                    + (System.currentTimeMillis() - start) + " milliseconds");
+            System.out.println("Size of the compressed file for " + imageName + ": "
+                    + new File(compressedFileName).length() + " bytes");
+
+            start = System.currentTimeMillis();
+            streamingCompressor.decompress(compressedFileName, "Decompressed/" + baseName + ".png", "png");
+            System.out.println("Decompress Execution Time for " + imageName + " : "
+                    + (System.currentTimeMillis() - start) + " milliseconds");
+            return;
+        }
+
+        //Create an instance of Utility
+        Utility Utility = new Utility();
+
+        //Define original file directory to loop through
+        String ImageDirectory = "Original/";
+
+        // List all files in the directory
+        File directory = new File(ImageDirectory);
+        File[] files = directory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile()) {
+                    String imageName = file.getName();
+
+                    //Converting image to pixels
+
+                    ImagetoPixelConverter ImagetoPixelConverter = new ImagetoPixelConverter(ImageDirectory + imageName);
+
+                    //Converting the image to pixels
+
+                    PixelBuffer pixelData = ImagetoPixelConverter.getPixelBuffer();
+
+                    // Now you have the image data in 'pixelData' that will be taken in by Compress
+
+                    // Define location and name for the compressed file to be created
+                    String compressed_file_name = "Compressed/" + imageName.substring(0, imageName.lastIndexOf('.')) + ".bin";
+
+                    // start compress timer
+                    long compressStartTime = System.currentTimeMillis();
+                    
+                    //call compress function
+                    Utility.Compress(pixelData, compressed_file_name);
+                    
+                    //end timer for compress and record the total time passed
+                    long compressEndTime = System.currentTimeMillis();
+                    long compressExecutionTime = compressEndTime - compressStartTime;
+                    System.out.println("Compress Execution Time for "+ imageName + " : " + compressExecutionTime + " milliseconds");
+
+                    //Check the original file size
+                    File originalFile = new File(ImageDirectory + imageName);
+                    long originalFileSize = originalFile.length();
+                    System.out.println("Size of the original file for " + imageName + ": " + originalFileSize + " bytes"); 
+                    
+                    // Check size of the compressed file
+                    File compressedFile = new File(compressed_file_name);
+                    long compressedFileSize = compressedFile.length();
+                    System.out.println("Size of the compressed file for " + imageName + ": " + compressedFileSize + " bytes"); 
+                    
+                    //Find the Difference
+                    long differenceInFileSize = originalFileSize - compressedFileSize;
+                    System.out.println("Bytes saved from compression of " + imageName + ": " + differenceInFileSize + " bytes"); 
+
+                    // start decompress timer
+                    long decompressStartTime = System.currentTimeMillis();
+
+                    // call decompress function
+                    PixelBuffer newPixelData = Utility.DecompressToBuffer(compressed_file_name);
+                    
+                    //end timer for decompress and record the total time passed
+                    long decompressEndTime = System.currentTimeMillis();
+                    long decompressExecutionTime = decompressEndTime - decompressStartTime;
+                    System.out.println("Decompress Execution Time for " + imageName + " : " + decompressExecutionTime + " milliseconds");
+                    
+
+                    //convert back to image for visualisation
+                    PixeltoImageConverter PixeltoImageConverter = new PixeltoImageConverter(newPixelData);
+                    PixeltoImageConverter.saveImage("Decompressed/" + imageName, "png");
+
+                    //Compare the in-memory pixels; the saved png is lossless so it holds the same values
+                    PixelBuffer originalimage = pixelData;
+                    PixelBuffer decompressedimage = newPixelData;
+
+                    //calculate MAE, MSE and PSNR in one pass over both images
+                    QualityReport qualityReport = QualityMetrics.compare(originalimage, decompressedimage);
+                    double MAE = qualityReport.getMAE();
+                    System.out.println("Mean Absolute Error of :" + imageName + " is " + MAE) ;
+
+                    double MSE = qualityReport.getMSE();
+                    System.out.println("Mean Squared Error of :" + imageName + " is " + MSE) ;                  
+
+                    double PSNR = qualityReport.getPSNR();
+                    System.out.println("PSNR of :" + imageName + " is " + PSNR);   
+                    System.out.printf("Per channel PSNR of :%s is red %.2f, green %.2f, blue %.2f%n", imageName,
+                            qualityReport.getChannelPSNR(QualityReport.RED),
+                            qualityReport.getChannelPSNR(QualityReport.GREEN),
+                            qualityReport.getChannelPSNR(QualityReport.BLUE));
+
+                    //calculate the structural similarity
+                    double SSIM = SSIMCalculator.calculateSSIM(originalimage, decompressedimage);
+                    double MSSSIM = SSIMCalculator.calculateMSSSIM(originalimage, decompressedimage);
+                    System.out.println("SSIM of :" + imageName + " is " + SSIM + ", MS-SSIM is " + MSSSIM);
+
+                }
+            }
+        }
+
+    }
+}
+
+
+        
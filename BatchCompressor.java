@@ -0,0 +1,267 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Compresses, decompresses and scores every image of a directory on a pool of
+ * worker threads. Images are only admitted while their estimated pixel memory
+ * fits in the heap budget, and a failing image is reported without stopping
+ * the rest of the batch.
+ *
+ * By default every image is compressed with Utility. In corpus mode a
+ * PaletteDictionary is first built from a sample of every image and saved
+ * once, and every image is then compressed with UtilityColorQuantization
+ * against it.
+ */
+public class BatchCompressor {
+    // rough peak heap per pixel while one image is in flight: the decoded
+    // BufferedImage, the original and decompressed PixelBuffers, the averaged
+    // buffer and the TYPE_INT_RGB image written back to disk
+    static final int BYTES_PER_PIXEL = 20;
+
+    // pixels sampled from the whole batch to build a corpus dictionary
+    static final int CORPUS_SAMPLES = 1 << 20;
+
+    private final int workers;
+    private final long heapBudget;
+    // colors of the corpus dictionary, or 0 to compress each image with Utility
+    private final int corpusColors;
+
+    public BatchCompressor(int workers, long heapBudget) {
+        this(workers, heapBudget, 0);
+    }
+
+    /**
+     * @param workers      images compressed at once, at least 1
+     * @param heapBudget   bytes of heap the images in flight may take, at
+     *                     least 1
+     * @param corpusColors colors of the dictionary shared by the batch, up to
+     *                     256, or 0 to compress each image on its own with
+     *                     Utility
+     */
+    public BatchCompressor(int workers, long heapBudget, int corpusColors) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Workers must be at least 1, got " + workers);
+        }
+        if (heapBudget < 1) {
+            throw new IllegalArgumentException("Heap budget must be at least 1 byte, got " + heapBudget);
+        }
+        if (corpusColors < 0 || corpusColors > 256) {
+            throw new IllegalArgumentException("Corpus colors must be between 0 and 256");
+        }
+        this.workers = workers;
+        this.heapBudget = heapBudget;
+        this.corpusColors = corpusColors;
+    }
+
+    static class ImageResult {
+        String imageName;
+        long originalSize;
+        long compressedSize;
+        long compressNanos;
+        long decompressNanos;
+        double mae;
+        double mse;
+        double psnr;
+        Exception failure;
+    }
+
+    public List<ImageResult> run(String imageDirectory, String compressedDirectory, String decompressedDirectory)
+            throws IOException, InterruptedException {
+        File[] files = new File(imageDirectory).listFiles(File::isFile);
+        if (files == null) {
+            files = new File[0];
+        }
+        Arrays.sort(files);
+        PaletteDictionary dictionary = corpusColors > 0 && files.length > 0 ? buildDictionary(files) : null;
+
+        // permits are counted in KB so a large budget still fits in an int
+        int budgetKb = (int) Math.min(Integer.MAX_VALUE, Math.max(1, heapBudget >> 10));
+        Semaphore admission = new Semaphore(budgetKb);
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        List<ImageResult> results = new ArrayList<>();
+        long batchNanos;
+        try {
+            List<Future<ImageResult>> futures = new ArrayList<>();
+
+            long batchStart = System.nanoTime();
+            for (File file : files) {
+                // an image bigger than the whole budget still runs, but on its own
+                int permits = (int) Math.min(budgetKb, Math.max(1, estimateHeap(file) >> 10));
+                admission.acquire(permits);
+                futures.add(pool.submit(() -> {
+                    try {
+                        return processImage(file, compressedDirectory, decompressedDirectory, dictionary);
+                    } finally {
+                        admission.release(permits);
+                    }
+                }));
+            }
+
+            for (Future<ImageResult> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    // processImage catches its own failures, this is only a safety net
+                    ImageResult result = new ImageResult();
+                    result.imageName = "?";
+                    result.failure = e;
+                    results.add(result);
+                }
+            }
+            batchNanos = System.nanoTime() - batchStart;
+        } finally {
+            // an interrupted acquire or get must not leave the workers running
+            pool.shutdown();
+        }
+
+        printSummary(results, batchNanos);
+        return results;
+    }
+
+    /**
+     * Build the corpus dictionary from an equal share of CORPUS_SAMPLES from
+     * every readable image, one image in memory at a time, and save it where
+     * decoders look it up.
+     */
+    PaletteDictionary buildDictionary(File[] files) throws IOException {
+        UtilityColorQuantization.Sampling sampling = UtilityColorQuantization.Sampling.budget(
+                Math.max(1, CORPUS_SAMPLES / files.length));
+        List<PixelBuffer> samples = new ArrayList<>();
+        for (File file : files) {
+            try {
+                int[] sample = sampling.sample(PixelBuffer.fromImage(readImage(file)));
+                samples.add(new PixelBuffer(sample.length, 1, sample));
+            } catch (IOException e) {
+                // unreadable images fail later in processImage, where they are reported
+            }
+        }
+        if (samples.isEmpty()) {
+            throw new IOException("No readable images to build a dictionary from");
+        }
+        PaletteDictionary dictionary = PaletteDictionary.build(samples, corpusColors,
+                UtilityColorQuantization.Sampling.FULL);
+        String fileName = dictionary.save();
+        System.out.println("Dictionary " + fileName + ": " + dictionary.getColormap().length + " colors from "
+                + samples.size() + " images");
+        return dictionary;
+    }
+
+    ImageResult processImage(File file, String compressedDirectory, String decompressedDirectory,
+            PaletteDictionary dictionary) {
+        ImageResult result = new ImageResult();
+        String imageName = file.getName();
+        result.imageName = imageName;
+        try {
+            String baseName = imageName.contains(".") ? imageName.substring(0, imageName.lastIndexOf('.')) : imageName;
+            String compressedFileName = compressedDirectory + baseName + ".bin";
+
+            PixelBuffer pixelData = PixelBuffer.fromImage(readImage(file));
+
+            long start = System.nanoTime();
+            if (dictionary != null) {
+                new UtilityColorQuantization(dictionary).Compress(pixelData, compressedFileName);
+            } else {
+                new Utility().Compress(pixelData, compressedFileName);
+            }
+            result.compressNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            PixelBuffer newPixelData = dictionary != null
+                    ? new UtilityColorQuantization(dictionary).DecompressToBuffer(compressedFileName)
+                    : new Utility().DecompressToBuffer(compressedFileName);
+            result.decompressNanos = System.nanoTime() - start;
+
+            new PixeltoImageConverter(newPixelData).saveImage(decompressedDirectory + baseName + ".png", "png");
+
+            result.originalSize = file.length();
+            result.compressedSize = new File(compressedFileName).length();
+            QualityReport qualityReport = QualityMetrics.compare(pixelData, newPixelData);
+            result.mae = qualityReport.getMAE();
+            result.mse = qualityReport.getMSE();
+            result.psnr = qualityReport.getPSNR();
+
+            System.out.printf("%s: %d -> %d bytes, compress %.1f ms, decompress %.1f ms, PSNR %.2f%n", imageName,
+                    result.originalSize, result.compressedSize, result.compressNanos / 1e6,
+                    result.decompressNanos / 1e6, result.psnr);
+        } catch (Exception | OutOfMemoryError e) {
+            result.failure = e instanceof Exception ? (Exception) e : new RuntimeException(e);
+            System.out.println(imageName + ": FAILED - " + e);
+        }
+        return result;
+    }
+
+    private static BufferedImage readImage(File file) throws IOException {
+        BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            throw new IOException("Not a readable image");
+        }
+        return image;
+    }
+
+    /**
+     * Estimate the peak heap needed for an image from its header alone,
+     * without decoding the pixels.
+     */
+    static long estimateHeap(File file) {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            if (input != null) {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+                if (readers.hasNext()) {
+                    ImageReader reader = readers.next();
+                    try {
+                        reader.setInput(input);
+                        return (long) reader.getWidth(0) * reader.getHeight(0) * BYTES_PER_PIXEL;
+                    } finally {
+                        reader.dispose();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // unreadable headers fail later in processImage, where they are reported
+        }
+        return 1;
+    }
+
+    static void printSummary(List<ImageResult> results, long batchNanos) {
+        List<Long> compressTimes = new ArrayList<>();
+        List<Long> decompressTimes = new ArrayList<>();
+        long bytesSaved = 0;
+        int failures = 0;
+        for (ImageResult result : results) {
+            if (result.failure != null) {
+                failures++;
+                continue;
+            }
+            bytesSaved += result.originalSize - result.compressedSize;
+            compressTimes.add(result.compressNanos);
+            decompressTimes.add(result.decompressNanos);
+        }
+        Collections.sort(compressTimes);
+        Collections.sort(decompressTimes);
+
+        int succeeded = results.size() - failures;
+        System.out.println("---- Batch summary ----");
+        System.out.println("Images: " + succeeded + " succeeded, " + failures + " failed");
+        System.out.println("Total bytes saved: " + bytesSaved + " bytes");
+        System.out.printf("Throughput: %.2f images/sec%n", succeeded / (batchNanos / 1e9));
+        System.out.printf("Compress latency   p50 %.1f ms, p95 %.1f ms, p99 %.1f ms%n",
+                percentile(compressTimes, 50), percentile(compressTimes, 95), percentile(compressTimes, 99));
+        System.out.printf("Decompress latency p50 %.1f ms, p95 %.1f ms, p99 %.1f ms%n",
+                percentile(decompressTimes, 50), percentile(decompressTimes, 95), percentile(decompressTimes, 99));
+    }
+
+    // nearest-rank percentile of sorted nanosecond timings, in milliseconds
+    static double percentile(List<Long> sortedNanos, int percent) {
+        if (sortedNanos.isEmpty()) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percent / 100.0 * sortedNanos.size());
+        return sortedNanos.get(Math.max(0, rank - 1)) / 1e6;
+    }
+}
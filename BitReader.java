@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+public class BitReader {
+    private final byte[] data;
+    // read instead of data when set, e.g. a memory-mapped payload
+    private final ByteBuffer buffer;
+    private int limit;
+    private int position;
+
+    // source of further bytes once data is used up, null when reading an array
+    private InputStream input;
+
+    // unread bits, left-aligned so the next bit is always bit 63
+    private long bitBuffer;
+    private int bitCount;
+
+    public BitReader(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    /**
+     * Read only the 'length' bytes of data starting at 'offset'.
+     */
+    public BitReader(byte[] data, int offset, int length) {
+        this.data = data;
+        this.buffer = null;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    /**
+     * Read buffer from its position to its limit, without copying it and
+     * without moving its position.
+     */
+    public BitReader(ByteBuffer buffer) {
+        this(buffer, buffer.position(), buffer.remaining());
+    }
+
+    /**
+     * Read only the 'length' bytes of buffer starting at index 'offset'.
+     */
+    public BitReader(ByteBuffer buffer, int offset, int length) {
+        this.data = null;
+        this.buffer = buffer;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    /**
+     * Read from a stream through a buffer of 'bufferSize' bytes. An I/O error
+     * while refilling is rethrown as an UncheckedIOException.
+     */
+    public BitReader(InputStream input, int bufferSize) {
+        this.data = new byte[bufferSize];
+        this.buffer = null;
+        this.input = input;
+    }
+
+    /**
+     * Return the next 'length' bits (1 to 32) without consuming them. Reading
+     * past the end of the data yields zero bits.
+     */
+    public int peekBits(int length) {
+        if (bitCount < length) {
+            refill();
+        }
+        return (int) (bitBuffer >>> (64 - length));
+    }
+
+    public void skipBits(int length) {
+        bitBuffer <<= length;
+        bitCount -= length;
+    }
+
+    public int readBits(int length) {
+        int bits = peekBits(length);
+        skipBits(length);
+        return bits;
+    }
+
+    private void refill() {
+        if (buffer != null) {
+            if (limit - position >= 8) {
+                // take as many whole bytes of the next 8 as fit; the bits below them stay 0
+                int bytes = (64 - bitCount) >> 3;
+                bitBuffer |= (buffer.getLong(position) >>> bitCount) & (-1L << (64 - bitCount - 8 * bytes));
+                position += bytes;
+                bitCount += 8 * bytes;
+                return;
+            }
+            while (bitCount <= 56) {
+                int nextByte = position < limit ? buffer.get(position++) & 0xFF : 0;
+                bitBuffer |= (long) nextByte << (56 - bitCount);
+                bitCount += 8;
+            }
+            return;
+        }
+        while (bitCount <= 56) {
+            if (position == limit && input != null) {
+                fillBuffer();
+            }
+            int nextByte = position < limit ? data[position++] & 0xFF : 0;
+            bitBuffer |= (long) nextByte << (56 - bitCount);
+            bitCount += 8;
+        }
+    }
+
+    private void fillBuffer() {
+        try {
+            int count = input.read(data, 0, data.length);
+            if (count < 0) {
+                input = null;
+            }
+            position = 0;
+            limit = Math.max(count, 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
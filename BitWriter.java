@@ -0,0 +1,72 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+public class BitWriter {
+    private byte[] buffer;
+    private int position;
+
+    // pending bits, right-aligned; never holds more than 63 bits
+    private long bitBuffer;
+    private int bitCount;
+
+    public BitWriter(int initialCapacity) {
+        this.buffer = new byte[Math.max(initialCapacity, 16)];
+    }
+
+    /**
+     * Append the lowest 'length' bits of 'code', most significant bit first.
+     * Codes of up to 32 bits are supported.
+     */
+    public void writeBits(int code, int length) {
+        bitBuffer = (bitBuffer << length) | (code & ((1L << length) - 1));
+        bitCount += length;
+
+        // flush four whole bytes at a time once the register is half full
+        if (bitCount >= 32) {
+            ensureCapacity(4);
+            bitCount -= 32;
+            int word = (int) (bitBuffer >>> bitCount);
+            buffer[position] = (byte) (word >>> 24);
+            buffer[position + 1] = (byte) (word >>> 16);
+            buffer[position + 2] = (byte) (word >>> 8);
+            buffer[position + 3] = (byte) word;
+            position += 4;
+        }
+    }
+
+    /**
+     * Flush the remaining bits and return the packed data. A trailing partial
+     * byte is padded with zero bits on the right so BitReader sees the last
+     * code in the same most-significant-bit-first order as the rest.
+     */
+    public byte[] toByteArray() {
+        ensureCapacity(4);
+        while (bitCount >= 8) {
+            bitCount -= 8;
+            buffer[position++] = (byte) (bitBuffer >>> bitCount);
+        }
+        if (bitCount > 0) {
+            buffer[position++] = (byte) (bitBuffer << (8 - bitCount));
+            bitCount = 0;
+        }
+        bitBuffer = 0;
+        return Arrays.copyOf(buffer, position);
+    }
+
+    /**
+     * Write the whole bytes packed so far to 'out' and drop them from the
+     * buffer, so long streams can be encoded in bounded memory. Bits that do
+     * not fill a byte yet stay pending.
+     */
+    public void drainTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (position + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+        }
+    }
+}
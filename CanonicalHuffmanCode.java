@@ -0,0 +1,107 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Canonical Huffman code: the codes are assigned in order of (length, symbol),
+ * so the code lengths alone are enough to rebuild them. Only the symbols and
+ * their lengths are stored in a compressed file.
+ */
+public class CanonicalHuffmanCode {
+    private final int[] codes;
+    private final int[] codeLengths;
+
+    /**
+     * @param codeLengths code length of every symbol, 0 for symbols that do not occur
+     */
+    public CanonicalHuffmanCode(int[] codeLengths) {
+        this.codeLengths = codeLengths.clone();
+        this.codes = new int[codeLengths.length];
+
+        // Step 1: Count the codes of each length
+        int[] lengthCount = new int[HuffmanDecoder.MAX_CODE_LENGTH + 1];
+        for (int length : codeLengths) {
+            if (length > HuffmanDecoder.MAX_CODE_LENGTH) {
+                throw new IllegalArgumentException("Huffman code longer than " + HuffmanDecoder.MAX_CODE_LENGTH + " bits");
+            }
+            if (length > 0) {
+                lengthCount[length]++;
+            }
+        }
+
+        // Step 2: Find the first code of each length
+        int[] nextCode = new int[HuffmanDecoder.MAX_CODE_LENGTH + 1];
+        int code = 0;
+        for (int length = 1; length <= HuffmanDecoder.MAX_CODE_LENGTH; length++) {
+            code = (code + lengthCount[length - 1]) << 1;
+            nextCode[length] = code;
+        }
+
+        // Step 3: Hand out consecutive codes to the symbols of each length
+        for (int symbol = 0; symbol < codeLengths.length; symbol++) {
+            if (codeLengths[symbol] > 0) {
+                codes[symbol] = nextCode[codeLengths[symbol]]++;
+            }
+        }
+    }
+
+    public int[] getCodes() {
+        return codes;
+    }
+
+    public int[] getCodeLengths() {
+        return codeLengths;
+    }
+
+    public HuffmanDecoder createDecoder() {
+        return new HuffmanDecoder(codes, codeLengths);
+    }
+
+    /**
+     * Write the table as a symbol count followed by a (symbol, length) pair
+     * for every symbol that occurs.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        int symbolCount = 0;
+        for (int length : codeLengths) {
+            if (length > 0) {
+                symbolCount++;
+            }
+        }
+        out.writeShort(symbolCount);
+        for (int symbol = 0; symbol < codeLengths.length; symbol++) {
+            if (codeLengths[symbol] > 0) {
+                out.writeShort(symbol);
+                out.writeByte(codeLengths[symbol]);
+            }
+        }
+    }
+
+    /**
+     * Read a table written by writeTo, rejecting symbols outside 0 to
+     * symbolLimit - 1 and lengths that do not form a valid prefix code.
+     */
+    public static CanonicalHuffmanCode readFrom(DataInput in, int symbolLimit) throws IOException {
+        int symbolCount = in.readUnsignedShort();
+        if (symbolCount > symbolLimit) {
+            throw new IOException("Corrupt Huffman code table: " + symbolCount + " symbols");
+        }
+
+        int[] codeLengths = new int[symbolLimit];
+        long kraftSum = 0;
+        for (int i = 0; i < symbolCount; i++) {
+            int symbol = in.readUnsignedShort();
+            int length = in.readUnsignedByte();
+            if (symbol >= symbolLimit || length == 0 || length > HuffmanDecoder.MAX_CODE_LENGTH
+                    || codeLengths[symbol] != 0) {
+                throw new IOException("Corrupt Huffman code table entry for symbol " + symbol);
+            }
+            codeLengths[symbol] = length;
+            kraftSum += 1L << (HuffmanDecoder.MAX_CODE_LENGTH - length);
+        }
+        if (kraftSum > 1L << HuffmanDecoder.MAX_CODE_LENGTH) {
+            throw new IOException("Corrupt Huffman code table: code lengths overflow");
+        }
+        return new CanonicalHuffmanCode(codeLengths);
+    }
+}
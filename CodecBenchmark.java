@@ -0,0 +1,326 @@
+import com.sun.management.ThreadMXBean;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Microbenchmarks for the codec hot paths, parameterised by image size and
+ * content type. Every benchmark is warmed up before it is timed, and any
+ * setup it needs (a fresh Cube for reduction, say) runs untimed before each
+ * call. Each line reports the mean time per call, the throughput, and the
+ * bytes allocated per call by all live threads, so the work the parallel
+ * paths hand to the common pool is counted too. Allocation by threads that
+ * exit during a call is missed, and any other thread running at the time is
+ * counted.
+ *
+ * Run with: java -Xmx8g CodecBenchmark [-s 1,4,16,64] [-c noise,gradient,original] [-b regex]
+ *
+ * -s picks the image sizes in megapixels, -c the content types and -b the
+ * benchmarks whose names match the regex. The "original" images are tiled
+ * from the PNGs in Original/.
+ */
+public class CodecBenchmark {
+    private static final int WARMUP_CALLS = 2;
+    private static final long WARMUP_NANOS = 1_000_000_000L;
+    private static final int MEASURED_CALLS = 3;
+    private static final long MEASURED_NANOS = 2_000_000_000L;
+
+    // results are written here so the JIT cannot drop the benchmarked calls
+    static volatile Object sink;
+
+    /**
+     * Untimed setup that runs before every call, returning the call's input.
+     */
+    interface Setup {
+        Object prepare() throws Exception;
+    }
+
+    interface Operation {
+        Object run(Object input) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = { 1, 4, 16, 64 };
+        String[] contents = { "noise", "gradient", "original" };
+        Pattern filter = Pattern.compile(".*");
+        if (args.length % 2 != 0) {
+            throw new IllegalArgumentException(
+                    "Usage: java CodecBenchmark [-s 1,4,16,64] [-c noise,gradient,original] [-b regex]");
+        }
+        for (int i = 0; i < args.length - 1; i += 2) {
+            if (args[i].equals("-s")) {
+                sizes = Arrays.stream(args[i + 1].split(",")).mapToInt(Integer::parseInt).toArray();
+            } else if (args[i].equals("-c")) {
+                contents = args[i + 1].split(",");
+            } else if (args[i].equals("-b")) {
+                filter = Pattern.compile(args[i + 1]);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        System.out.printf("%-34s %5s %-9s %12s %10s %16s%n", "Benchmark", "MP", "Content", "ms/op", "ops/s",
+                "alloc B/op");
+        for (int size : sizes) {
+            for (String content : contents) {
+                PixelBuffer image = createImage(content, size);
+                if (image == null) {
+                    System.out.println("No images found in Original/, skipping " + content);
+                    continue;
+                }
+                runAll(image, size, content, filter);
+            }
+        }
+    }
+
+    static void runAll(PixelBuffer image, int size, String content, Pattern filter) throws Exception {
+        String label = String.format("%5d %-9s", size, content);
+        File compressed = File.createTempFile("benchmark", ".bin");
+        compressed.deleteOnExit();
+        File compressedQuadtree = File.createTempFile("benchmark", ".bin");
+        compressedQuadtree.deleteOnExit();
+        File compressedPredictive = File.createTempFile("benchmark", ".bin");
+        compressedPredictive.deleteOnExit();
+        File compressedRans = File.createTempFile("benchmark", ".bin");
+        compressedRans.deleteOnExit();
+        try {
+            // Shared inputs, built once per image
+            Utility utility = new Utility();
+            utility.Compress(image, compressed.getPath());
+            PixelBuffer decompressed = utility.DecompressToBuffer(compressed.getPath());
+            BufferedImage originalImage = image.toImage();
+            BufferedImage decompressedImage = decompressed.toImage();
+            PixelBuffer averaged = Utility.averagePixels(image);
+            int[] colorFrequency = countFrequencies(averaged);
+            int[] codeLengths = EntropyCoder.buildCodeLengths(colorFrequency);
+            CanonicalHuffmanCode huffmanCode = new CanonicalHuffmanCode(codeLengths);
+
+            // Utility
+            measure(filter, label, "Utility.averagePixels", () -> image,
+                    input -> Utility.averagePixels((PixelBuffer) input));
+            measure(filter, label, "EntropyCoder.countChannels", () -> averaged,
+                    input -> countFrequencies((PixelBuffer) input));
+            measure(filter, label, "EntropyCoder.buildCodeLengths", () -> colorFrequency,
+                    input -> EntropyCoder.buildCodeLengths((int[]) input));
+            measure(filter, label, "CanonicalHuffmanCode.new", () -> codeLengths,
+                    input -> new CanonicalHuffmanCode((int[]) input));
+            measure(filter, label, "EntropyCoder.encodeChannels", () -> averaged, input -> {
+                int[] pixels = ((PixelBuffer) input).getPixels();
+                BitWriter bitWriter = new BitWriter(pixels.length);
+                EntropyCoder.encodeChannels(pixels, huffmanCode, bitWriter);
+                return bitWriter.toByteArray();
+            });
+            measure(filter, label, "Utility.Decompress", () -> compressed.getPath(),
+                    input -> utility.DecompressToBuffer((String) input));
+
+            // Utility with the rANS backend
+            RansCoder ransCoder = RansCoder.fromHistogram(colorFrequency);
+            measure(filter, label, "RansCoder.encodeChannels", () -> averaged,
+                    input -> ransCoder.encodeChannels(((PixelBuffer) input).getPixels()));
+            Utility rans = new Utility(Utility.Mode.flat(CompressedFile.BACKEND_RANS));
+            rans.Compress(image, compressedRans.getPath());
+            measure(filter, label, "Utility.Compress.rans", () -> image, input -> {
+                rans.Compress((PixelBuffer) input, compressedRans.getPath());
+                return compressedRans;
+            });
+            measure(filter, label, "Utility.Decompress.rans", () -> compressedRans.getPath(),
+                    input -> rans.DecompressToBuffer((String) input));
+
+            // Utility with prediction
+            int[] levels = PredictiveCoder.levels(averaged);
+            byte[] filters = new byte[averaged.getHeight()];
+            int[] residuals = PredictiveCoder.filter(levels, averaged.getWidth(), averaged.getHeight(), filters);
+            measure(filter, label, "PredictiveCoder.filter", () -> levels,
+                    input -> PredictiveCoder.filter((int[]) input, averaged.getWidth(), averaged.getHeight(), filters));
+            measure(filter, label, "PredictiveCoder.unfilter", residuals::clone, input -> {
+                PredictiveCoder.unfilter((int[]) input, averaged.getWidth(), averaged.getHeight(), filters);
+                return input;
+            });
+            Utility predictive = new Utility(Utility.Mode.predictive(CompressedFile.BACKEND_HUFFMAN));
+            predictive.Compress(image, compressedPredictive.getPath());
+            measure(filter, label, "Utility.Compress.predictive", () -> image, input -> {
+                predictive.Compress((PixelBuffer) input, compressedPredictive.getPath());
+                return compressedPredictive;
+            });
+            measure(filter, label, "Utility.Decompress.predictive", () -> compressedPredictive.getPath(),
+                    input -> predictive.DecompressToBuffer((String) input));
+
+            // Quadtree
+            UtilityQuadtree quadtree = new UtilityQuadtree();
+            quadtree.Compress(image, compressedQuadtree.getPath());
+            measure(filter, label, "UtilityQuadtree.Compress", () -> image, input -> {
+                quadtree.Compress((PixelBuffer) input, compressedQuadtree.getPath());
+                return compressedQuadtree;
+            });
+            measure(filter, label, "UtilityQuadtree.Decompress", () -> compressedQuadtree.getPath(),
+                    input -> quadtree.DecompressToBuffer((String) input));
+
+            // Color quantization
+            measure(filter, label, "Cube.classification", () -> new UtilityColorQuantization.Cube(image, 126),
+                    input -> {
+                        ((UtilityColorQuantization.Cube) input).classification();
+                        return input;
+                    });
+            UtilityColorQuantization.Sampling budget = UtilityColorQuantization.Sampling.budget(1 << 20);
+            measure(filter, label, "Cube.classification.budget1M",
+                    () -> new UtilityColorQuantization.Cube(image, 126), input -> {
+                        ((UtilityColorQuantization.Cube) input).classification(budget.sample(image));
+                        return input;
+                    });
+            measure(filter, label, "Cube.reduction", () -> {
+                UtilityColorQuantization.Cube cube = new UtilityColorQuantization.Cube(image, 126);
+                cube.classification();
+                return cube;
+            }, input -> {
+                ((UtilityColorQuantization.Cube) input).reduction();
+                return input;
+            });
+            measure(filter, label, "Cube.assignment", () -> {
+                UtilityColorQuantization.Cube cube = new UtilityColorQuantization.Cube(image, 126);
+                cube.classification();
+                cube.reduction();
+                return cube;
+            }, input -> ((UtilityColorQuantization.Cube) input).assignment());
+
+            // Quality metrics, over the in-memory buffers and over BufferedImages
+            measure(filter, label, "MAECalculator.PixelBuffer", () -> decompressed,
+                    input -> MAECalculator.calculateMAE(image, (PixelBuffer) input));
+            measure(filter, label, "MSECalculator.PixelBuffer", () -> decompressed,
+                    input -> MSECalculator.calculateMSE(image, (PixelBuffer) input));
+            measure(filter, label, "PSNRCalculator.PixelBuffer", () -> decompressed,
+                    input -> PSNRCalculator.calculatePSNR(image, (PixelBuffer) input));
+            measure(filter, label, "MAECalculator.BufferedImage", () -> decompressedImage,
+                    input -> MAECalculator.calculateMAE(originalImage, (BufferedImage) input));
+            measure(filter, label, "MSECalculator.BufferedImage", () -> decompressedImage,
+                    input -> MSECalculator.calculateMSE(originalImage, (BufferedImage) input));
+            measure(filter, label, "PSNRCalculator.BufferedImage", () -> decompressedImage,
+                    input -> PSNRCalculator.calculatePSNR(originalImage, (BufferedImage) input));
+            measure(filter, label, "QualityMetrics.PixelBuffer", () -> decompressed,
+                    input -> QualityMetrics.compare(image, (PixelBuffer) input));
+            measure(filter, label, "QualityMetrics.BufferedImage", () -> decompressedImage,
+                    input -> QualityMetrics.compare(originalImage, (BufferedImage) input));
+            measure(filter, label, "SSIMCalculator.SSIM", () -> decompressed,
+                    input -> SSIMCalculator.calculateSSIM(image, (PixelBuffer) input));
+            measure(filter, label, "SSIMCalculator.MSSSIM", () -> decompressed,
+                    input -> SSIMCalculator.calculateMSSSIM(image, (PixelBuffer) input));
+        } finally {
+            compressed.delete();
+            compressedQuadtree.delete();
+            compressedPredictive.delete();
+            compressedRans.delete();
+        }
+    }
+
+    /**
+     * Warm up, then time calls until both the minimum count and the minimum
+     * time are reached, and print one result line.
+     */
+    static void measure(Pattern filter, String label, String name, Setup setup, Operation operation)
+            throws Exception {
+        if (!filter.matcher(name).matches()) {
+            return;
+        }
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        long warmupStart = System.nanoTime();
+        for (int calls = 0; calls < WARMUP_CALLS || System.nanoTime() - warmupStart < WARMUP_NANOS; calls++) {
+            sink = operation.run(setup.prepare());
+        }
+
+        // the time limit counts the setup too, so slow setups do not stretch the run
+        long measureStart = System.nanoTime();
+        long totalNanos = 0;
+        long totalBytes = 0;
+        int calls = 0;
+        while (calls < MEASURED_CALLS || System.nanoTime() - measureStart < MEASURED_NANOS) {
+            Object input = setup.prepare();
+            long bytesBefore = allocatedBytes(threads);
+            long start = System.nanoTime();
+            sink = operation.run(input);
+            totalNanos += System.nanoTime() - start;
+            totalBytes += allocatedBytes(threads) - bytesBefore;
+            calls++;
+        }
+
+        double millisPerCall = totalNanos / 1e6 / calls;
+        System.out.printf("%-34s %s %12.3f %10.2f %16d%n", name, label, millisPerCall, 1000 / millisPerCall,
+                totalBytes / calls);
+    }
+
+    // bytes allocated so far by the live threads; threads that died in between report -1
+    static long allocatedBytes(ThreadMXBean threads) {
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    // the frequency count of Utility.Compress, step 1
+    static int[] countFrequencies(PixelBuffer averaged) {
+        int[] colorFrequency = new int[256];
+        EntropyCoder.countChannels(averaged.getPixels(), colorFrequency);
+        return colorFrequency;
+    }
+
+    /**
+     * A square image of about 'megapixels' million pixels, with a side that
+     * divides by both the 2x2 and the 3x3 block size.
+     */
+    static PixelBuffer createImage(String content, int megapixels) throws IOException {
+        int side = (int) Math.sqrt(megapixels * 1_000_000.0) / 6 * 6;
+        PixelBuffer image = new PixelBuffer(side, side);
+        int[] pixels = image.getPixels();
+
+        switch (content) {
+            case "noise":
+                Random random = new Random(42);
+                for (int i = 0; i < pixels.length; i++) {
+                    pixels[i] = random.nextInt() & 0xFFFFFF;
+                }
+                return image;
+            case "gradient":
+                for (int y = 0; y < side; y++) {
+                    for (int x = 0; x < side; x++) {
+                        pixels[y * side + x] = PixelBuffer.pack(x * 255 / (side - 1), y * 255 / (side - 1),
+                                (x + y) * 255 / (2 * side - 2));
+                    }
+                }
+                return image;
+            case "original":
+                List<PixelBuffer> tiles = new ArrayList<>();
+                File[] files = new File("Original/").listFiles(File::isFile);
+                if (files != null) {
+                    Arrays.sort(files);
+                    for (File file : files) {
+                        tiles.add(new ImagetoPixelConverter(file.getPath()).getPixelBuffer());
+                    }
+                }
+                if (tiles.isEmpty()) {
+                    return null;
+                }
+                // lay the images out left to right, top to bottom, cycling through them
+                int tileHeight = tiles.get(0).getHeight();
+                int next = 0;
+                for (int top = 0; top < side; top += tileHeight) {
+                    for (int left = 0; left < side;) {
+                        PixelBuffer tile = tiles.get(next++ % tiles.size());
+                        for (int y = top; y < Math.min(side, top + Math.min(tileHeight, tile.getHeight())); y++) {
+                            int length = Math.min(tile.getWidth(), side - left);
+                            System.arraycopy(tile.getPixels(), (y - top) * tile.getWidth(), pixels, y * side + left,
+                                    length);
+                        }
+                        left += tile.getWidth();
+                    }
+                }
+                return image;
+            default:
+                throw new IllegalArgumentException("Unknown content type " + content);
+        }
+    }
+}
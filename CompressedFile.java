@@ -0,0 +1,480 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk container shared by all codecs. Every .bin file is laid out as
+ * follows, all integers big-endian:
+ *
+ * <pre>
+ * offset size field
+ *      0    4 magic, the ASCII bytes "CSIC"
+ *      4    1 format version, currently 2
+ *      5    1 codec id, one of the CODEC_ constants
+ *      6    1 block factor: side of the averaged pixel blocks, 1 if none
+ *      7    1 flags, a combination of the FLAG_ constants, with the entropy
+ *             backend, one of the BACKEND_ constants, in bits 4 and 5
+ *      8    4 original image width
+ *     12    4 original image height
+ *     16    4 length of the entropy table section in bytes
+ *     20    4 length of the payload in bytes
+ *     24    4 CRC32 of the table section followed by the payload
+ *     28      entropy table section (codec specific, e.g. Huffman code lengths
+ *             or rANS frequencies)
+ *             payload (the entropy coded pixel data)
+ * </pre>
+ *
+ * read() checks the header against the file size before reading anything
+ * else, so truncated or foreign files are rejected without decoding them.
+ * openPayloadWriter() and readStreaming() do the same for payloads that are
+ * too large to hold in memory. map() checks the header alone and leaves the
+ * CRC to decodeChecked(), so payloads decode straight from the page cache
+ * as soon as the file is opened. A progressive file can instead be read one
+ * level at a time without decodeChecked(), as each level has a CRC of its
+ * own.
+ */
+public class CompressedFile {
+    public static final int MAGIC = 0x43534943;
+    // 2: pixel data is stored row by row (version 1 stored it column by column)
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 28;
+
+    public static final int CODEC_AVERAGE_2X2 = 1;
+    public static final int CODEC_AVERAGE_3X3 = 2;
+    public static final int CODEC_COLOR_QUANTIZATION = 3;
+    public static final int CODEC_QUADTREE = 4;
+
+    // payload starts with a tile index, see TiledBlockCoder
+    public static final int FLAG_TILED = 1;
+    // the table section only holds the id of a PaletteDictionary that has the tables
+    public static final int FLAG_DICTIONARY = 2;
+    // payload holds prediction residuals, see PredictiveCoder
+    public static final int FLAG_PREDICTIVE = 4;
+    // payload codes runs of equal symbols, see EntropyCoder.encodeRuns
+    public static final int FLAG_RUN_LENGTH = 8;
+    // payload is a coarse-to-fine pyramid with a CRC per level, see PyramidCoder
+    // (bits 4 and 5 hold the backend)
+    public static final int FLAG_PROGRESSIVE = 64;
+    static final int KNOWN_FLAGS = FLAG_TILED | FLAG_DICTIONARY | FLAG_PREDICTIVE | FLAG_RUN_LENGTH
+            | FLAG_PROGRESSIVE;
+
+    // entropy coder of the table section and payload
+    public static final int BACKEND_HUFFMAN = 0;
+    // see RansCoder
+    public static final int BACKEND_RANS = 1;
+    static final int BACKEND_SHIFT = 4;
+    private static final int BACKEND_MASK = 3 << BACKEND_SHIFT;
+
+    // largest width or height; files are rejected above it when written and when read
+    static final int MAX_DIMENSION = 1 << 16;
+
+    // what read() does with the payload
+    private static final int LOAD_PAYLOAD = 0;
+    private static final int STREAM_PAYLOAD = 1;
+    private static final int MAP_PAYLOAD = 2;
+
+    private final int codecId;
+    private final int blockFactor;
+    private final int flags;
+    private final int width;
+    private final int height;
+    private final byte[] tableSection;
+    private final byte[] payload;
+
+    // where readStreaming() left the payload, null when it is held in memory
+    private String payloadFileName;
+    // the payload as map() mapped it, null otherwise
+    private ByteBuffer payloadBuffer;
+    // after map(), the file whose CRC decodeChecked() has yet to check, and that CRC
+    private String uncheckedFileName;
+    private int expectedCrc;
+
+    /**
+     * A decode of a mapped payload, see decodeChecked().
+     */
+    public interface PayloadDecoder<T> {
+        T decode() throws IOException;
+    }
+
+    public CompressedFile(int codecId, int blockFactor, int width, int height, byte[] tableSection,
+            byte[] payload) {
+        this(codecId, blockFactor, 0, width, height, tableSection, payload);
+    }
+
+    public CompressedFile(int codecId, int blockFactor, int flags, int width, int height, byte[] tableSection,
+            byte[] payload) {
+        checkDimensions(width, height);
+        this.codecId = codecId;
+        this.blockFactor = blockFactor;
+        this.flags = flags;
+        this.width = width;
+        this.height = height;
+        this.tableSection = tableSection;
+        this.payload = payload;
+    }
+
+    /**
+     * Reject an image size that read() would reject, before anything is
+     * written: 1 to MAX_DIMENSION pixels each way.
+     */
+    public static void checkDimensions(int width, int height) {
+        if (width <= 0 || height <= 0 || width > MAX_DIMENSION || height > MAX_DIMENSION) {
+            throw new IllegalArgumentException("Image size " + width + "x" + height + " is outside 1 to "
+                    + MAX_DIMENSION + " pixels each way");
+        }
+    }
+
+    public void write(String fileName) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(tableSection);
+        crc.update(payload);
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName))) {
+            out.write(header(payload.length, (int) crc.getValue()));
+            out.write(tableSection);
+            out.write(payload);
+        }
+    }
+
+    /**
+     * Write the table section and return a stream for the payload, for
+     * payloads that are produced piece by piece. The payload length and CRC
+     * are filled into the header when the stream is closed. The payload given
+     * to the constructor is ignored and may be null.
+     */
+    public OutputStream openPayloadWriter(String fileName) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        channel.position(HEADER_SIZE);
+        OutputStream body = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+        body.write(tableSection);
+        CRC32 crc = new CRC32();
+        crc.update(tableSection);
+
+        return new OutputStream() {
+            private long payloadLength;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                crc.update(b, off, len);
+                payloadLength += len;
+                body.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                try (FileChannel file = channel) {
+                    body.flush();
+                    if (payloadLength > Integer.MAX_VALUE) {
+                        throw new IOException("Payload of " + payloadLength + " bytes is too large to store");
+                    }
+                    ByteBuffer header = ByteBuffer.wrap(header((int) payloadLength, (int) crc.getValue()));
+                    while (header.hasRemaining()) {
+                        file.write(header, header.position());
+                    }
+                }
+            }
+        };
+    }
+
+    private byte[] header(int payloadLength, int crc) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.put((byte) VERSION);
+        header.put((byte) codecId);
+        header.put((byte) blockFactor);
+        header.put((byte) flags);
+        header.putInt(width);
+        header.putInt(height);
+        header.putInt(tableSection.length);
+        header.putInt(payloadLength);
+        header.putInt(crc);
+        return header.array();
+    }
+
+    /**
+     * Read and validate a file written by the codec with the given id.
+     */
+    public static CompressedFile read(String fileName, int expectedCodecId) throws IOException {
+        return read(fileName, expectedCodecId, LOAD_PAYLOAD);
+    }
+
+    /**
+     * Read and validate a file like read(), but leave the payload on disk. The
+     * CRC is checked by streaming over the payload once; openPayload() then
+     * reads it again from the file.
+     */
+    public static CompressedFile readStreaming(String fileName, int expectedCodecId) throws IOException {
+        return read(fileName, expectedCodecId, STREAM_PAYLOAD);
+    }
+
+    /**
+     * Read and validate the header of a file like read(), but map the
+     * payload read-only instead of copying it onto the heap;
+     * getPayloadBuffer() returns the mapping. Concurrent readers of one file
+     * share its pages in the page cache. Nothing of the payload is read
+     * here: decode it through decodeChecked(), which checks the CRC once the
+     * decoder has faulted the pages in. The mapping outlives the file being
+     * closed, and is released when the buffer is garbage collected; until
+     * then Windows will not let the file be overwritten or deleted.
+     */
+    public static CompressedFile map(String fileName, int expectedCodecId) throws IOException {
+        return read(fileName, expectedCodecId, MAP_PAYLOAD);
+    }
+
+    private static CompressedFile read(String fileName, int expectedCodecId, int payloadMode)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            // Step 1: Validate the fixed size header
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header);
+            header.flip();
+
+            if (header.getInt() != MAGIC) {
+                throw new IOException(fileName + " is not a compressed image file");
+            }
+            int version = header.get() & 0xFF;
+            if (version != VERSION) {
+                throw new IOException("Unsupported file format version " + version);
+            }
+            int codecId = header.get() & 0xFF;
+            if (codecId != expectedCodecId) {
+                throw new IOException("File was written by codec " + codecId + ", expected " + expectedCodecId);
+            }
+            int blockFactor = header.get() & 0xFF;
+            int flags = header.get() & 0xFF;
+            if ((flags & ~(KNOWN_FLAGS | BACKEND_MASK)) != 0) {
+                throw new IOException("Unsupported flags " + flags);
+            }
+            if ((flags & BACKEND_MASK) >> BACKEND_SHIFT > BACKEND_RANS) {
+                throw new IOException("Unsupported entropy backend " + ((flags & BACKEND_MASK) >> BACKEND_SHIFT));
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+            if (width <= 0 || height <= 0 || width > MAX_DIMENSION || height > MAX_DIMENSION || blockFactor == 0) {
+                throw new IOException("Corrupt header: " + width + "x" + height + ", block factor " + blockFactor);
+            }
+            int tableLength = header.getInt();
+            int payloadLength = header.getInt();
+            int expectedCrc = header.getInt();
+            if (tableLength < 0 || payloadLength < 0
+                    || HEADER_SIZE + (long) tableLength + payloadLength != channel.size()) {
+                throw new IOException("Corrupt header: section lengths do not match the file size");
+            }
+
+            // Step 2: Read both sections and check them against the CRC
+            ByteBuffer tableSection = ByteBuffer.allocate(tableLength);
+            readFully(channel, tableSection);
+            CRC32 crc = new CRC32();
+            crc.update(tableSection.array());
+            ByteBuffer payload;
+            if (payloadMode == MAP_PAYLOAD) {
+                MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_SIZE + (long) tableLength, payloadLength);
+                // the CRC of a mapping is left to decodeChecked()
+                crc = null;
+                payload = mapping;
+            } else {
+                payload = ByteBuffer.allocate(payloadMode == LOAD_PAYLOAD ? payloadLength
+                        : Math.min(payloadLength, 1 << 16));
+                for (long remaining = payloadLength; remaining > 0; remaining -= payload.limit()) {
+                    payload.clear().limit((int) Math.min(remaining, payload.capacity()));
+                    readFully(channel, payload);
+                    crc.update(payload.array(), 0, payload.limit());
+                }
+            }
+            if (crc != null && (int) crc.getValue() != expectedCrc) {
+                throw new IOException("CRC mismatch, " + fileName + " is corrupt");
+            }
+
+            CompressedFile file = new CompressedFile(codecId, blockFactor, flags, width, height,
+                    tableSection.array(), payloadMode == LOAD_PAYLOAD ? payload.array() : null);
+            if (payloadMode == STREAM_PAYLOAD) {
+                file.payloadFileName = fileName;
+            } else if (payloadMode == MAP_PAYLOAD) {
+                file.payloadBuffer = payload;
+                file.uncheckedFileName = fileName;
+                file.expectedCrc = expectedCrc;
+            }
+            return file;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Unexpected end of file");
+            }
+        }
+    }
+
+    public int getCodecId() {
+        return codecId;
+    }
+
+    public int getBlockFactor() {
+        return blockFactor;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean isTiled() {
+        return (flags & FLAG_TILED) != 0;
+    }
+
+    public boolean usesDictionary() {
+        return (flags & FLAG_DICTIONARY) != 0;
+    }
+
+    public boolean isPredictive() {
+        return (flags & FLAG_PREDICTIVE) != 0;
+    }
+
+    public boolean isRunLength() {
+        return (flags & FLAG_RUN_LENGTH) != 0;
+    }
+
+    public boolean isProgressive() {
+        return (flags & FLAG_PROGRESSIVE) != 0;
+    }
+
+    /**
+     * The entropy backend, BACKEND_HUFFMAN or BACKEND_RANS.
+     */
+    public int getBackend() {
+        return (flags & BACKEND_MASK) >> BACKEND_SHIFT;
+    }
+
+    /**
+     * The flags for the given backend, for codecs to combine with their
+     * FLAG_ constants. Throws IllegalArgumentException for unknown backends.
+     */
+    public static int backendFlags(int backend) {
+        if (backend != BACKEND_HUFFMAN && backend != BACKEND_RANS) {
+            throw new IllegalArgumentException("Unknown entropy backend " + backend);
+        }
+        return backend << BACKEND_SHIFT;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public byte[] getTableSection() {
+        return tableSection;
+    }
+
+    /**
+     * The payload, or null for a file opened with readStreaming() or map().
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * Run a decode of the payload, then check the CRC after map(), over
+     * pages the decoder has just read. Corrupt data may fail the decode
+     * first; the CRC is then checked before the failure is passed on, so a
+     * damaged file is still reported as a CRC mismatch. Files read any other
+     * way were checked when read.
+     */
+    public <T> T decodeChecked(PayloadDecoder<T> decoder) throws IOException {
+        T result;
+        try {
+            result = decoder.decode();
+        } catch (IOException | RuntimeException e) {
+            checkCrc();
+            throw e;
+        }
+        checkCrc();
+        return result;
+    }
+
+    private void checkCrc() throws IOException {
+        if (uncheckedFileName == null) {
+            return;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(tableSection);
+        crc.update(payloadBuffer.duplicate().clear());
+        if ((int) crc.getValue() != expectedCrc) {
+            throw new IOException("CRC mismatch, " + uncheckedFileName + " is corrupt");
+        }
+        uncheckedFileName = null;
+    }
+
+    /**
+     * The payload as a read-only buffer from index 0 to its limit: the
+     * mapping after map(), else a view of the payload in memory. Returns
+     * null for a file opened with readStreaming().
+     */
+    public ByteBuffer getPayloadBuffer() {
+        if (payloadBuffer != null) {
+            return payloadBuffer.asReadOnlyBuffer();
+        }
+        return payload != null ? ByteBuffer.wrap(payload).asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * Stream over the payload, from memory, from the mapping after map() or,
+     * after readStreaming(), from the file.
+     */
+    public InputStream openPayload() throws IOException {
+        if (payloadBuffer != null) {
+            ByteBuffer remaining = getPayloadBuffer();
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return remaining.hasRemaining() ? remaining.get() & 0xFF : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (len == 0) {
+                        return 0;
+                    }
+                    if (!remaining.hasRemaining()) {
+                        return -1;
+                    }
+                    len = Math.min(len, remaining.remaining());
+                    remaining.get(b, off, len);
+                    return len;
+                }
+
+                @Override
+                public int available() {
+                    return remaining.remaining();
+                }
+            };
+        }
+        if (payloadFileName == null) {
+            return new ByteArrayInputStream(payload);
+        }
+        FileChannel channel = FileChannel.open(Paths.get(payloadFileName), StandardOpenOption.READ);
+        channel.position(HEADER_SIZE + tableSection.length);
+        return new BufferedInputStream(Channels.newInputStream(channel), 1 << 16);
+    }
+
+    /**
+     * Stream over the table section for codecs to parse their entropy tables.
+     */
+    public DataInputStream openTableSection() {
+        return new DataInputStream(new ByteArrayInputStream(tableSection));
+    }
+}
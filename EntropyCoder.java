@@ -0,0 +1,247 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Huffman coding shared by all codecs, over primitive arrays only: symbols
+ * are counted into an int[] histogram, the code lengths come from the linear
+ * two-queue construction, and encoding and decoding go through BitWriter,
+ * BitReader and HuffmanDecoder without boxing or allocating per symbol.
+ *
+ * The alphabet is 0 to histogram.length - 1: color values for the averaging
+ * codecs, colormap indices for color quantization.
+ *
+ * The run-length mode adds RUN_SYMBOLS symbols after an alphabet of n
+ * symbols. Symbol n + k stands for 2^k to 2^(k + 1) - 1 repeats of the symbol
+ * before it, and its code is followed by the low k bits of the repeat count.
+ * Long runs of one symbol then cost a few codes, and decode as one fill.
+ */
+public class EntropyCoder {
+    // symbols are packed below their frequency into one long sort key
+    private static final int SYMBOL_BITS = 20;
+    static final int MAX_ALPHABET = 1 << SYMBOL_BITS;
+
+    // run symbols, enough for any repeat count of an int[]
+    public static final int RUN_SYMBOLS = 31;
+
+    /**
+     * Add the red, green and blue value of every packed pixel to a histogram
+     * of 256 entries.
+     */
+    public static void countChannels(int[] pixels, int[] histogram) {
+        for (int rgb : pixels) {
+            histogram[(rgb >> 16) & 0xFF]++;
+            histogram[(rgb >> 8) & 0xFF]++;
+            histogram[rgb & 0xFF]++;
+        }
+    }
+
+    public static void count(int[] symbols, int[] histogram) {
+        for (int symbol : symbols) {
+            histogram[symbol]++;
+        }
+    }
+
+    /**
+     * Count the symbols in the run-length mode into a histogram of
+     * alphabetSize + RUN_SYMBOLS entries. Returns the number of bits the
+     * repeat counts add after the run codes.
+     */
+    public static long countRuns(int[] symbols, int alphabetSize, int[] histogram) {
+        long extraBits = 0;
+        for (int i = 0; i < symbols.length;) {
+            int symbol = symbols[i];
+            int end = runEnd(symbols, i);
+            histogram[symbol]++;
+            if (end - i > 1) {
+                int runBits = 31 - Integer.numberOfLeadingZeros(end - i - 1);
+                histogram[alphabetSize + runBits]++;
+                extraBits += runBits;
+            }
+            i = end;
+        }
+        return extraBits;
+    }
+
+    // index after the run of equal symbols starting at 'from'
+    private static int runEnd(int[] symbols, int from) {
+        int symbol = symbols[from];
+        int end = from + 1;
+        while (end < symbols.length && symbols[end] == symbol) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Size in bits of the symbols of a histogram under a set of code lengths.
+     */
+    public static long codedBits(int[] histogram, int[] codeLengths) {
+        long bits = 0;
+        for (int symbol = 0; symbol < histogram.length; symbol++) {
+            bits += (long) histogram[symbol] * codeLengths[symbol];
+        }
+        return bits;
+    }
+
+    public static CanonicalHuffmanCode buildCode(int[] histogram) {
+        return new CanonicalHuffmanCode(buildCodeLengths(histogram));
+    }
+
+    /**
+     * Huffman code length of every symbol, 0 for symbols that do not occur.
+     * A lone symbol still gets one bit so the decoder can count it. When the
+     * longest code would exceed HuffmanDecoder.MAX_CODE_LENGTH the frequencies
+     * are halved, which flattens the tree, until it fits.
+     */
+    public static int[] buildCodeLengths(int[] histogram) {
+        if (histogram.length > MAX_ALPHABET) {
+            throw new IllegalArgumentException("Alphabet of " + histogram.length + " symbols is too large");
+        }
+        long[] frequencies = new long[histogram.length];
+        for (int symbol = 0; symbol < histogram.length; symbol++) {
+            frequencies[symbol] = histogram[symbol];
+        }
+        int[] codeLengths = new int[histogram.length];
+        while (!buildCodeLengths(frequencies, codeLengths)) {
+            for (int symbol = 0; symbol < frequencies.length; symbol++) {
+                frequencies[symbol] = (frequencies[symbol] + 1) / 2;
+            }
+        }
+        return codeLengths;
+    }
+
+    /**
+     * Two-queue Huffman construction: the leaves sorted by frequency form one
+     * queue, and merged nodes are created in order of frequency so they form
+     * a second, already sorted queue. Ties go to the leaf, which keeps the
+     * codes as short as possible. Returns false if a code would be too long.
+     */
+    private static boolean buildCodeLengths(long[] frequencies, int[] codeLengths) {
+        // Step 1: Sort the symbols that occur by (frequency, symbol)
+        int leafCount = 0;
+        long[] keys = new long[frequencies.length];
+        for (int symbol = 0; symbol < frequencies.length; symbol++) {
+            if (frequencies[symbol] > 0) {
+                keys[leafCount++] = (frequencies[symbol] << SYMBOL_BITS) | symbol;
+            }
+        }
+        Arrays.fill(codeLengths, 0);
+        if (leafCount == 0) {
+            return true;
+        }
+        if (leafCount == 1) {
+            codeLengths[(int) (keys[0] & (MAX_ALPHABET - 1))] = 1;
+            return true;
+        }
+        Arrays.sort(keys, 0, leafCount);
+
+        // Step 2: Merge the two lightest nodes of either queue until one is left.
+        // Nodes 0..leafCount-1 are the leaves, merged nodes follow in creation order
+        long[] weight = new long[2 * leafCount - 1];
+        int[] parent = new int[2 * leafCount - 1];
+        for (int leaf = 0; leaf < leafCount; leaf++) {
+            weight[leaf] = keys[leaf] >>> SYMBOL_BITS;
+        }
+        int nextLeaf = 0;
+        int nextMerged = leafCount;
+        for (int node = leafCount; node < weight.length; node++) {
+            int first = nextLeaf < leafCount && (nextMerged == node || weight[nextLeaf] <= weight[nextMerged])
+                    ? nextLeaf++ : nextMerged++;
+            int second = nextLeaf < leafCount && (nextMerged == node || weight[nextLeaf] <= weight[nextMerged])
+                    ? nextLeaf++ : nextMerged++;
+            weight[node] = weight[first] + weight[second];
+            parent[first] = node;
+            parent[second] = node;
+        }
+
+        // Step 3: Parents come after their children, so one backward pass gives every depth
+        int[] depth = new int[weight.length];
+        for (int node = weight.length - 2; node >= 0; node--) {
+            depth[node] = depth[parent[node]] + 1;
+        }
+        for (int leaf = 0; leaf < leafCount; leaf++) {
+            if (depth[leaf] > HuffmanDecoder.MAX_CODE_LENGTH) {
+                return false;
+            }
+            codeLengths[(int) (keys[leaf] & (MAX_ALPHABET - 1))] = depth[leaf];
+        }
+        return true;
+    }
+
+    /**
+     * Append the red, green and blue code of every packed pixel.
+     */
+    public static void encodeChannels(int[] pixels, CanonicalHuffmanCode code, BitWriter bitWriter) {
+        int[] codes = code.getCodes();
+        int[] codeLengths = code.getCodeLengths();
+        for (int rgb : pixels) {
+            int red = (rgb >> 16) & 0xFF;
+            int green = (rgb >> 8) & 0xFF;
+            int blue = rgb & 0xFF;
+            bitWriter.writeBits(codes[red], codeLengths[red]);
+            bitWriter.writeBits(codes[green], codeLengths[green]);
+            bitWriter.writeBits(codes[blue], codeLengths[blue]);
+        }
+    }
+
+    public static void encode(int[] symbols, CanonicalHuffmanCode code, BitWriter bitWriter) {
+        int[] codes = code.getCodes();
+        int[] codeLengths = code.getCodeLengths();
+        for (int symbol : symbols) {
+            bitWriter.writeBits(codes[symbol], codeLengths[symbol]);
+        }
+    }
+
+    /**
+     * Append every run of equal symbols as the symbol, followed by a run code
+     * and the repeat count when it repeats.
+     */
+    public static void encodeRuns(int[] symbols, int alphabetSize, CanonicalHuffmanCode code,
+            BitWriter bitWriter) {
+        int[] codes = code.getCodes();
+        int[] codeLengths = code.getCodeLengths();
+        for (int i = 0; i < symbols.length;) {
+            int symbol = symbols[i];
+            int end = runEnd(symbols, i);
+            bitWriter.writeBits(codes[symbol], codeLengths[symbol]);
+            if (end - i > 1) {
+                int repeats = end - i - 1;
+                int runBits = 31 - Integer.numberOfLeadingZeros(repeats);
+                bitWriter.writeBits(codes[alphabetSize + runBits], codeLengths[alphabetSize + runBits]);
+                bitWriter.writeBits(repeats, runBits);
+            }
+            i = end;
+        }
+    }
+
+    /**
+     * Decode symbols written by encodeRuns into all of output, filling each
+     * run in one go.
+     */
+    public static void decodeRuns(HuffmanDecoder decoder, BitReader bitReader, int alphabetSize, int[] output)
+            throws IOException {
+        for (int i = 0; i < output.length;) {
+            int symbol = decoder.decodeSymbol(bitReader);
+            if (symbol < alphabetSize) {
+                output[i++] = symbol;
+                continue;
+            }
+            int runBits = symbol - alphabetSize;
+            int repeats = (1 << runBits) | (runBits > 0 ? bitReader.readBits(runBits) : 0);
+            if (i == 0 || repeats > output.length - i) {
+                throw new IOException("Corrupt run of " + repeats + " symbols at " + i);
+            }
+            Arrays.fill(output, i, i + repeats, output[i - 1]);
+            i += repeats;
+        }
+    }
+
+    /**
+     * Decode symbols into output[from] to output[to - 1].
+     */
+    public static void decode(HuffmanDecoder decoder, BitReader bitReader, int[] output, int from, int to) {
+        for (int i = from; i < to; i++) {
+            output[i] = decoder.decodeSymbol(bitReader);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+public class HuffmanDecoder {
+    // longest code the encoders may emit, see EntropyCoder.buildCodeLengths
+    public static final int MAX_CODE_LENGTH = 24;
+
+    // codes up to this length resolve with a single table lookup
+    static final int PRIMARY_BITS = 11;
+
+    // table entries are (symbol << 5) | codeLength, or for a primary slot
+    // shared by longer codes: SUBTABLE | (subtableOffset << 5) | subtableBits
+    private static final int SUBTABLE = 0x80000000;
+
+    private final int[] table;
+
+    /**
+     * Build the lookup tables from the code of every symbol. Symbols with a
+     * code length of 0 do not occur in the data.
+     */
+    public HuffmanDecoder(int[] codes, int[] codeLengths) {
+        int primarySize = 1 << PRIMARY_BITS;
+
+        // Step 1: Find how many extra bits each primary slot needs for its long codes
+        int[] subtableBits = new int[primarySize];
+        for (int symbol = 0; symbol < codeLengths.length; symbol++) {
+            int length = codeLengths[symbol];
+            if (length > MAX_CODE_LENGTH) {
+                throw new IllegalArgumentException("Huffman code longer than " + MAX_CODE_LENGTH + " bits");
+            }
+            if (length > PRIMARY_BITS) {
+                int prefix = codes[symbol] >>> (length - PRIMARY_BITS);
+                subtableBits[prefix] = Math.max(subtableBits[prefix], length - PRIMARY_BITS);
+            }
+        }
+
+        // Step 2: Lay the secondary tables out after the primary table
+        int tableSize = primarySize;
+        for (int bits : subtableBits) {
+            if (bits > 0) {
+                tableSize += 1 << bits;
+            }
+        }
+        table = new int[tableSize];
+
+        int nextSubtable = primarySize;
+        for (int prefix = 0; prefix < primarySize; prefix++) {
+            if (subtableBits[prefix] > 0) {
+                table[prefix] = SUBTABLE | (nextSubtable << 5) | subtableBits[prefix];
+                nextSubtable += 1 << subtableBits[prefix];
+            }
+        }
+
+        // Step 3: Fill every slot whose leading bits match a code
+        for (int symbol = 0; symbol < codeLengths.length; symbol++) {
+            int length = codeLengths[symbol];
+            if (length == 0) {
+                continue;
+            }
+            int entry = (symbol << 5) | length;
+            int code = codes[symbol];
+
+            if (length <= PRIMARY_BITS) {
+                int start = code << (PRIMARY_BITS - length);
+                int end = start + (1 << (PRIMARY_BITS - length));
+                for (int slot = start; slot < end; slot++) {
+                    table[slot] = entry;
+                }
+            } else {
+                int pointer = table[code >>> (length - PRIMARY_BITS)];
+                int bits = pointer & 0x1F;
+                int offset = (pointer & ~SUBTABLE) >>> 5;
+                int extraLength = length - PRIMARY_BITS;
+                int start = offset + ((code & ((1 << extraLength) - 1)) << (bits - extraLength));
+                int end = start + (1 << (bits - extraLength));
+                for (int slot = start; slot < end; slot++) {
+                    table[slot] = entry;
+                }
+            }
+        }
+    }
+
+    /**
+     * Decode one symbol, consuming exactly its code bits from the reader.
+     */
+    public int decodeSymbol(BitReader reader) {
+        int entry = table[reader.peekBits(PRIMARY_BITS)];
+        if (entry < 0) {
+            int bits = entry & 0x1F;
+            int offset = (entry & ~SUBTABLE) >>> 5;
+            entry = table[offset + (reader.peekBits(PRIMARY_BITS + bits) & ((1 << bits) - 1))];
+        }
+        reader.skipBits(entry & 0x1F);
+        return entry >>> 5;
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.File;
+import java.util.*;
+
+/**
+ * Compares the bit-at-a-time tree walk that Decompress used to do against the
+ * table-driven HuffmanDecoder, on the averaged color values of every image in
+ * Original/.
+ *
+ * Run with: java HuffmanDecoderBenchmark [iterations]
+ */
+public class HuffmanDecoderBenchmark {
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+
+        // Collect the symbol stream exactly as Utility.Compress produces it
+        List<Integer> symbolList = new ArrayList<>();
+        File[] files = new File("Original/").listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile()) {
+                    PixelBuffer pixels = new ImagetoPixelConverter(file.getPath()).getPixelBuffer();
+                    for (int rgb : Utility.averagePixels(pixels).getPixels()) {
+                        for (int shift = 16; shift >= 0; shift -= 8) {
+                            symbolList.add((rgb >> shift) & 0xFF);
+                        }
+                    }
+                }
+            }
+        }
+        if (symbolList.isEmpty()) {
+            System.out.println("No images found in Original/");
+            return;
+        }
+        int[] symbols = new int[symbolList.size()];
+        for (int i = 0; i < symbols.length; i++) {
+            symbols[i] = symbolList.get(i);
+        }
+        int[] colorFrequency = new int[256];
+        EntropyCoder.count(symbols, colorFrequency);
+
+        // Encode once, then decode the same bytes with both decoders
+        CanonicalHuffmanCode huffmanCode = EntropyCoder.buildCode(colorFrequency);
+        int[] codes = huffmanCode.getCodes();
+        int[] codeLengths = huffmanCode.getCodeLengths();
+
+        BitWriter bitWriter = new BitWriter(symbols.length);
+        EntropyCoder.encode(symbols, huffmanCode, bitWriter);
+        byte[] data = bitWriter.toByteArray();
+
+        Node root = buildTree(codes, codeLengths);
+        HuffmanDecoder decoder = new HuffmanDecoder(codes, codeLengths);
+        int[] output = new int[symbols.length];
+
+        // warm up both paths before timing
+        for (int i = 0; i < 5; i++) {
+            decodeTreeWalk(root, data, output);
+            decodeTable(decoder, data, output);
+        }
+
+        long treeWalkTime = Long.MAX_VALUE;
+        long tableTime = Long.MAX_VALUE;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            decodeTreeWalk(root, data, output);
+            treeWalkTime = Math.min(treeWalkTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            decodeTable(decoder, data, output);
+            tableTime = Math.min(tableTime, System.nanoTime() - start);
+        }
+        if (!Arrays.equals(symbols, output)) {
+            throw new IllegalStateException("Table decoder output does not match the input symbols");
+        }
+
+        System.out.println("Symbols decoded: " + symbols.length + " (" + data.length + " bytes)");
+        System.out.printf("Tree walk : %.2f ns/symbol%n", (double) treeWalkTime / symbols.length);
+        System.out.printf("Table     : %.2f ns/symbol%n", (double) tableTime / symbols.length);
+        System.out.printf("Speedup   : %.2fx%n", (double) treeWalkTime / tableTime);
+    }
+
+    static void decodeTable(HuffmanDecoder decoder, byte[] data, int[] output) {
+        BitReader bitReader = new BitReader(data);
+        for (int i = 0; i < output.length; i++) {
+            output[i] = decoder.decodeSymbol(bitReader);
+        }
+    }
+
+    static void decodeTreeWalk(Node root, byte[] data, int[] output) {
+        int currentBit = 0;
+        for (int i = 0; i < output.length; i++) {
+            Node currentNode = root;
+            while (currentNode.symbol < 0) {
+                int bit = (data[currentBit >> 3] >> (7 - (currentBit % 8))) & 1;
+                currentBit++;
+                currentNode = bit == 0 ? currentNode.left : currentNode.right;
+            }
+            output[i] = currentNode.symbol;
+        }
+    }
+
+    static class Node {
+        int symbol = -1;
+        Node left;
+        Node right;
+    }
+
+    static Node buildTree(int[] codes, int[] codeLengths) {
+        Node root = new Node();
+        for (int symbol = 0; symbol < codeLengths.length; symbol++) {
+            Node node = root;
+            for (int bit = codeLengths[symbol] - 1; bit >= 0; bit--) {
+                if (((codes[symbol] >>> bit) & 1) == 0) {
+                    if (node.left == null) {
+                        node.left = new Node();
+                    }
+                    node = node.left;
+                } else {
+                    if (node.right == null) {
+                        node.right = new Node();
+                    }
+                    node = node.right;
+                }
+            }
+            if (codeLengths[symbol] > 0) {
+                node.symbol = symbol;
+            }
+        }
+        return root;
+    }
+}
@@ -13,30 +13,33 @@ public class MAECalculator {
     }
 
     public static double calculateMAE(BufferedImage img1, BufferedImage img2) {
+        return calculateMAE(PixelBuffer.fromImage(img1), PixelBuffer.fromImage(img2));
+    }
+
+    public static double calculateMAE(PixelBuffer img1, PixelBuffer img2) {
         int width = img1.getWidth();
         int height = img1.getHeight();
+        int[] pixels1 = img1.getPixels();
+        int[] pixels2 = img2.getPixels();
         
-        double totalError = 0.0;
+        long totalError = 0;
         
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int pixel1 = img1.getRGB(x, y);
-                int pixel2 = img2.getRGB(x, y);
-                
-                int r1 = (pixel1 >> 16) & 0xFF;
-                int g1 = (pixel1 >> 8) & 0xFF;
-                int b1 = pixel1 & 0xFF;
-                
-                int r2 = (pixel2 >> 16) & 0xFF;
-                int g2 = (pixel2 >> 8) & 0xFF;
-                int b2 = pixel2 & 0xFF;
-                
-                double error = Math.abs(r1 - r2) + Math.abs(g1 - g2) + Math.abs(b1 - b2);
-                totalError += error;
-            }
+        for (int i = 0; i < pixels1.length; i++) {
+            int pixel1 = pixels1[i];
+            int pixel2 = pixels2[i];
+            
+            int r1 = (pixel1 >> 16) & 0xFF;
+            int g1 = (pixel1 >> 8) & 0xFF;
+            int b1 = pixel1 & 0xFF;
+            
+            int r2 = (pixel2 >> 16) & 0xFF;
+            int g2 = (pixel2 >> 8) & 0xFF;
+            int b2 = pixel2 & 0xFF;
+            
+            totalError += Math.abs(r1 - r2) + Math.abs(g1 - g2) + Math.abs(b1 - b2);
         }
         
-        double mae = totalError / (width * height * 3); // 3 channels (RGB)
+        double mae = (double) totalError / ((long) width * height * 3); // 3 channels (RGB)
         return mae;
     }
 }
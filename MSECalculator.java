@@ -30,32 +30,36 @@ public class MSECalculator {
 
     // Calculate the Mean Squared Error (MSE) between two images
     public static double calculateMSE(BufferedImage image1, BufferedImage image2) {
+        return calculateMSE(PixelBuffer.fromImage(image1), PixelBuffer.fromImage(image2));
+    }
+
+    public static double calculateMSE(PixelBuffer image1, PixelBuffer image2) {
         int width = image1.getWidth();
         int height = image1.getHeight();
+        int[] pixels1 = image1.getPixels();
+        int[] pixels2 = image2.getPixels();
         long mse = 0;
 
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int pixel1 = image1.getRGB(x, y);
-                int pixel2 = image2.getRGB(x, y);
+        for (int i = 0; i < pixels1.length; i++) {
+            int pixel1 = pixels1[i];
+            int pixel2 = pixels2[i];
 
-                int r1 = (pixel1 >> 16) & 0xFF;
-                int g1 = (pixel1 >> 8) & 0xFF;
-                int b1 = pixel1 & 0xFF;
+            int r1 = (pixel1 >> 16) & 0xFF;
+            int g1 = (pixel1 >> 8) & 0xFF;
+            int b1 = pixel1 & 0xFF;
 
-                int r2 = (pixel2 >> 16) & 0xFF;
-                int g2 = (pixel2 >> 8) & 0xFF;
-                int b2 = pixel2 & 0xFF;
+            int r2 = (pixel2 >> 16) & 0xFF;
+            int g2 = (pixel2 >> 8) & 0xFF;
+            int b2 = pixel2 & 0xFF;
 
-                int dr = r1 - r2;
-                int dg = g1 - g2;
-                int db = b1 - b2;
+            int dr = r1 - r2;
+            int dg = g1 - g2;
+            int db = b1 - b2;
 
-                mse += (dr * dr) + (dg * dg) + (db * db);
-            }
+            mse += (dr * dr) + (dg * dg) + (db * db);
         }
 
         // Calculate the mean squared error
-        return (double) mse / (width * height);
+        return (double) mse / ((long) width * height);
     }
 }
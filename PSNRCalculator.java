@@ -22,31 +22,28 @@ public class PSNRCalculator {
     }
 
     public static double calculatePSNR(BufferedImage originalImage, BufferedImage decompressedImage) {
+        return calculatePSNR(PixelBuffer.fromImage(originalImage), PixelBuffer.fromImage(decompressedImage));
+    }
+
+    public static double calculatePSNR(PixelBuffer originalImage, PixelBuffer decompressedImage) {
         int width = originalImage.getWidth();
         int height = originalImage.getHeight();
+        int[] originalPixels = originalImage.getPixels();
+        int[] decompressedPixels = decompressedImage.getPixels();
         
         // Calculate the mean squared error (MSE) between original and decompressed images
-        double mse = 0.0;
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int pixelOriginal = originalImage.getRGB(x, y);
-                int pixelDecompressed = decompressedImage.getRGB(x, y);
-
-                int rOriginal = (pixelOriginal >> 16) & 0xFF;
-                int gOriginal = (pixelOriginal >> 8) & 0xFF;
-                int bOriginal = pixelOriginal & 0xFF;
-
-                int rDecompressed = (pixelDecompressed >> 16) & 0xFF;
-                int gDecompressed = (pixelDecompressed >> 8) & 0xFF;
-                int bDecompressed = pixelDecompressed & 0xFF;
-
-                double squaredError = Math.pow(rOriginal - rDecompressed, 2) +
-                                      Math.pow(gOriginal - gDecompressed, 2) +
-                                      Math.pow(bOriginal - bDecompressed, 2);
-                mse += squaredError;
-            }
+        long squaredErrorSum = 0;
+        for (int i = 0; i < originalPixels.length; i++) {
+            int pixelOriginal = originalPixels[i];
+            int pixelDecompressed = decompressedPixels[i];
+
+            int dr = ((pixelOriginal >> 16) & 0xFF) - ((pixelDecompressed >> 16) & 0xFF);
+            int dg = ((pixelOriginal >> 8) & 0xFF) - ((pixelDecompressed >> 8) & 0xFF);
+            int db = (pixelOriginal & 0xFF) - (pixelDecompressed & 0xFF);
+
+            squaredErrorSum += dr * dr + dg * dg + db * db;
         }
-        mse /= (width * height);
+        double mse = (double) squaredErrorSum / ((long) width * height);
 
         // Calculate the maximum possible pixel value
         double maxPixelValue = 255.0;
@@ -0,0 +1,236 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A palette and Huffman code shared by a corpus of similar images, for
+ * UtilityColorQuantization's corpus mode. It is built once from a sample of
+ * the batch and stored once as a dictionary file; each compressed image then
+ * only stores the dictionary's id, and compressing it skips the octree and
+ * the Huffman construction.
+ *
+ * Dictionaries are cached in-process by id, so a decoder loads each one once
+ * and reuses it for every file that refers to it. An id that is not cached is
+ * looked up as DIRECTORY/&lt;id&gt;.dict, where save() writes it. Two
+ * dictionaries with the same id but different tables are rejected rather
+ * than mixed up. File layout, all integers big-endian:
+ *
+ * <pre>
+ * magic, the ASCII bytes "CSID" (int)
+ * format version, currently 1 (byte)
+ * id: CRC32 of the rest of the file (int)
+ * colormap, as UtilityColorQuantization.writeColormap writes it
+ * Huffman code lengths, as CanonicalHuffmanCode.writeTo writes them
+ * </pre>
+ */
+public class PaletteDictionary {
+    public static final int MAGIC = 0x43534944;
+    public static final int VERSION = 1;
+
+    // where dictionaries that are not in the cache are looked up by id
+    static final String DIRECTORY = "Dictionaries/";
+
+    private static final ConcurrentHashMap<Integer, PaletteDictionary> CACHE = new ConcurrentHashMap<>();
+
+    private final int id;
+    private final int[] colormap;
+    private final CanonicalHuffmanCode huffmanCode;
+    private final byte[] tables;
+    // built once and shared by every image: both are only read once filled
+    private final UtilityColorQuantization.InverseColormap inverseColormap;
+    private final HuffmanDecoder decoder;
+
+    private PaletteDictionary(int[] colormap, CanonicalHuffmanCode huffmanCode) throws IOException {
+        this.colormap = colormap;
+        this.huffmanCode = huffmanCode;
+
+        ByteArrayOutputStream tableBytes = new ByteArrayOutputStream();
+        DataOutputStream tableOutput = new DataOutputStream(tableBytes);
+        UtilityColorQuantization.writeColormap(tableOutput, colormap);
+        huffmanCode.writeTo(tableOutput);
+        this.tables = tableBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(tables);
+        this.id = (int) crc.getValue();
+
+        this.inverseColormap = new UtilityColorQuantization.InverseColormap(colormap);
+        inverseColormap.fill();
+        this.decoder = huffmanCode.createDecoder();
+    }
+
+    /**
+     * Build a dictionary of at most maxColors colors from a sample of every
+     * image, and cache it. Every color gets a code, even one the sample
+     * never maps to, so any image can be compressed with the dictionary.
+     */
+    public static PaletteDictionary build(List<PixelBuffer> images, int maxColors,
+            UtilityColorQuantization.Sampling sampling) throws IOException {
+        if (images.isEmpty()) {
+            throw new IllegalArgumentException("No images to build a dictionary from");
+        }
+
+        // Step 1: Pool the samples of every image
+        int[][] samples = new int[images.size()][];
+        long total = 0;
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = sampling.sample(images.get(i));
+            total += samples[i].length;
+        }
+        if (total > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Sample of " + total + " pixels is too large, sample more sparsely");
+        }
+        int[] pooled = new int[(int) total];
+        int offset = 0;
+        for (int[] sample : samples) {
+            System.arraycopy(sample, 0, pooled, offset, sample.length);
+            offset += sample.length;
+        }
+
+        // Step 2: Build the palette from the pooled samples
+        UtilityColorQuantization.Cube cube = new UtilityColorQuantization.Cube(new PixelBuffer(pooled.length, 1,
+                pooled), maxColors);
+        cube.classification();
+        cube.reduction();
+        int[] assignment = cube.assignment();
+
+        // Step 3: Build the Huffman code from how often the samples use each color
+        int[] colorFrequency = new int[cube.colormap.length];
+        EntropyCoder.count(assignment, colorFrequency);
+        for (int i = 0; i < colorFrequency.length; i++) {
+            colorFrequency[i]++;
+        }
+        return cache(new PaletteDictionary(cube.colormap, EntropyCoder.buildCode(colorFrequency)));
+    }
+
+    /**
+     * Write the dictionary to fileName(getId()), where forId finds it,
+     * creating DIRECTORY if needed. Returns the file name.
+     */
+    public String save() throws IOException {
+        File directory = new File(DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + DIRECTORY);
+        }
+        String fileName = fileName(id);
+        write(fileName);
+        return fileName;
+    }
+
+    public void write(String fileName) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(id);
+            out.write(tables);
+        }
+    }
+
+    /**
+     * Read and validate a dictionary file, and cache it. A dictionary that is
+     * already cached under the same id and with the same tables is returned
+     * instead.
+     */
+    public static PaletteDictionary read(String fileName) throws IOException {
+        byte[] bytes;
+        try (InputStream in = new FileInputStream(fileName)) {
+            bytes = in.readAllBytes();
+        }
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (bytes.length < 9 || input.readInt() != MAGIC) {
+            throw new IOException(fileName + " is not a palette dictionary");
+        }
+        int version = input.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported dictionary version " + version);
+        }
+        int id = input.readInt();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 9, bytes.length - 9);
+        if ((int) crc.getValue() != id) {
+            throw new IOException("CRC mismatch, " + fileName + " is corrupt");
+        }
+        PaletteDictionary cached = CACHE.get(id);
+        if (cached != null) {
+            checkSameTables(cached, bytes, 9);
+            return cached;
+        }
+
+        int[] colormap = UtilityColorQuantization.readColormap(input);
+        CanonicalHuffmanCode huffmanCode = CanonicalHuffmanCode.readFrom(input, colormap.length);
+        if (input.available() != 0) {
+            throw new IOException("Corrupt dictionary: " + input.available() + " trailing bytes");
+        }
+        for (int length : huffmanCode.getCodeLengths()) {
+            if (length == 0) {
+                throw new IOException("Corrupt dictionary: a color has no code");
+            }
+        }
+        return cache(new PaletteDictionary(colormap, huffmanCode));
+    }
+
+    /**
+     * The dictionary with the given id, from the cache or else from
+     * DIRECTORY.
+     */
+    public static PaletteDictionary forId(int id) throws IOException {
+        PaletteDictionary dictionary = CACHE.get(id);
+        if (dictionary != null) {
+            return dictionary;
+        }
+        String fileName = fileName(id);
+        if (!new File(fileName).isFile()) {
+            throw new IOException("Dictionary " + fileName + " not found");
+        }
+        dictionary = read(fileName);
+        if (dictionary.id != id) {
+            throw new IOException(fileName + " holds dictionary " + Integer.toHexString(dictionary.id));
+        }
+        return dictionary;
+    }
+
+    /**
+     * The file forId looks for, DIRECTORY followed by the id in hex.
+     */
+    public static String fileName(int id) {
+        return String.format("%s%08x.dict", DIRECTORY, id);
+    }
+
+    private static PaletteDictionary cache(PaletteDictionary dictionary) throws IOException {
+        PaletteDictionary cached = CACHE.putIfAbsent(dictionary.id, dictionary);
+        if (cached == null) {
+            return dictionary;
+        }
+        checkSameTables(cached, dictionary.tables, 0);
+        return cached;
+    }
+
+    // the id is only a CRC32, so a cache hit must also hold the same tables
+    private static void checkSameTables(PaletteDictionary cached, byte[] tables, int offset) throws IOException {
+        if (!Arrays.equals(cached.tables, 0, cached.tables.length, tables, offset, tables.length)) {
+            throw new IOException(String.format("Dictionary id %08x collides with a different cached dictionary",
+                    cached.id));
+        }
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int[] getColormap() {
+        return colormap;
+    }
+
+    public CanonicalHuffmanCode getHuffmanCode() {
+        return huffmanCode;
+    }
+
+    UtilityColorQuantization.InverseColormap getInverseColormap() {
+        return inverseColormap;
+    }
+
+    HuffmanDecoder getDecoder() {
+        return decoder;
+    }
+}
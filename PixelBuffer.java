@@ -0,0 +1,188 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * An image held as one packed 0xRRGGBB int per pixel in a single row-major
+ * array. This costs 4 bytes per pixel, where int[width][height][3] costs an
+ * int[3] object (about 32 bytes with its reference) per pixel.
+ */
+public class PixelBuffer {
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+
+    public PixelBuffer(int width, int height) {
+        this(width, height, new int[Math.multiplyExact(width, height)]);
+    }
+
+    /**
+     * @param width  width in pixels, 0 for the averaged image of a source
+     *               narrower than one block
+     * @param height height in pixels, likewise
+     */
+    public PixelBuffer(int width, int height, int[] pixels) {
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Negative image size " + width + "x" + height);
+        }
+        int size = Math.multiplyExact(width, height);
+        if (pixels.length != size) {
+            throw new IllegalArgumentException("Expected " + size + " pixels, got " + pixels.length);
+        }
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * The backing array, pixel (x, y) is at index y * width + x.
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    public int getRGB(int x, int y) {
+        return pixels[y * width + x];
+    }
+
+    public void setRGB(int x, int y, int rgb) {
+        pixels[y * width + x] = rgb & 0xFFFFFF;
+    }
+
+    public static int pack(int red, int green, int blue) {
+        return (red << 16) | (green << 8) | blue;
+    }
+
+    /**
+     * Copy an image into a new buffer. TYPE_INT_RGB, TYPE_INT_ARGB and
+     * TYPE_3BYTE_BGR images (the type ImageIO returns for 24-bit PNG and JPEG)
+     * are read straight from their data buffer; other types go through the
+     * bulk getRGB call.
+     */
+    public static PixelBuffer fromImage(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        PixelBuffer buffer = new PixelBuffer(width, height);
+        int[] pixels = buffer.pixels;
+        WritableRaster raster = image.getRaster();
+
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+                if (isWholeRaster(raster)) {
+                    SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+                    DataBufferInt dataBuffer = (DataBufferInt) raster.getDataBuffer();
+                    int[] data = dataBuffer.getData();
+                    int stride = sampleModel.getScanlineStride();
+                    for (int y = 0; y < height; y++) {
+                        int source = dataBuffer.getOffset() + y * stride;
+                        int target = y * width;
+                        for (int x = 0; x < width; x++) {
+                            pixels[target + x] = data[source + x] & 0xFFFFFF;
+                        }
+                    }
+                    return buffer;
+                }
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR:
+                if (isWholeRaster(raster)) {
+                    ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+                    DataBufferByte dataBuffer = (DataBufferByte) raster.getDataBuffer();
+                    byte[] data = dataBuffer.getData();
+                    int stride = sampleModel.getScanlineStride();
+                    int pixelStride = sampleModel.getPixelStride();
+                    int[] bandOffsets = sampleModel.getBandOffsets();
+                    int redOffset = bandOffsets[0];
+                    int greenOffset = bandOffsets[1];
+                    int blueOffset = bandOffsets[2];
+                    for (int y = 0; y < height; y++) {
+                        int source = dataBuffer.getOffset() + y * stride;
+                        int target = y * width;
+                        for (int x = 0; x < width; x++) {
+                            pixels[target + x] = ((data[source + redOffset] & 0xFF) << 16)
+                                    | ((data[source + greenOffset] & 0xFF) << 8)
+                                    | (data[source + blueOffset] & 0xFF);
+                            source += pixelStride;
+                        }
+                    }
+                    return buffer;
+                }
+                break;
+            default:
+                break;
+        }
+
+        // Any other image type: let the color model convert a band of rows at a time
+        int bandHeight = Math.max(1, (1 << 16) / Math.max(width, 1));
+        for (int y = 0; y < height; y += bandHeight) {
+            int rows = Math.min(bandHeight, height - y);
+            image.getRGB(0, y, width, rows, pixels, y * width, width);
+        }
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] &= 0xFFFFFF;
+        }
+        return buffer;
+    }
+
+    /**
+     * Copy the buffer into a new TYPE_INT_RGB image by writing its data
+     * buffer directly.
+     */
+    public BufferedImage toImage() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        System.arraycopy(pixels, 0, data, 0, pixels.length);
+        return image;
+    }
+
+    // true when the raster covers its whole data buffer, i.e. is not a sub-image
+    private static boolean isWholeRaster(WritableRaster raster) {
+        return raster.getParent() == null
+                && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0
+                && raster.getDataBuffer().getNumBanks() == 1;
+    }
+
+    /**
+     * Adapter from the int[x][y][channel] layout used by the older API.
+     */
+    public static PixelBuffer fromArray(int[][][] pixelData) {
+        int width = pixelData.length;
+        int height = pixelData[0].length;
+        PixelBuffer buffer = new PixelBuffer(width, height);
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                int[] pixel = pixelData[x][y];
+                buffer.pixels[y * width + x] = pack(pixel[0], pixel[1], pixel[2]);
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Adapter to the int[x][y][channel] layout used by the older API.
+     */
+    public int[][][] toArray() {
+        int[][][] pixelData = new int[width][height][3];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int rgb = pixels[y * width + x];
+                pixelData[x][y][0] = (rgb >> 16) & 0xFF;
+                pixelData[x][y][1] = (rgb >> 8) & 0xFF;
+                pixelData[x][y][2] = rgb & 0xFF;
+            }
+        }
+        return pixelData;
+    }
+}
@@ -0,0 +1,299 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads the rows of a non-interlaced PNG file top to bottom in a single pass,
+ * inflating each row once and keeping only the previous row for unfiltering.
+ * StreamingCompressor uses it instead of ImageReader.setSourceRegion, which
+ * makes the PNG reader inflate every row above the region again for each
+ * band.
+ *
+ * Only the PNG types that ImageIO hands to PixelBuffer without a color
+ * conversion are read: 8-bit RGB and RGBA (the alpha is dropped) and palette
+ * images of any bit depth. open returns null for any other file, and the
+ * caller falls back to ImageReader.
+ */
+public class PngRowReader implements Closeable {
+    private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+    private static final int IHDR = 0x49484452;
+    private static final int PLTE = 0x504C5445;
+    private static final int IDAT = 0x49444154;
+    private static final int IEND = 0x49454E44;
+
+    private static final int COLOR_RGB = 2;
+    private static final int COLOR_PALETTE = 3;
+    private static final int COLOR_RGBA = 6;
+
+    private final DataInputStream file;
+    private final int width;
+    private final int height;
+    private final int colorType;
+    private final int bitDepth;
+    private final int[] palette;
+    private final int bytesPerPixel;
+    private final Inflater inflater = new Inflater();
+    private final DataInputStream rows;
+
+    // the current and previous filtered rows, each led by one filter type byte
+    private byte[] row;
+    private byte[] previousRow;
+    private int rowsRead;
+
+    private PngRowReader(DataInputStream file, int width, int height, int colorType, int bitDepth,
+            int[] palette, int firstIdatLength) {
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.colorType = colorType;
+        this.bitDepth = bitDepth;
+        this.palette = palette;
+        this.bytesPerPixel = colorType == COLOR_RGB ? 3 : colorType == COLOR_RGBA ? 4 : 1;
+        long rowBytes = colorType == COLOR_PALETTE ? ((long) width * bitDepth + 7) / 8
+                : (long) width * bytesPerPixel;
+        this.row = new byte[Math.toIntExact(rowBytes + 1)];
+        this.previousRow = new byte[row.length];
+        this.rows = new DataInputStream(new InflaterInputStream(new IdatStream(firstIdatLength), inflater, 1 << 16));
+    }
+
+    /**
+     * Open a PNG file for row-sequential reading, or return null when the
+     * file is not a PNG of a type this reader handles.
+     */
+    public static PngRowReader open(String fileName) throws IOException {
+        DataInputStream file = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 16));
+        try {
+            PngRowReader reader = readHeader(file);
+            if (reader == null) {
+                file.close();
+            }
+            return reader;
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private static PngRowReader readHeader(DataInputStream file) throws IOException {
+        try {
+            if (file.readLong() != SIGNATURE) {
+                return null;
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+        if (file.readInt() != 13 || file.readInt() != IHDR) {
+            throw new IOException("PNG file does not start with an IHDR chunk");
+        }
+        int width = file.readInt();
+        int height = file.readInt();
+        int bitDepth = file.readUnsignedByte();
+        int colorType = file.readUnsignedByte();
+        int compression = file.readUnsignedByte();
+        int filter = file.readUnsignedByte();
+        int interlace = file.readUnsignedByte();
+        file.readInt(); // CRC
+        if (width <= 0 || height <= 0 || compression != 0 || filter != 0) {
+            throw new IOException("Invalid PNG header");
+        }
+        boolean supported = interlace == 0
+                && ((colorType == COLOR_RGB || colorType == COLOR_RGBA) && bitDepth == 8
+                        || colorType == COLOR_PALETTE && (bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8));
+        if (!supported) {
+            return null;
+        }
+
+        // Skip to the first IDAT chunk, keeping the palette
+        int[] palette = null;
+        while (true) {
+            int length = file.readInt();
+            int type = file.readInt();
+            if (length < 0) {
+                throw new IOException("Invalid PNG chunk length");
+            }
+            if (type == IDAT) {
+                if (colorType == COLOR_PALETTE && palette == null) {
+                    throw new IOException("PNG palette image has no PLTE chunk");
+                }
+                return new PngRowReader(file, width, height, colorType, bitDepth, palette, length);
+            }
+            if (type == IEND) {
+                throw new IOException("PNG file has no image data");
+            }
+            if (type == PLTE && colorType == COLOR_PALETTE) {
+                if (length == 0 || length % 3 != 0 || length / 3 > 1 << bitDepth) {
+                    throw new IOException("Invalid PNG palette");
+                }
+                // indices past the end of the palette read as its last entry, as in ImageIO
+                palette = new int[1 << bitDepth];
+                for (int i = 0; i < length / 3; i++) {
+                    palette[i] = PixelBuffer.pack(file.readUnsignedByte(), file.readUnsignedByte(),
+                            file.readUnsignedByte());
+                }
+                Arrays.fill(palette, length / 3, palette.length, palette[length / 3 - 1]);
+            } else {
+                file.skipNBytes(length);
+            }
+            file.readInt(); // CRC
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Decode the next 'count' rows into 'pixels' as packed RGB, starting at
+     * 'offset', one row of 'width' pixels after another.
+     */
+    public void readRows(int[] pixels, int offset, int count) throws IOException {
+        if (count > height - rowsRead) {
+            throw new IllegalArgumentException("Only " + (height - rowsRead) + " rows are left");
+        }
+        for (int y = 0; y < count; y++) {
+            byte[] swap = previousRow;
+            previousRow = row;
+            row = swap;
+            try {
+                rows.readFully(row);
+            } catch (EOFException e) {
+                throw new IOException("PNG image data ends at row " + rowsRead);
+            }
+            unfilter();
+            convertRow(pixels, offset + y * width);
+            rowsRead++;
+        }
+    }
+
+    // undo the row filter in place, against the previous row (still zero for the first)
+    private void unfilter() throws IOException {
+        byte[] current = row;
+        byte[] above = previousRow;
+        int bpp = bytesPerPixel;
+        int length = current.length;
+        switch (current[0]) {
+            case 0:
+                break;
+            case 1:
+                for (int i = 1 + bpp; i < length; i++) {
+                    current[i] += current[i - bpp];
+                }
+                break;
+            case 2:
+                for (int i = 1; i < length; i++) {
+                    current[i] += above[i];
+                }
+                break;
+            case 3:
+                for (int i = 1; i < length; i++) {
+                    int left = i > bpp ? current[i - bpp] & 0xFF : 0;
+                    current[i] += (left + (above[i] & 0xFF)) >>> 1;
+                }
+                break;
+            case 4:
+                for (int i = 1; i < length; i++) {
+                    int left = i > bpp ? current[i - bpp] & 0xFF : 0;
+                    int up = above[i] & 0xFF;
+                    int upLeft = i > bpp ? above[i - bpp] & 0xFF : 0;
+                    int estimate = left + up - upLeft;
+                    int distanceLeft = Math.abs(estimate - left);
+                    int distanceUp = Math.abs(estimate - up);
+                    int distanceUpLeft = Math.abs(estimate - upLeft);
+                    int predictor = distanceLeft <= distanceUp && distanceLeft <= distanceUpLeft ? left
+                            : distanceUp <= distanceUpLeft ? up : upLeft;
+                    current[i] += predictor;
+                }
+                break;
+            default:
+                throw new IOException("Invalid PNG filter type " + current[0] + " at row " + rowsRead);
+        }
+    }
+
+    private void convertRow(int[] pixels, int target) {
+        byte[] data = row;
+        if (colorType == COLOR_PALETTE) {
+            int pixelsPerByte = 8 / bitDepth;
+            int mask = (1 << bitDepth) - 1;
+            for (int x = 0; x < width; x++) {
+                int shift = 8 - bitDepth * (x % pixelsPerByte + 1);
+                pixels[target + x] = palette[(data[1 + x / pixelsPerByte] >> shift) & mask];
+            }
+        } else {
+            int source = 1;
+            for (int x = 0; x < width; x++) {
+                pixels[target + x] = PixelBuffer.pack(data[source] & 0xFF, data[source + 1] & 0xFF,
+                        data[source + 2] & 0xFF);
+                source += bytesPerPixel;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        file.close();
+    }
+
+    /**
+     * The data of consecutive IDAT chunks as one stream, checking the CRC of
+     * each chunk as it ends.
+     */
+    private class IdatStream extends InputStream {
+        private final CRC32 crc = new CRC32();
+        private int remaining;
+        private boolean ended;
+
+        IdatStream(int firstLength) {
+            remaining = firstLength;
+            crc.update(new byte[] { 'I', 'D', 'A', 'T' });
+        }
+
+        // finish the current chunk and move to the next IDAT; false after the last one
+        private boolean nextChunk() throws IOException {
+            if ((int) crc.getValue() != file.readInt()) {
+                throw new IOException("CRC mismatch in PNG image data");
+            }
+            int length = file.readInt();
+            int type = file.readInt();
+            if (type != IDAT) {
+                ended = true;
+                return false;
+            }
+            if (length < 0) {
+                throw new IOException("Invalid PNG chunk length");
+            }
+            remaining = length;
+            crc.reset();
+            crc.update(new byte[] { 'I', 'D', 'A', 'T' });
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            while (remaining == 0) {
+                if (ended || !nextChunk()) {
+                    return -1;
+                }
+            }
+            int count = file.read(buffer, offset, Math.min(length, remaining));
+            if (count < 0) {
+                throw new EOFException("PNG file ends inside an IDAT chunk");
+            }
+            crc.update(buffer, offset, count);
+            remaining -= count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Prediction stage for the averaged image of Utility. The averaged channel
+ * values are multiples of 10 from 0 to 250, so each is coded as its level,
+ * the value divided by 10, and neighbouring blocks are so alike that the
+ * level is mostly predictable from the blocks left of and above it. Each row
+ * of blocks picks one of the filters below, like a PNG scanline, and every
+ * level is replaced by its residual: the level minus the prediction, modulo
+ * LEVELS so it stays one of LEVELS symbols. Levels outside the image count
+ * as 0.
+ *
+ * Payload layout:
+ *
+ * <pre>
+ * filter of each row of blocks (byte each),
+ * residuals, row by row, red, green then blue, Huffman coded
+ * </pre>
+ */
+public class PredictiveCoder {
+    // levels of an averaged channel value, 0 to 250 in steps of 10
+    public static final int LEVELS = 26;
+
+    public static final int FILTER_NONE = 0;
+    public static final int FILTER_LEFT = 1;
+    public static final int FILTER_UP = 2;
+    // floor of the mean of left and up
+    public static final int FILTER_AVERAGE = 3;
+    // whichever of left, up and upper left is nearest to left + up - upper left
+    public static final int FILTER_PAETH = 4;
+    // median edge detector of LOCO-I: the lesser or greater of left and up
+    // across an edge, else left + up - upper left
+    public static final int FILTER_MED = 5;
+    public static final int FILTERS = 6;
+
+    // cost of a level minus its prediction, offset by LEVELS - 1: the size
+    // of its residual read as -12 to 13
+    private static final int[] COST = new int[2 * LEVELS - 1];
+
+    // Paeth and MED predictions of every (left, up, upper left), indexed as
+    // left * LEVELS^2 + up * LEVELS + upper left, to save their branches
+    private static final byte[] PAETH = new byte[LEVELS * LEVELS * LEVELS];
+    private static final byte[] MED = new byte[LEVELS * LEVELS * LEVELS];
+
+    static {
+        for (int i = 0; i < COST.length; i++) {
+            int residual = Math.floorMod(i - (LEVELS - 1), LEVELS);
+            COST[i] = residual > LEVELS / 2 ? LEVELS - residual : residual;
+        }
+        for (int left = 0; left < LEVELS; left++) {
+            for (int up = 0; up < LEVELS; up++) {
+                for (int upLeft = 0; upLeft < LEVELS; upLeft++) {
+                    int neighbours = (left * LEVELS + up) * LEVELS + upLeft;
+                    PAETH[neighbours] = (byte) paeth(left, up, upLeft);
+                    MED[neighbours] = (byte) med(left, up, upLeft);
+                }
+            }
+        }
+    }
+
+    /**
+     * The level of every channel of every averaged pixel, red, green then
+     * blue.
+     */
+    public static int[] levels(PixelBuffer averaged) {
+        int[] pixels = averaged.getPixels();
+        int[] levels = new int[pixels.length * 3];
+        for (int i = 0; i < pixels.length; i++) {
+            levels[3 * i] = ((pixels[i] >> 16) & 0xFF) / 10;
+            levels[3 * i + 1] = ((pixels[i] >> 8) & 0xFF) / 10;
+            levels[3 * i + 2] = (pixels[i] & 0xFF) / 10;
+        }
+        return levels;
+    }
+
+    /**
+     * Residuals of the levels of a width x height image, with the filter
+     * chosen for each row stored in filters. A row takes the filter whose
+     * residuals, read as -12 to 13, have the smallest absolute sum, the
+     * heuristic PNG encoders use. All the filters are scored in one pass
+     * over the row.
+     */
+    public static int[] filter(int[] levels, int width, int height, byte[] filters) {
+        int[] residuals = new int[levels.length];
+        int rowLength = 3 * width;
+        for (int y = 0; y < height; y++) {
+            int start = y * rowLength;
+            boolean hasUp = y > 0;
+            long none = 0, left = 0, up = 0, average = 0, paeth = 0, med = 0;
+            for (int i = start; i < start + rowLength; i++) {
+                // levels left of, above and above left of this one
+                int a = i - 3 >= start ? levels[i - 3] : 0;
+                int b = hasUp ? levels[i - rowLength] : 0;
+                int c = hasUp && i - 3 >= start ? levels[i - rowLength - 3] : 0;
+                int neighbours = (a * LEVELS + b) * LEVELS + c;
+                int level = levels[i] + LEVELS - 1;
+                none += COST[level];
+                left += COST[level - a];
+                up += COST[level - b];
+                average += COST[level - ((a + b) >> 1)];
+                paeth += COST[level - PAETH[neighbours]];
+                med += COST[level - MED[neighbours]];
+            }
+            long[] costs = { none, left, up, average, paeth, med };
+            int bestFilter = FILTER_NONE;
+            for (int filter = 1; filter < FILTERS; filter++) {
+                if (costs[filter] < costs[bestFilter]) {
+                    bestFilter = filter;
+                }
+            }
+            filterRow(levels, residuals, start, rowLength, hasUp, bestFilter);
+            filters[y] = (byte) bestFilter;
+        }
+        return residuals;
+    }
+
+    // residuals of the row of levels starting at 'start'
+    private static void filterRow(int[] levels, int[] residuals, int start, int rowLength, boolean hasUp,
+            int filter) {
+        for (int i = start; i < start + rowLength; i++) {
+            int residual = levels[i] - predict(levels, i, start, rowLength, hasUp, filter);
+            residuals[i] = residual < 0 ? residual + LEVELS : residual;
+        }
+    }
+
+    /**
+     * Turn the residuals back into levels in place, given the filter of
+     * every row.
+     */
+    public static void unfilter(int[] values, int width, int height, byte[] filters) {
+        int rowLength = 3 * width;
+        for (int y = 0; y < height; y++) {
+            int start = y * rowLength;
+            for (int i = start; i < start + rowLength; i++) {
+                int level = values[i] + predict(values, i, start, rowLength, y > 0, filters[y]);
+                values[i] = level >= LEVELS ? level - LEVELS : level;
+            }
+        }
+    }
+
+    // prediction of levels[i] from the levels before it; the row holding i starts at 'start'
+    private static int predict(int[] levels, int i, int start, int rowLength, boolean hasUp, int filter) {
+        int left = i - 3 >= start ? levels[i - 3] : 0;
+        int up = hasUp ? levels[i - rowLength] : 0;
+        int upLeft = hasUp && i - 3 >= start ? levels[i - rowLength - 3] : 0;
+        switch (filter) {
+            case FILTER_LEFT:
+                return left;
+            case FILTER_UP:
+                return up;
+            case FILTER_AVERAGE:
+                return (left + up) >> 1;
+            case FILTER_PAETH:
+                return PAETH[(left * LEVELS + up) * LEVELS + upLeft];
+            case FILTER_MED:
+                return MED[(left * LEVELS + up) * LEVELS + upLeft];
+            default:
+                return 0;
+        }
+    }
+
+    private static int paeth(int left, int up, int upLeft) {
+        int estimate = left + up - upLeft;
+        int toLeft = Math.abs(estimate - left);
+        int toUp = Math.abs(estimate - up);
+        int toUpLeft = Math.abs(estimate - upLeft);
+        if (toLeft <= toUp && toLeft <= toUpLeft) {
+            return left;
+        }
+        return toUp <= toUpLeft ? up : upLeft;
+    }
+
+    private static int med(int left, int up, int upLeft) {
+        if (upLeft >= Math.max(left, up)) {
+            return Math.min(left, up);
+        }
+        if (upLeft <= Math.min(left, up)) {
+            return Math.max(left, up);
+        }
+        return left + up - upLeft;
+    }
+}
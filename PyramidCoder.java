@@ -0,0 +1,231 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Progressive layout for the averaged image of Utility: a pyramid of
+ * levels, each half the width and height of the one below it, stored
+ * coarsest first so a decoder can stop as soon as it has the resolution it
+ * wants. Level 0 is the averaged image, each pixel a 2x2 block of the
+ * original, and level k covers 2^(k+1) x 2^(k+1) original pixels per pixel.
+ *
+ * Like PredictiveCoder, every channel is coded as its level, the averaged
+ * value divided by 10. A pixel of level k + 1 is the rounded mean of the up
+ * to 4 pixels of level k it covers, its children. The coarsest level stores
+ * its levels; every other level stores each level minus that of its parent,
+ * modulo LEVELS, which is mostly 0 or close to it.
+ *
+ * Each level has its own Huffman code and CRC, so reading the coarse levels
+ * touches neither the bytes nor the checksum of the finer ones. Payload
+ * layout, all integers big-endian:
+ *
+ * <pre>
+ * number of levels n (byte)
+ * for levels n - 1 down to 0: table length, data length, CRC32 of the table
+ *     and data (int each)
+ * for levels n - 1 down to 0: Huffman code lengths, as
+ *     CanonicalHuffmanCode.writeTo writes them, then the levels or residuals,
+ *     row by row, red, green then blue, Huffman coded
+ * </pre>
+ */
+public class PyramidCoder {
+    public static final int LEVELS = PredictiveCoder.LEVELS;
+
+    // most pyramid levels a file can hold: level 15 is a single pixel for
+    // any image CompressedFile accepts
+    public static final int MAX_PYRAMID_LEVELS = 16;
+
+    /**
+     * Width (or height) of pyramid level 'level' of an averaged image
+     * 'size' pixels wide (or high).
+     */
+    public static int levelSize(int size, int level) {
+        return (int) ((size + (1L << level) - 1) >> level);
+    }
+
+    /**
+     * The number of levels actually stored for a requested count: levels
+     * stop once one is a single pixel.
+     */
+    public static int levelCount(int width, int height, int requested) {
+        int count = 1;
+        while (count < requested && (levelSize(width, count - 1) > 1 || levelSize(height, count - 1) > 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * The level above a width x height level, each pixel the rounded mean of
+     * its children, channel by channel.
+     */
+    public static int[] reduce(int[] levels, int width, int height) {
+        int coarseWidth = levelSize(width, 1);
+        int coarseHeight = levelSize(height, 1);
+        int[] coarse = new int[3 * coarseWidth * coarseHeight];
+        for (int y = 0; y < coarseHeight; y++) {
+            int rows = Math.min(2, height - 2 * y);
+            for (int x = 0; x < coarseWidth; x++) {
+                int columns = Math.min(2, width - 2 * x);
+                int children = rows * columns;
+                for (int channel = 0; channel < 3; channel++) {
+                    int sum = 0;
+                    for (int row = 0; row < rows; row++) {
+                        for (int column = 0; column < columns; column++) {
+                            sum += levels[3 * ((2 * y + row) * width + 2 * x + column) + channel];
+                        }
+                    }
+                    coarse[3 * (y * coarseWidth + x) + channel] = (sum + children / 2) / children;
+                }
+            }
+        }
+        return coarse;
+    }
+
+    /**
+     * Encode the levels of a width x height averaged image as a pyramid of
+     * levelCount(width, height, pyramidLevels) levels.
+     */
+    public static byte[] encode(int[] levels, int width, int height, int pyramidLevels) throws IOException {
+        // Step 1: Build the pyramid, finest level first
+        int count = levelCount(width, height, pyramidLevels);
+        int[][] pyramid = new int[count][];
+        pyramid[0] = levels;
+        for (int level = 1; level < count; level++) {
+            pyramid[level] = reduce(pyramid[level - 1], levelSize(width, level - 1), levelSize(height, level - 1));
+        }
+
+        // Step 2: Code every level, coarsest first, as its levels or its residuals against its parent
+        byte[][] tables = new byte[count][];
+        byte[][] data = new byte[count][];
+        for (int level = count - 1; level >= 0; level--) {
+            int[] symbols = level == count - 1 ? pyramid[level]
+                    : residuals(pyramid[level], pyramid[level + 1], levelSize(width, level),
+                            levelSize(height, level));
+            int[] frequency = new int[LEVELS];
+            EntropyCoder.count(symbols, frequency);
+            CanonicalHuffmanCode huffmanCode = EntropyCoder.buildCode(frequency);
+            BitWriter bitWriter = new BitWriter(symbols.length / 2);
+            EntropyCoder.encode(symbols, huffmanCode, bitWriter);
+            ByteArrayOutputStream table = new ByteArrayOutputStream();
+            huffmanCode.writeTo(new DataOutputStream(table));
+            tables[level] = table.toByteArray();
+            data[level] = bitWriter.toByteArray();
+        }
+
+        // Step 3: Write the index, then the levels
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(count);
+        for (int level = count - 1; level >= 0; level--) {
+            CRC32 crc = new CRC32();
+            crc.update(tables[level]);
+            crc.update(data[level]);
+            out.writeInt(tables[level].length);
+            out.writeInt(data[level].length);
+            out.writeInt((int) crc.getValue());
+        }
+        for (int level = count - 1; level >= 0; level--) {
+            out.write(tables[level]);
+            out.write(data[level]);
+        }
+        return payload.toByteArray();
+    }
+
+    /**
+     * Decode pyramid level 'target' of a width x height averaged image,
+     * reading and checking only the levels from the coarsest down to it.
+     * A target above the coarsest stored level is reduced from that level.
+     */
+    public static int[] decode(ByteBuffer payload, int width, int height, int target) throws IOException {
+        // Step 1: Read and check the index
+        int count = payload.limit() > 0 ? payload.get(0) & 0xFF : 0;
+        if (count == 0 || count > MAX_PYRAMID_LEVELS || count > levelCount(width, height, MAX_PYRAMID_LEVELS)
+                || 1 + 12L * count > payload.limit()) {
+            throw new IOException("Corrupt pyramid: " + count + " levels");
+        }
+        int[] tableStart = new int[count];
+        int[] dataStart = new int[count];
+        int[] dataLength = new int[count];
+        long offset = 1 + 12L * count;
+        for (int level = count - 1, entry = 1; level >= 0; level--, entry += 12) {
+            int tableLength = payload.getInt(entry);
+            dataLength[level] = payload.getInt(entry + 4);
+            if (tableLength < 0 || dataLength[level] < 0
+                    || offset + tableLength + dataLength[level] > payload.limit()) {
+                throw new IOException("Corrupt pyramid: bad lengths for level " + level);
+            }
+            tableStart[level] = (int) offset;
+            dataStart[level] = (int) offset + tableLength;
+            offset += tableLength + dataLength[level];
+        }
+
+        // Step 2: Decode from the coarsest level down to the target, adding each level's residuals to its parent
+        int[] levels = null;
+        int last = Math.min(target, count - 1);
+        for (int level = count - 1; level >= last; level--) {
+            int entry = 1 + 12 * (count - 1 - level);
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate().position(tableStart[level]).limit(dataStart[level] + dataLength[level]));
+            if ((int) crc.getValue() != payload.getInt(entry + 8)) {
+                throw new IOException("CRC mismatch in pyramid level " + level);
+            }
+            byte[] table = new byte[dataStart[level] - tableStart[level]];
+            payload.get(tableStart[level], table);
+            HuffmanDecoder decoder = CanonicalHuffmanCode.readFrom(
+                    new DataInputStream(new ByteArrayInputStream(table)), LEVELS).createDecoder();
+
+            int levelWidth = levelSize(width, level);
+            int levelHeight = levelSize(height, level);
+            int[] symbols = new int[3 * levelWidth * levelHeight];
+            EntropyCoder.decode(decoder, new BitReader(payload, dataStart[level], dataLength[level]), symbols, 0,
+                    symbols.length);
+            if (levels != null) {
+                restore(symbols, levels, levelWidth, levelHeight);
+            }
+            levels = symbols;
+        }
+
+        // Step 3: Reduce further past the coarsest stored level
+        for (int level = last; level < target; level++) {
+            levels = reduce(levels, levelSize(width, level), levelSize(height, level));
+        }
+        return levels;
+    }
+
+    // each level of a width x height level minus its parent's, modulo LEVELS
+    private static int[] residuals(int[] levels, int[] coarse, int width, int height) {
+        int[] residuals = new int[levels.length];
+        int coarseWidth = levelSize(width, 1);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = 3 * (y * width + x);
+                int parent = 3 * ((y >> 1) * coarseWidth + (x >> 1));
+                for (int channel = 0; channel < 3; channel++) {
+                    int residual = levels[i + channel] - coarse[parent + channel];
+                    residuals[i + channel] = residual < 0 ? residual + LEVELS : residual;
+                }
+            }
+        }
+        return residuals;
+    }
+
+    // turn the residuals of a width x height level back into levels in place
+    private static void restore(int[] values, int[] coarse, int width, int height) {
+        int coarseWidth = levelSize(width, 1);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = 3 * (y * width + x);
+                int parent = 3 * ((y >> 1) * coarseWidth + (x >> 1));
+                for (int channel = 0; channel < 3; channel++) {
+                    int level = values[i + channel] + coarse[parent + channel];
+                    values[i + channel] = level >= LEVELS ? level - LEVELS : level;
+                }
+            }
+        }
+    }
+}
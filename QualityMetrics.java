@@ -0,0 +1,90 @@
+import java.awt.image.BufferedImage;
+import java.util.stream.IntStream;
+
+/**
+ * Computes MAE, MSE and PSNR, overall and per channel, in a single pass over
+ * both images instead of one pass per metric. The rows are split into
+ * stripes that are summed in parallel, each into long totals fed from int
+ * sums over short chunks, and the stripes are added up in order.
+ */
+public class QualityMetrics {
+    // pixels per parallel task
+    private static final int STRIPE_PIXELS = 1 << 16;
+
+    // 255 * 255 * CHUNK_PIXELS still fits in an int
+    private static final int CHUNK_PIXELS = 1 << 15;
+
+    /**
+     * Compare two images, reading their data buffers directly where
+     * PixelBuffer.fromImage can.
+     */
+    public static QualityReport compare(BufferedImage originalImage, BufferedImage decompressedImage) {
+        return compare(PixelBuffer.fromImage(originalImage), PixelBuffer.fromImage(decompressedImage));
+    }
+
+    public static QualityReport compare(PixelBuffer originalImage, PixelBuffer decompressedImage) {
+        int width = originalImage.getWidth();
+        int height = originalImage.getHeight();
+        if (decompressedImage.getWidth() != width || decompressedImage.getHeight() != height) {
+            throw new IllegalArgumentException("Images have different dimensions: " + width + "x" + height + " and "
+                    + decompressedImage.getWidth() + "x" + decompressedImage.getHeight());
+        }
+        int[] originalPixels = originalImage.getPixels();
+        int[] decompressedPixels = decompressedImage.getPixels();
+
+        // Step 1: Sum the errors of every stripe of rows in parallel
+        int stripeRows = Math.max(1, STRIPE_PIXELS / Math.max(width, 1));
+        int stripes = (height + stripeRows - 1) / stripeRows;
+        long[][] stripeSums = new long[stripes][];
+        IntStream.range(0, stripes).parallel().forEach(stripe -> {
+            int from = stripe * stripeRows * width;
+            int to = Math.min(height, (stripe + 1) * stripeRows) * width;
+            stripeSums[stripe] = sumErrors(originalPixels, decompressedPixels, from, to);
+        });
+
+        // Step 2: Add the stripes up in order
+        long[] absoluteErrors = new long[3];
+        long[] squaredErrors = new long[3];
+        for (long[] sums : stripeSums) {
+            for (int channel = 0; channel < 3; channel++) {
+                absoluteErrors[channel] += sums[channel];
+                squaredErrors[channel] += sums[3 + channel];
+            }
+        }
+        return new QualityReport((long) width * height, absoluteErrors, squaredErrors);
+    }
+
+    // absolute then squared error sums of red, green and blue over pixels from to to - 1
+    private static long[] sumErrors(int[] originalPixels, int[] decompressedPixels, int from, int to) {
+        long[] sums = new long[6];
+
+        for (int chunk = from; chunk < to; chunk += CHUNK_PIXELS) {
+            // int sums cannot overflow within a chunk, and keep the loop simple enough to vectorize
+            int absoluteRed = 0, absoluteGreen = 0, absoluteBlue = 0;
+            int squaredRed = 0, squaredGreen = 0, squaredBlue = 0;
+            int end = Math.min(to, chunk + CHUNK_PIXELS);
+            for (int i = chunk; i < end; i++) {
+                int pixelOriginal = originalPixels[i];
+                int pixelDecompressed = decompressedPixels[i];
+
+                int dr = ((pixelOriginal >> 16) & 0xFF) - ((pixelDecompressed >> 16) & 0xFF);
+                int dg = ((pixelOriginal >> 8) & 0xFF) - ((pixelDecompressed >> 8) & 0xFF);
+                int db = (pixelOriginal & 0xFF) - (pixelDecompressed & 0xFF);
+
+                absoluteRed += Math.abs(dr);
+                absoluteGreen += Math.abs(dg);
+                absoluteBlue += Math.abs(db);
+                squaredRed += dr * dr;
+                squaredGreen += dg * dg;
+                squaredBlue += db * db;
+            }
+            sums[0] += absoluteRed;
+            sums[1] += absoluteGreen;
+            sums[2] += absoluteBlue;
+            sums[3] += squaredRed;
+            sums[4] += squaredGreen;
+            sums[5] += squaredBlue;
+        }
+        return sums;
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Error of a decompressed image against its original, overall and per
+ * channel. The overall figures follow MAECalculator, MSECalculator and
+ * PSNRCalculator: MAE is the mean over all channel samples, while MSE adds up
+ * the squared errors of the three channels of a pixel and averages over the
+ * pixels, and PSNR is derived from that MSE.
+ */
+public class QualityReport {
+    public static final int RED = 0;
+    public static final int GREEN = 1;
+    public static final int BLUE = 2;
+
+    private static final double MAX_PIXEL_VALUE = 255.0;
+
+    private final long pixelCount;
+    private final long[] absoluteErrors;
+    private final long[] squaredErrors;
+
+    /**
+     * @param absoluteErrors sum of the absolute errors of each channel
+     * @param squaredErrors  sum of the squared errors of each channel
+     */
+    public QualityReport(long pixelCount, long[] absoluteErrors, long[] squaredErrors) {
+        this.pixelCount = pixelCount;
+        this.absoluteErrors = absoluteErrors.clone();
+        this.squaredErrors = squaredErrors.clone();
+    }
+
+    public long getPixelCount() {
+        return pixelCount;
+    }
+
+    public double getMAE() {
+        return (double) (absoluteErrors[RED] + absoluteErrors[GREEN] + absoluteErrors[BLUE]) / (pixelCount * 3);
+    }
+
+    public double getMSE() {
+        return (double) (squaredErrors[RED] + squaredErrors[GREEN] + squaredErrors[BLUE]) / pixelCount;
+    }
+
+    public double getPSNR() {
+        return 20 * Math.log10(MAX_PIXEL_VALUE / Math.sqrt(getMSE()));
+    }
+
+    public double getChannelMAE(int channel) {
+        return (double) absoluteErrors[channel] / pixelCount;
+    }
+
+    public double getChannelMSE(int channel) {
+        return (double) squaredErrors[channel] / pixelCount;
+    }
+
+    public double getChannelPSNR(int channel) {
+        return 20 * Math.log10(MAX_PIXEL_VALUE / Math.sqrt(getChannelMSE(channel)));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MAE %.4f, MSE %.4f, PSNR %.2f dB (red %.2f, green %.2f, blue %.2f dB)", getMAE(),
+                getMSE(), getPSNR(), getChannelPSNR(RED), getChannelPSNR(GREEN), getChannelPSNR(BLUE));
+    }
+}
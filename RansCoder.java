@@ -0,0 +1,482 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Static-model rANS (range asymmetric numeral systems) entropy coder, the
+ * backend CompressedFile.BACKEND_RANS selects in place of Huffman coding.
+ * A Huffman code spends a whole number of bits on every symbol, which wastes
+ * most on skewed distributions like the averaged channel values and the
+ * palette indices; rANS spends close to the information content of each.
+ *
+ * The symbol counts are scaled to frequencies summing to 2^SCALE_BITS, and
+ * only those are stored. Two coder states are interleaved, even symbols
+ * going through the first and odd symbols through the second, so decoding
+ * has two independent dependency chains. States are 32 bits wide and
+ * renormalise a byte at a time, as in Fabian Giesen's ryg_rans. The encoder
+ * runs backwards over the symbols, so the decoder reads the stream forwards
+ * and looks every symbol up in one table of 2^SCALE_BITS slots.
+ *
+ * Stream layout, all integers big-endian:
+ *
+ * <pre>
+ * final encoder state of the even symbols (int)
+ * final encoder state of the odd symbols (int)
+ * renormalisation bytes, in the order the decoder reads them
+ * </pre>
+ *
+ * The decoder checks that both states end where the encoder started. It
+ * reads the stream from a ByteBuffer, so a memory-mapped payload is decoded
+ * in place.
+ */
+public class RansCoder {
+    // precision of the frequencies; at most this many symbols can occur
+    public static final int SCALE_BITS = 12;
+    private static final int SCALE = 1 << SCALE_BITS;
+
+    // lower bound of a normalised state; the upper bound is 256 times higher
+    private static final int LOWER_BOUND = 1 << 23;
+
+    // widest group of repeat count bits coded as one uniform symbol
+    private static final int MAX_BYPASS_BITS = 16;
+
+    private final int[] frequencies;
+    // sum of the frequencies of the symbols before each one
+    private final int[] starts;
+    // per slot: symbol << 32 | frequency << SCALE_BITS | slot - start, built on first decode
+    private long[] slots;
+
+    private RansCoder(int[] frequencies) {
+        this.frequencies = frequencies;
+        this.starts = new int[frequencies.length];
+        for (int symbol = 1; symbol < frequencies.length; symbol++) {
+            starts[symbol] = starts[symbol - 1] + frequencies[symbol - 1];
+        }
+    }
+
+    /**
+     * Whether every symbol that occurs in a histogram can get a frequency.
+     */
+    public static boolean fits(int[] histogram) {
+        int used = 0;
+        for (int count : histogram) {
+            if (count > 0) {
+                used++;
+            }
+        }
+        return used <= SCALE;
+    }
+
+    /**
+     * Scale a histogram to frequencies summing to 2^SCALE_BITS, every symbol
+     * that occurs keeping at least 1. A shortfall goes to the most frequent
+     * symbol; an excess, from raising rare symbols to 1, is taken from all
+     * the others in proportion to their frequency.
+     */
+    public static RansCoder fromHistogram(int[] histogram) {
+        if (!fits(histogram)) {
+            throw new IllegalArgumentException("More than " + SCALE + " symbols occur");
+        }
+        long total = 0;
+        int mostFrequent = 0;
+        for (int symbol = 0; symbol < histogram.length; symbol++) {
+            total += histogram[symbol];
+            if (histogram[symbol] > histogram[mostFrequent]) {
+                mostFrequent = symbol;
+            }
+        }
+        int[] frequencies = new int[histogram.length];
+        if (total == 0) {
+            return new RansCoder(frequencies);
+        }
+
+        int sum = 0;
+        int used = 0;
+        for (int symbol = 0; symbol < histogram.length; symbol++) {
+            if (histogram[symbol] > 0) {
+                frequencies[symbol] = (int) Math.max(1, (histogram[symbol] * (long) SCALE + total / 2) / total);
+                sum += frequencies[symbol];
+                used++;
+            }
+        }
+        if (sum < SCALE) {
+            frequencies[mostFrequent] += SCALE - sum;
+            sum = SCALE;
+        }
+        while (sum > SCALE) {
+            int excess = sum - SCALE;
+            // frequency that can be taken without dropping a symbol below 1
+            long room = sum - used;
+            for (int symbol = 0; symbol < frequencies.length && sum > SCALE; symbol++) {
+                if (frequencies[symbol] > 1) {
+                    int take = (int) Math.min(sum - SCALE,
+                            Math.max(1, (frequencies[symbol] - 1) * (long) excess / room));
+                    frequencies[symbol] -= take;
+                    sum -= take;
+                }
+            }
+        }
+        return new RansCoder(frequencies);
+    }
+
+    /**
+     * Size in bits of the symbols of a histogram under these frequencies,
+     * leaving out the 8 bytes of final states.
+     */
+    public long codedBits(int[] histogram) {
+        double bits = 0;
+        for (int symbol = 0; symbol < histogram.length; symbol++) {
+            if (histogram[symbol] > 0) {
+                bits += histogram[symbol] * (SCALE_BITS - Math.log(frequencies[symbol]) / Math.log(2));
+            }
+        }
+        return (long) Math.ceil(bits);
+    }
+
+    public int[] getFrequencies() {
+        return frequencies;
+    }
+
+    /**
+     * Write the table as the number of symbols that occur (unsigned short),
+     * then each of them (unsigned short) and its frequency - 1: one byte
+     * below 128, else two bytes with the top bit set, like the Huffman table
+     * mostly 3 bytes per symbol.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        int symbolCount = 0;
+        for (int frequency : frequencies) {
+            if (frequency > 0) {
+                symbolCount++;
+            }
+        }
+        out.writeShort(symbolCount);
+        for (int symbol = 0; symbol < frequencies.length; symbol++) {
+            if (frequencies[symbol] > 0) {
+                out.writeShort(symbol);
+                int frequency = frequencies[symbol] - 1;
+                if (frequency < 0x80) {
+                    out.writeByte(frequency);
+                } else {
+                    out.writeShort(0x8000 | frequency);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a table written by writeTo, rejecting symbols outside 0 to
+     * symbolLimit - 1 and frequencies that do not sum to 2^SCALE_BITS. An
+     * empty table, as written for an image with no whole block, is accepted
+     * but decodes no symbols.
+     */
+    public static RansCoder readFrom(DataInput in, int symbolLimit) throws IOException {
+        int symbolCount = in.readUnsignedShort();
+        if (symbolCount > Math.min(symbolLimit, SCALE)) {
+            throw new IOException("Corrupt rANS table: " + symbolCount + " symbols");
+        }
+        int[] frequencies = new int[symbolLimit];
+        int sum = 0;
+        for (int i = 0; i < symbolCount; i++) {
+            int symbol = in.readUnsignedShort();
+            int frequency = in.readUnsignedByte();
+            if (frequency >= 0x80) {
+                frequency = (frequency & 0x7F) << 8 | in.readUnsignedByte();
+            }
+            frequency++;
+            if (symbol >= symbolLimit || frequencies[symbol] != 0 || frequency > SCALE) {
+                throw new IOException("Corrupt rANS table entry for symbol " + symbol);
+            }
+            frequencies[symbol] = frequency;
+            sum += frequency;
+        }
+        if (symbolCount > 0 && sum != SCALE) {
+            throw new IOException("Corrupt rANS table: frequencies sum to " + sum);
+        }
+        return new RansCoder(frequencies);
+    }
+
+    /**
+     * Encode the red, green and blue value of every packed pixel.
+     */
+    public byte[] encodeChannels(int[] pixels) {
+        int[] symbols = new int[pixels.length * 3];
+        for (int i = 0; i < pixels.length; i++) {
+            symbols[3 * i] = (pixels[i] >> 16) & 0xFF;
+            symbols[3 * i + 1] = (pixels[i] >> 8) & 0xFF;
+            symbols[3 * i + 2] = pixels[i] & 0xFF;
+        }
+        return encode(symbols);
+    }
+
+    public byte[] encode(int[] symbols) {
+        Encoder encoder = new Encoder(symbols.length / 2);
+        for (int i = symbols.length; i-- > 0;) {
+            encoder.put(i & 1, symbols[i]);
+        }
+        return encoder.finish();
+    }
+
+    /**
+     * Encode every run of equal symbols as the symbol, followed by a run code
+     * and the repeat count when it repeats: the tokens of
+     * EntropyCoder.encodeRuns. The repeat count bits go through the state of
+     * their run code, as uniform symbols of up to MAX_BYPASS_BITS bits.
+     */
+    public byte[] encodeRuns(int[] symbols, int alphabetSize) {
+        // Step 1: Split the symbols into runs, going forwards
+        int[] runSymbols = new int[symbols.length];
+        int[] repeats = new int[symbols.length];
+        int runCount = 0;
+        int tokenCount = 0;
+        for (int i = 0; i < symbols.length;) {
+            int end = i + 1;
+            while (end < symbols.length && symbols[end] == symbols[i]) {
+                end++;
+            }
+            runSymbols[runCount] = symbols[i];
+            repeats[runCount] = end - i - 1;
+            tokenCount += repeats[runCount++] > 0 ? 2 : 1;
+            i = end;
+        }
+
+        // Step 2: Encode the tokens backwards, token k through state k & 1.
+        // The decoder reads a run code before its count, so the count goes in first
+        Encoder encoder = new Encoder(tokenCount / 2);
+        int token = tokenCount;
+        for (int run = runCount; run-- > 0;) {
+            if (repeats[run] > 0) {
+                int runBits = 31 - Integer.numberOfLeadingZeros(repeats[run]);
+                token--;
+                if (runBits > 0) {
+                    encoder.putBits(token & 1, repeats[run], runBits);
+                }
+                encoder.put(token & 1, alphabetSize + runBits);
+            }
+            token--;
+            encoder.put(token & 1, runSymbols[run]);
+        }
+        return encoder.finish();
+    }
+
+    /**
+     * Decode the red, green and blue values written by encodeChannels into
+     * packed pixels.
+     */
+    public void decodeChannels(ByteBuffer data, int[] pixels) throws IOException {
+        long[] slots = slots(pixels.length);
+        Stream stream = new Stream(data, 0);
+        // the state of the next symbol, and of the one after it
+        int state = stream.readState();
+        int other = stream.readState();
+        for (int i = 0; i < pixels.length; i++) {
+            int rgb = 0;
+            for (int channel = 0; channel < 3; channel++) {
+                long slot = slots[state & (SCALE - 1)];
+                rgb = (rgb << 8) | (int) (slot >>> 32);
+                int next = ((int) slot >>> SCALE_BITS) * (state >>> SCALE_BITS) + ((int) slot & (SCALE - 1));
+                state = other;
+                other = next < LOWER_BOUND ? stream.renormalize(next) : next;
+            }
+            pixels[i] = rgb;
+        }
+        stream.finish(state, other);
+    }
+
+    /**
+     * Decode symbols written by encode into all of output.
+     */
+    public void decode(byte[] data, int[] output) throws IOException {
+        decode(ByteBuffer.wrap(data), 0, output);
+    }
+
+    /**
+     * Decode symbols written by encode, stored from index 'offset' to the
+     * limit of data, into all of output.
+     */
+    public void decode(ByteBuffer data, int offset, int[] output) throws IOException {
+        long[] slots = slots(output.length);
+        Stream stream = new Stream(data, offset);
+        int state0 = stream.readState();
+        int state1 = stream.readState();
+        int end = output.length & ~1;
+        for (int i = 0; i < end; i += 2) {
+            long slot0 = slots[state0 & (SCALE - 1)];
+            long slot1 = slots[state1 & (SCALE - 1)];
+            output[i] = (int) (slot0 >>> 32);
+            output[i + 1] = (int) (slot1 >>> 32);
+            state0 = ((int) slot0 >>> SCALE_BITS) * (state0 >>> SCALE_BITS) + ((int) slot0 & (SCALE - 1));
+            state1 = ((int) slot1 >>> SCALE_BITS) * (state1 >>> SCALE_BITS) + ((int) slot1 & (SCALE - 1));
+            if (state0 < LOWER_BOUND) {
+                state0 = stream.renormalize(state0);
+            }
+            if (state1 < LOWER_BOUND) {
+                state1 = stream.renormalize(state1);
+            }
+        }
+        if (end < output.length) {
+            long slot = slots[state0 & (SCALE - 1)];
+            output[end] = (int) (slot >>> 32);
+            state0 = stream.renormalize(((int) slot >>> SCALE_BITS) * (state0 >>> SCALE_BITS)
+                    + ((int) slot & (SCALE - 1)));
+        }
+        stream.finish(state0, state1);
+    }
+
+    /**
+     * Decode symbols written by encodeRuns into all of output, filling each
+     * run in one go.
+     */
+    public void decodeRuns(ByteBuffer data, int alphabetSize, int[] output) throws IOException {
+        long[] slots = slots(output.length);
+        Stream stream = new Stream(data, 0);
+        int[] states = { stream.readState(), stream.readState() };
+        for (int i = 0, token = 0; i < output.length; token++) {
+            int state = states[token & 1];
+            long slot = slots[state & (SCALE - 1)];
+            int symbol = (int) (slot >>> 32);
+            state = stream.renormalize(((int) slot >>> SCALE_BITS) * (state >>> SCALE_BITS)
+                    + ((int) slot & (SCALE - 1)));
+            if (symbol < alphabetSize) {
+                output[i++] = symbol;
+            } else {
+                int runBits = symbol - alphabetSize;
+                int repeats = 1 << runBits;
+                for (int shift = 0; shift < runBits; shift += MAX_BYPASS_BITS) {
+                    int width = Math.min(MAX_BYPASS_BITS, runBits - shift);
+                    repeats |= (state & ((1 << width) - 1)) << shift;
+                    state = stream.renormalize(state >>> width);
+                }
+                if (i == 0 || repeats > output.length - i) {
+                    throw new IOException("Corrupt run of " + repeats + " symbols at " + i);
+                }
+                Arrays.fill(output, i, i + repeats, output[i - 1]);
+                i += repeats;
+            }
+            states[token & 1] = state;
+        }
+        stream.finish(states[0], states[1]);
+    }
+
+    // the slot table, for decoding 'count' symbols, which an empty table cannot
+    private long[] slots(int count) throws IOException {
+        int last = frequencies.length - 1;
+        if (count > 0 && starts[last] + frequencies[last] == 0) {
+            throw new IOException("Corrupt rANS table: no symbols to decode " + count + " values with");
+        }
+        if (slots == null) {
+            long[] table = new long[SCALE];
+            for (int symbol = 0; symbol < frequencies.length; symbol++) {
+                for (int offset = 0; offset < frequencies[symbol]; offset++) {
+                    table[starts[symbol] + offset] = (long) symbol << 32
+                            | (long) frequencies[symbol] << SCALE_BITS | offset;
+                }
+            }
+            slots = table;
+        }
+        return slots;
+    }
+
+    /**
+     * Two interleaved encoder states, writing their renormalisation bytes from
+     * the end of a growing buffer towards its start.
+     */
+    private class Encoder {
+        private final int[] states = { LOWER_BOUND, LOWER_BOUND };
+        private byte[] buffer;
+        private int position;
+
+        Encoder(int capacity) {
+            buffer = new byte[Math.max(capacity, 16)];
+            position = buffer.length;
+        }
+
+        void put(int lane, int symbol) {
+            int frequency = frequencies[symbol];
+            if (frequency == 0) {
+                throw new IllegalArgumentException("Symbol " + symbol + " has no frequency");
+            }
+            int state = renormalize(states[lane], ((long) LOWER_BOUND >>> SCALE_BITS << 8) * frequency);
+            states[lane] = ((state / frequency) << SCALE_BITS) + state % frequency + starts[symbol];
+        }
+
+        // the low 'count' bits of 'bits', lowest group decoded first
+        void putBits(int lane, int bits, int count) {
+            for (int shift = (count - 1) / MAX_BYPASS_BITS * MAX_BYPASS_BITS; shift >= 0; shift -= MAX_BYPASS_BITS) {
+                int width = Math.min(MAX_BYPASS_BITS, count - shift);
+                int state = renormalize(states[lane], (long) LOWER_BOUND >>> width << 8);
+                states[lane] = (state << width) | ((bits >>> shift) & ((1 << width) - 1));
+            }
+        }
+
+        // shift bytes out of a state until it is below limit
+        private int renormalize(int state, long limit) {
+            while (state >= limit) {
+                if (position == 0) {
+                    byte[] grown = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, grown, buffer.length, buffer.length);
+                    position = buffer.length;
+                    buffer = grown;
+                }
+                buffer[--position] = (byte) state;
+                state >>>= 8;
+            }
+            return state;
+        }
+
+        byte[] finish() {
+            byte[] stream = new byte[8 + buffer.length - position];
+            for (int i = 0; i < 8; i++) {
+                stream[i] = (byte) (states[i >> 2] >>> (24 - 8 * (i & 3)));
+            }
+            System.arraycopy(buffer, position, stream, 8, buffer.length - position);
+            return stream;
+        }
+    }
+
+    /**
+     * The bytes a decoder reads, in order, read with absolute gets so the
+     * buffer can be shared.
+     */
+    private static class Stream {
+        private final ByteBuffer data;
+        private final int limit;
+        private int position;
+
+        Stream(ByteBuffer data, int offset) throws IOException {
+            if (data.limit() - offset < 8) {
+                throw new IOException("Corrupt rANS stream of " + (data.limit() - offset) + " bytes");
+            }
+            this.data = data;
+            this.limit = data.limit();
+            this.position = offset;
+        }
+
+        int readState() throws IOException {
+            int state = data.getInt(position);
+            position += 4;
+            if (state < LOWER_BOUND) {
+                throw new IOException("Corrupt rANS stream: state " + state + " is not normalised");
+            }
+            return state;
+        }
+
+        int renormalize(int state) throws IOException {
+            while (state < LOWER_BOUND) {
+                if (position == limit) {
+                    throw new IOException("Corrupt rANS stream: ends early");
+                }
+                state = (state << 8) | (data.get(position++) & 0xFF);
+            }
+            return state;
+        }
+
+        void finish(int state0, int state1) throws IOException {
+            if (state0 != LOWER_BOUND || state1 != LOWER_BOUND || position != limit) {
+                throw new IOException("Corrupt rANS stream: does not end where it started");
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Compares the rANS backend against table-driven Huffman decoding on the
+ * symbol streams of every image in Original/: the averaged color values of
+ * Utility, the prediction residuals of Utility with prediction and the
+ * colormap indices of UtilityColorQuantization. Each stream gets one code
+ * for all images; sizes include the code table. It first checks that images
+ * too small for a whole block, whose rANS tables are empty, decode like the
+ * Huffman coded ones.
+ *
+ * Run with: java RansCoderBenchmark [iterations]
+ */
+public class RansCoderBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        checkSmallImages();
+
+        // Collect the symbol streams exactly as the codecs produce them
+        List<int[]> values = new ArrayList<>();
+        List<int[]> residuals = new ArrayList<>();
+        List<int[]> indices = new ArrayList<>();
+        File[] files = new File("Original/").listFiles(File::isFile);
+        if (files == null || files.length == 0) {
+            System.out.println("No images found in Original/");
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            PixelBuffer pixels = new ImagetoPixelConverter(file.getPath()).getPixelBuffer();
+            PixelBuffer averaged = Utility.averagePixels(pixels);
+            int[] levels = PredictiveCoder.levels(averaged);
+            int[] averagedValues = new int[levels.length];
+            for (int i = 0; i < levels.length; i++) {
+                averagedValues[i] = levels[i] * 10;
+            }
+            values.add(averagedValues);
+            residuals.add(PredictiveCoder.filter(levels, averaged.getWidth(), averaged.getHeight(),
+                    new byte[averaged.getHeight()]));
+
+            UtilityColorQuantization.Cube cube = new UtilityColorQuantization.Cube(pixels, 126);
+            cube.classification();
+            cube.reduction();
+            indices.add(cube.assignment());
+        }
+
+        compare("Utility values", concatenate(values), 256, iterations);
+        compare("Predictive residuals", concatenate(residuals), PredictiveCoder.LEVELS, iterations);
+        compare("Palette indices", concatenate(indices), 126, iterations);
+    }
+
+    /**
+     * Round-trip images from 1x1 to 4x4 through every codec with the rANS
+     * backend, and check that they decode to the same pixels as with Huffman
+     * coding.
+     */
+    static void checkSmallImages() throws IOException {
+        File file = File.createTempFile("rans", ".bin");
+        file.deleteOnExit();
+        String fileName = file.getPath();
+        Random random = new Random(1);
+        for (int width = 1; width <= 4; width++) {
+            for (int height = 1; height <= 4; height++) {
+                PixelBuffer pixels = new PixelBuffer(width, height);
+                for (int i = 0; i < pixels.getPixels().length; i++) {
+                    pixels.getPixels()[i] = random.nextInt(1 << 24);
+                }
+                PixelBuffer[] decoded = new PixelBuffer[8];
+                for (int backend = 0; backend < 2; backend++) {
+                    new Utility(Utility.Mode.flat(backend)).Compress(pixels, fileName);
+                    decoded[backend] = new Utility().DecompressToBuffer(fileName);
+                    new Utility(Utility.Mode.predictive(backend)).Compress(pixels, fileName);
+                    decoded[2 + backend] = new Utility().DecompressToBuffer(fileName);
+                    new Utility3X3(Utility3X3.Mode.flat(backend)).Compress(pixels, fileName);
+                    decoded[4 + backend] = new Utility3X3().DecompressToBuffer(fileName);
+                    new UtilityColorQuantization(UtilityColorQuantization.Sampling.FULL, backend).Compress(pixels,
+                            fileName);
+                    decoded[6 + backend] = new UtilityColorQuantization().DecompressToBuffer(fileName);
+                }
+                for (int codec = 0; codec < 8; codec += 2) {
+                    if (!Arrays.equals(decoded[codec].getPixels(), decoded[codec + 1].getPixels())) {
+                        throw new IllegalStateException("rANS and Huffman decode a " + width + "x" + height
+                                + " image differently");
+                    }
+                }
+            }
+        }
+    }
+
+    static void compare(String name, int[] symbols, int alphabetSize, int iterations) throws IOException {
+        int[] frequency = new int[alphabetSize];
+        EntropyCoder.count(symbols, frequency);
+
+        // Encode once with each backend, then decode the same bytes repeatedly
+        CanonicalHuffmanCode huffmanCode = EntropyCoder.buildCode(frequency);
+        BitWriter bitWriter = new BitWriter(symbols.length);
+        EntropyCoder.encode(symbols, huffmanCode, bitWriter);
+        byte[] huffmanData = bitWriter.toByteArray();
+        HuffmanDecoder decoder = huffmanCode.createDecoder();
+        ByteArrayOutputStream huffmanTable = new ByteArrayOutputStream();
+        huffmanCode.writeTo(new DataOutputStream(huffmanTable));
+
+        RansCoder ransCoder = RansCoder.fromHistogram(frequency);
+        byte[] ransData = ransCoder.encode(symbols);
+        ByteArrayOutputStream ransTable = new ByteArrayOutputStream();
+        ransCoder.writeTo(new DataOutputStream(ransTable));
+
+        int[] output = new int[symbols.length];
+        // warm up both paths before timing
+        for (int i = 0; i < 5; i++) {
+            EntropyCoder.decode(decoder, new BitReader(huffmanData), output, 0, output.length);
+            ransCoder.decode(ransData, output);
+        }
+
+        long huffmanTime = Long.MAX_VALUE;
+        long ransTime = Long.MAX_VALUE;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            EntropyCoder.decode(decoder, new BitReader(huffmanData), output, 0, output.length);
+            huffmanTime = Math.min(huffmanTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            ransCoder.decode(ransData, output);
+            ransTime = Math.min(ransTime, System.nanoTime() - start);
+        }
+        if (!Arrays.equals(symbols, output)) {
+            throw new IllegalStateException("rANS output does not match the input symbols");
+        }
+
+        long huffmanBytes = huffmanTable.size() + huffmanData.length;
+        long ransBytes = ransTable.size() + ransData.length;
+        System.out.println(name + ": " + symbols.length + " symbols");
+        System.out.printf("  Huffman : %8d bytes, %.2f ns/symbol%n", huffmanBytes,
+                (double) huffmanTime / symbols.length);
+        System.out.printf("  rANS    : %8d bytes, %.2f ns/symbol (%+.1f%% size)%n", ransBytes,
+                (double) ransTime / symbols.length, 100.0 * (ransBytes - huffmanBytes) / huffmanBytes);
+    }
+
+    static int[] concatenate(List<int[]> streams) {
+        int length = 0;
+        for (int[] stream : streams) {
+            length += stream.length;
+        }
+        int[] symbols = new int[length];
+        int offset = 0;
+        for (int[] stream : streams) {
+            System.arraycopy(stream, 0, symbols, offset, stream.length);
+            offset += stream.length;
+        }
+        return symbols;
+    }
+}
@@ -0,0 +1,264 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import javax.imageio.ImageIO;
+
+/**
+ * Structural similarity (SSIM) and multi-scale SSIM of two images, computed on
+ * their luma. As in x264 and FFmpeg's ssim filter, the luma is box filtered
+ * into sums over 4x4 blocks, and 8x8 windows at a 4 pixel stride are scored
+ * from the sums of their four blocks. The windows are uniformly weighted
+ * boxes rather than the Gaussian of the reference implementation, and only
+ * every fourth one is scored, which shifts the score slightly but costs a
+ * few simple operations per pixel.
+ *
+ * The image is split into bands of window rows that are scored in parallel.
+ */
+public class SSIMCalculator {
+    private static final int WINDOW = 8;
+    private static final int BLOCK = WINDOW / 2;
+    // sums per block or window: a, b, a^2, b^2 and ab
+    private static final int SUMS = 5;
+    // window rows per parallel task
+    private static final int BAND = 64;
+
+    private static final double C1 = (0.01 * 255) * (0.01 * 255);
+    private static final double C2 = (0.03 * 255) * (0.03 * 255);
+
+    // weights of the five MS-SSIM scales, finest first (Wang, Simoncelli and Bovik 2003)
+    private static final double[] SCALE_WEIGHTS = { 0.0448, 0.2856, 0.3001, 0.2363, 0.1333 };
+
+    /**
+     * Score every image in Original/ against the image of the same name that
+     * App wrote to Decompressed/.
+     */
+    public static void main(String[] args) throws IOException {
+        File[] files = new File("Original/").listFiles(File::isFile);
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            File decompressedFile = new File("Decompressed/" + file.getName());
+            if (!decompressedFile.isFile()) {
+                continue;
+            }
+            PixelBuffer originalImage = PixelBuffer.fromImage(ImageIO.read(file));
+            PixelBuffer decompressedImage = PixelBuffer.fromImage(ImageIO.read(decompressedFile));
+            double ssim = calculateSSIM(originalImage, decompressedImage);
+            double msssim = calculateMSSSIM(originalImage, decompressedImage);
+            System.out.printf("%s: SSIM %.4f, MS-SSIM %.4f%n", file.getName(), ssim, msssim);
+        }
+    }
+
+    public static double calculateSSIM(BufferedImage originalImage, BufferedImage decompressedImage) {
+        return calculateSSIM(PixelBuffer.fromImage(originalImage), PixelBuffer.fromImage(decompressedImage));
+    }
+
+    /**
+     * Mean SSIM over the 8x8 windows, 1 for identical images.
+     */
+    public static double calculateSSIM(PixelBuffer originalImage, PixelBuffer decompressedImage) {
+        checkDimensions(originalImage, decompressedImage);
+        int width = originalImage.getWidth();
+        int height = originalImage.getHeight();
+        return meanSimilarity(luma(originalImage), luma(decompressedImage), width, height)[0];
+    }
+
+    /**
+     * MS-SSIM over five scales, each half the size of the one before. The
+     * contrast-structure term is taken at every scale and the luminance term
+     * at the coarsest only. Images too small for five scales use the scales
+     * that fit, with the weights scaled up to sum to 1.
+     */
+    public static double calculateMSSSIM(PixelBuffer originalImage, PixelBuffer decompressedImage) {
+        checkDimensions(originalImage, decompressedImage);
+        int width = originalImage.getWidth();
+        int height = originalImage.getHeight();
+        int[] lumaA = luma(originalImage);
+        int[] lumaB = luma(decompressedImage);
+
+        int scales = 1;
+        while (scales < SCALE_WEIGHTS.length && Math.min(width >> scales, height >> scales) >= WINDOW) {
+            scales++;
+        }
+        double totalWeight = 0;
+        for (int scale = 0; scale < scales; scale++) {
+            totalWeight += SCALE_WEIGHTS[scale];
+        }
+
+        double msssim = 1;
+        for (int scale = 0; scale < scales; scale++) {
+            double[] similarity = meanSimilarity(lumaA, lumaB, width, height);
+            double weight = SCALE_WEIGHTS[scale] / totalWeight;
+            if (scale == scales - 1) {
+                msssim *= Math.pow(Math.max(0, similarity[0]), weight);
+            } else {
+                msssim *= Math.pow(Math.max(0, similarity[1]), weight);
+                lumaA = halve(lumaA, width, height);
+                lumaB = halve(lumaB, width, height);
+                width /= 2;
+                height /= 2;
+            }
+        }
+        return msssim;
+    }
+
+    private static void checkDimensions(PixelBuffer originalImage, PixelBuffer decompressedImage) {
+        if (originalImage.getWidth() != decompressedImage.getWidth()
+                || originalImage.getHeight() != decompressedImage.getHeight()) {
+            throw new IllegalArgumentException("Images have different dimensions.");
+        }
+    }
+
+    // ITU-R BT.601 luma in 8-bit fixed point, an integer so the block sums are exact
+    private static int[] luma(PixelBuffer image) {
+        int[] pixels = image.getPixels();
+        int[] luma = new int[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            int rgb = pixels[i];
+            luma[i] = (77 * ((rgb >> 16) & 0xFF) + 150 * ((rgb >> 8) & 0xFF) + 29 * (rgb & 0xFF) + 128) >> 8;
+        }
+        return luma;
+    }
+
+    // average 2x2 blocks, dropping an odd last row or column
+    private static int[] halve(int[] luma, int width, int height) {
+        int newWidth = width / 2;
+        int newHeight = height / 2;
+        int[] halved = new int[newWidth * newHeight];
+        for (int y = 0; y < newHeight; y++) {
+            for (int x = 0; x < newWidth; x++) {
+                int i = 2 * y * width + 2 * x;
+                halved[y * newWidth + x] = (luma[i] + luma[i + 1] + luma[i + width] + luma[i + width + 1] + 2) / 4;
+            }
+        }
+        return halved;
+    }
+
+    /**
+     * Mean SSIM and mean contrast-structure term over all windows, summed per
+     * band of block rows in parallel and added up in band order. An image too
+     * small for a single window is scored as one window over all its pixels.
+     */
+    private static double[] meanSimilarity(int[] lumaA, int[] lumaB, int width, int height) {
+        int blocksWide = width / BLOCK;
+        int blocksHigh = height / BLOCK;
+        if (blocksWide < 2 || blocksHigh < 2) {
+            long[] sums = new long[SUMS];
+            addBlock(lumaA, lumaB, width, 0, 0, width, height, sums, 0);
+            double[] similarity = new double[2];
+            addSimilarity(sums, 0, width * height, similarity);
+            return similarity;
+        }
+
+        int windowRows = blocksHigh - 1;
+        int bands = (windowRows + BAND - 1) / BAND;
+        double[][] bandSums = new double[bands][];
+        IntStream.range(0, bands).parallel().forEach(band -> bandSums[band] = sumBand(lumaA, lumaB, width,
+                blocksWide, band * BAND, Math.min(windowRows, (band + 1) * BAND)));
+
+        double ssimSum = 0;
+        double csSum = 0;
+        for (double[] sums : bandSums) {
+            ssimSum += sums[0];
+            csSum += sums[1];
+        }
+        double windows = (double) (blocksWide - 1) * windowRows;
+        return new double[] { ssimSum / windows, csSum / windows };
+    }
+
+    /**
+     * Sum SSIM and the contrast-structure term over the windows whose top
+     * block row lies in [firstRow, endRow). Each window adds up the sums of
+     * its four blocks.
+     */
+    private static double[] sumBand(int[] lumaA, int[] lumaB, int width, int blocksWide, int firstRow,
+            int endRow) {
+        // sums of the current and the next block row, swapped as the window moves down
+        long[] upper = blockRowSums(lumaA, lumaB, width, blocksWide, firstRow, null);
+        long[] lower = null;
+        long[] window = new long[SUMS];
+        double[] similarity = new double[2];
+
+        for (int row = firstRow; row < endRow; row++) {
+            lower = blockRowSums(lumaA, lumaB, width, blocksWide, row + 1, lower);
+            for (int block = 0; block < blocksWide - 1; block++) {
+                int left = block * SUMS;
+                int right = left + SUMS;
+                for (int sum = 0; sum < SUMS; sum++) {
+                    window[sum] = upper[left + sum] + upper[right + sum] + lower[left + sum] + lower[right + sum];
+                }
+                addSimilarity(window, 0, WINDOW * WINDOW, similarity);
+            }
+            long[] swap = upper;
+            upper = lower;
+            lower = swap;
+        }
+        return similarity;
+    }
+
+    // sums of every 4x4 block of one block row, reusing 'sums' when given
+    private static long[] blockRowSums(int[] lumaA, int[] lumaB, int width, int blocksWide, int row,
+            long[] sums) {
+        if (sums == null) {
+            sums = new long[blocksWide * SUMS];
+        } else {
+            Arrays.fill(sums, 0);
+        }
+        for (int block = 0; block < blocksWide; block++) {
+            addBlock(lumaA, lumaB, width, block * BLOCK, row * BLOCK, BLOCK, BLOCK, sums, block * SUMS);
+        }
+        return sums;
+    }
+
+    // add the sums of a, b, a^2, b^2 and ab over a rectangle to sums[offset..offset + 4]; long, as the
+    // fallback for small images sums the whole image and a^2 reaches 65025 per pixel
+    private static void addBlock(int[] lumaA, int[] lumaB, int width, int x0, int y0, int blockWidth,
+            int blockHeight, long[] sums, int offset) {
+        long sumA = 0, sumB = 0, sumAA = 0, sumBB = 0, sumAB = 0;
+        for (int y = y0; y < y0 + blockHeight; y++) {
+            int row = y * width;
+            for (int x = x0; x < x0 + blockWidth; x++) {
+                int a = lumaA[row + x];
+                int b = lumaB[row + x];
+                sumA += a;
+                sumB += b;
+                sumAA += a * a;
+                sumBB += b * b;
+                sumAB += a * b;
+            }
+        }
+        sums[offset] += sumA;
+        sums[offset + 1] += sumB;
+        sums[offset + 2] += sumAA;
+        sums[offset + 3] += sumBB;
+        sums[offset + 4] += sumAB;
+    }
+
+    /**
+     * Add the SSIM and contrast-structure term of a window of n pixels, given
+     * its sums of a, b, a^2, b^2 and ab, to similarity[0] and similarity[1].
+     * Numerators and denominators are scaled by n^2 to save dividing the sums
+     * by n.
+     */
+    private static void addSimilarity(long[] sums, int offset, double n, double[] similarity) {
+        double a = sums[offset];
+        double b = sums[offset + 1];
+        double aa = sums[offset + 2];
+        double bb = sums[offset + 3];
+        double ab = sums[offset + 4];
+        double c1 = C1 * n * n;
+        double c2 = C2 * n * n;
+
+        // luminance = l1 / l2 and contrast-structure = cs1 / cs2, sharing one division
+        double l1 = 2 * a * b + c1;
+        double l2 = a * a + b * b + c1;
+        double cs1 = 2 * (n * ab - a * b) + c2;
+        double cs2 = n * (aa + bb) - a * a - b * b + c2;
+        double reciprocal = 1 / (l2 * cs2);
+        similarity[0] += l1 * cs1 * reciprocal;
+        similarity[1] += cs1 * l2 * reciprocal;
+    }
+}
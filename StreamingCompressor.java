@@ -0,0 +1,440 @@
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import java.util.function.UnaryOperator;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Compresses and decompresses images that do not fit in the heap, holding
+ * only one horizontal band of block rows at a time. The files are the same
+ * as those of Utility (block factor 2) and Utility3X3 (block factor 3), so
+ * either side can be streamed independently, except that tiled,
+ * predictive, rANS coded and progressive files are only decoded by Utility
+ * and Utility3X3.
+ *
+ * Compression reads the image band by band, counting the color values for the
+ * Huffman code and spilling the averaged blocks (3 bytes each) to a temporary
+ * file, which is then encoded straight into the output file. PNG files that
+ * PngRowReader handles are read top to bottom in one pass. Any other image is
+ * read through ImageReader.setSourceRegion, one read per band; readers that
+ * cannot seek to a region (the PNG reader among them) decode every row above
+ * the region again, so that fallback costs about bands / 2 full decodes.
+ * Decompression hands the ImageWriter an image whose rows are decoded band by
+ * band as the writer asks for them; the PNG writer asks for them in order.
+ */
+public class StreamingCompressor {
+    private static final int[] RGB_MASKS = { 0xFF0000, 0xFF00, 0xFF };
+
+    private final int blockFactor;
+    private final int bandBlockRows;
+    private final int codecId;
+    private final UnaryOperator<PixelBuffer> averager;
+
+    /**
+     * @param blockFactor   2 for the Utility codec, 3 for Utility3X3
+     * @param bandBlockRows block rows per band; a band holds
+     *                      bandBlockRows * blockFactor image rows
+     */
+    public StreamingCompressor(int blockFactor, int bandBlockRows) {
+        if (blockFactor == 2) {
+            codecId = CompressedFile.CODEC_AVERAGE_2X2;
+            averager = Utility::averagePixels;
+        } else if (blockFactor == 3) {
+            codecId = CompressedFile.CODEC_AVERAGE_3X3;
+            averager = Utility3X3::averagePixels;
+        } else {
+            throw new IllegalArgumentException("Block factor must be 2 or 3, got " + blockFactor);
+        }
+        if (bandBlockRows <= 0) {
+            throw new IllegalArgumentException("A band needs at least one block row");
+        }
+        this.blockFactor = blockFactor;
+        this.bandBlockRows = bandBlockRows;
+    }
+
+    public void compress(String imageFileName, String outputFileName) throws IOException {
+        try (PngRowReader pngReader = PngRowReader.open(imageFileName)) {
+            if (pngReader != null) {
+                compress(new PngBandSource(pngReader), outputFileName);
+                return;
+            }
+        }
+        try (ImageInputStream input = ImageIO.createImageInputStream(new File(imageFileName))) {
+            Iterator<ImageReader> readers = input == null ? Collections.emptyIterator()
+                    : ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException(imageFileName + " is not a readable image");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input);
+                compress(new RegionBandSource(reader), outputFileName);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private void compress(BandSource source, String outputFileName) throws IOException {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        // fail before the band pass rather than when the file is written
+        CompressedFile.checkDimensions(width, height);
+        int blocksWide = width / blockFactor;
+        int blocksHigh = height / blockFactor;
+
+        File spillFile = File.createTempFile("blocks", ".rgb");
+        try {
+            // Step 1: Average the image band by band, counting the color values and
+            // spilling the averaged blocks so the Huffman pass does not read the image again
+            int[] frequency = new int[256];
+            try (OutputStream spill = new BufferedOutputStream(new FileOutputStream(spillFile), 1 << 16)) {
+                byte[] bytes = new byte[Math.multiplyExact(3 * blocksWide, Math.min(bandBlockRows, blocksHigh))];
+                for (int firstBlockRow = 0; firstBlockRow < blocksHigh; firstBlockRow += bandBlockRows) {
+                    int blockRows = Math.min(bandBlockRows, blocksHigh - firstBlockRow);
+                    int[] blocks = averager.apply(source.readBand(firstBlockRow * blockFactor,
+                            blockRows * blockFactor)).getPixels();
+                    for (int i = 0; i < blocks.length; i++) {
+                        int rgb = blocks[i];
+                        frequency[(rgb >> 16) & 0xFF]++;
+                        frequency[(rgb >> 8) & 0xFF]++;
+                        frequency[rgb & 0xFF]++;
+                        bytes[3 * i] = (byte) (rgb >> 16);
+                        bytes[3 * i + 1] = (byte) (rgb >> 8);
+                        bytes[3 * i + 2] = (byte) rgb;
+                    }
+                    spill.write(bytes, 0, 3 * blocks.length);
+                }
+            }
+
+            // Step 2: Build the Huffman code
+            CanonicalHuffmanCode huffmanCode = EntropyCoder.buildCode(frequency);
+            int[] codes = huffmanCode.getCodes();
+            int[] codeLengths = huffmanCode.getCodeLengths();
+            ByteArrayOutputStream tableSection = new ByteArrayOutputStream();
+            huffmanCode.writeTo(new DataOutputStream(tableSection));
+
+            // Step 3: Encode the spilled blocks straight into the file, red, green then blue
+            CompressedFile compressedFile = new CompressedFile(codecId, blockFactor, width, height,
+                    tableSection.toByteArray(), null);
+            try (InputStream spill = new FileInputStream(spillFile);
+                    OutputStream out = compressedFile.openPayloadWriter(outputFileName)) {
+                byte[] bytes = new byte[1 << 16];
+                BitWriter bitWriter = new BitWriter(bytes.length);
+                int count;
+                while ((count = spill.read(bytes)) > 0) {
+                    for (int i = 0; i < count; i++) {
+                        int color = bytes[i] & 0xFF;
+                        bitWriter.writeBits(codes[color], codeLengths[color]);
+                    }
+                    bitWriter.drainTo(out);
+                }
+                out.write(bitWriter.toByteArray());
+            }
+        } finally {
+            spillFile.delete();
+        }
+    }
+
+    /**
+     * The rows of the image being compressed, read one band at a time from
+     * the top down.
+     */
+    private interface BandSource {
+        int getWidth() throws IOException;
+
+        int getHeight() throws IOException;
+
+        // the 'rows' image rows from 'firstRow' on, which is where the previous band ended
+        PixelBuffer readBand(int firstRow, int rows) throws IOException;
+    }
+
+    // one pass over a PNG file; the band buffer is reused while its height stays the same
+    private static class PngBandSource implements BandSource {
+        private final PngRowReader reader;
+        private PixelBuffer band;
+
+        PngBandSource(PngRowReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public int getWidth() {
+            return reader.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return reader.getHeight();
+        }
+
+        @Override
+        public PixelBuffer readBand(int firstRow, int rows) throws IOException {
+            if (band == null || band.getHeight() != rows) {
+                band = new PixelBuffer(reader.getWidth(), rows);
+            }
+            reader.readRows(band.getPixels(), 0, rows);
+            return band;
+        }
+    }
+
+    // one ImageReader.read per band over its source region
+    private static class RegionBandSource implements BandSource {
+        private final ImageReader reader;
+
+        RegionBandSource(ImageReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public int getWidth() throws IOException {
+            return reader.getWidth(0);
+        }
+
+        @Override
+        public int getHeight() throws IOException {
+            return reader.getHeight(0);
+        }
+
+        @Override
+        public PixelBuffer readBand(int firstRow, int rows) throws IOException {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, firstRow, reader.getWidth(0), rows));
+            return PixelBuffer.fromImage(reader.read(0, param));
+        }
+    }
+
+    /**
+     * Decompress to an image file in the given ImageIO format. Only PNG is
+     * known to pull the rows in order; other writers may fail with an
+     * IllegalStateException when they ask for a band that was already
+     * dropped.
+     */
+    public void decompress(String inputFileName, String imageFileName, String formatName) throws IOException {
+        // Step 1: Validate the file and read the Huffman code lengths, leaving the payload on disk
+        CompressedFile compressedFile = CompressedFile.readStreaming(inputFileName, codecId);
+        if (compressedFile.isTiled()) {
+            throw new IOException("Tiled files cannot be decompressed as a stream");
+        }
+        if (compressedFile.isPredictive()) {
+            throw new IOException("Predictive files cannot be decompressed as a stream");
+        }
+        if (compressedFile.getBackend() != CompressedFile.BACKEND_HUFFMAN) {
+            throw new IOException("rANS coded files cannot be decompressed as a stream");
+        }
+        if (compressedFile.isProgressive()) {
+            throw new IOException("Progressive files cannot be decompressed as a stream");
+        }
+        CanonicalHuffmanCode huffmanCode = CanonicalHuffmanCode.readFrom(compressedFile.openTableSection(), 256);
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(formatName);
+        if (!writers.hasNext()) {
+            throw new IOException("No image writer for format " + formatName);
+        }
+        ImageWriter writer = writers.next();
+
+        // Step 2: Let the writer pull the decoded bands
+        File imageFile = new File(imageFileName);
+        imageFile.delete();
+        try (InputStream payload = compressedFile.openPayload();
+                ImageOutputStream output = ImageIO.createImageOutputStream(imageFile)) {
+            BandDecoder image = new BandDecoder(compressedFile, huffmanCode.createDecoder(),
+                    new BitReader(payload, 1 << 16));
+            writer.setOutput(output);
+            writer.write(new IIOImage(image, null, null));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * A read-only image that decodes its rows one band at a time, keeping only
+     * the current band. Its tiles are the bands, each as wide as the image.
+     */
+    private class BandDecoder implements RenderedImage {
+        private final HuffmanDecoder decoder;
+        private final BitReader bitReader;
+        private final int width;
+        private final int height;
+        private final int blocksWide;
+        private final int blocksHigh;
+        private final int bandHeight;
+        private final ColorModel colorModel = new DirectColorModel(24, RGB_MASKS[0], RGB_MASKS[1], RGB_MASKS[2]);
+
+        // the decoded band, and its index; -1 before the first band
+        private final int[] band;
+        private int bandIndex = -1;
+
+        BandDecoder(CompressedFile compressedFile, HuffmanDecoder decoder, BitReader bitReader) {
+            this.decoder = decoder;
+            this.bitReader = bitReader;
+            this.width = compressedFile.getWidth();
+            this.height = compressedFile.getHeight();
+            this.blocksWide = width / blockFactor;
+            this.blocksHigh = height / blockFactor;
+            this.bandHeight = (int) Math.min(height, (long) bandBlockRows * blockFactor);
+            this.band = new int[Math.multiplyExact(width, bandHeight)];
+        }
+
+        // decode bands until 'index' is the current one
+        private void advanceTo(int index) {
+            if (index < bandIndex) {
+                throw new IllegalStateException("Band " + index + " was already dropped, read the rows in order");
+            }
+            while (bandIndex < index) {
+                bandIndex++;
+                int firstBlockRow = bandIndex * bandBlockRows;
+                int blockRows = Math.max(0, Math.min(bandBlockRows, blocksHigh - firstBlockRow));
+                if (blockRows < bandBlockRows) {
+                    // rows below the last whole block stay black, as in Utility
+                    Arrays.fill(band, 0);
+                }
+                for (int y = 0; y < blockRows; y++) {
+                    for (int x = 0; x < blocksWide; x++) {
+                        int red = decoder.decodeSymbol(bitReader);
+                        int green = decoder.decodeSymbol(bitReader);
+                        int blue = decoder.decodeSymbol(bitReader);
+                        int rgb = PixelBuffer.pack(red, green, blue);
+
+                        // Fill the corresponding block in the band
+                        int rowStart = y * blockFactor * width + x * blockFactor;
+                        for (int row = 0; row < blockFactor; row++) {
+                            Arrays.fill(band, rowStart, rowStart + blockFactor, rgb);
+                            rowStart += width;
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            WritableRaster raster = Raster.createPackedRaster(DataBuffer.TYPE_INT, rect.width, rect.height,
+                    RGB_MASKS, new Point(rect.x, rect.y));
+            copyData(raster);
+            return raster;
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null) {
+                raster = Raster.createPackedRaster(DataBuffer.TYPE_INT, width, height, RGB_MASKS, null);
+            }
+            Rectangle bounds = raster.getBounds().intersection(new Rectangle(width, height));
+            int[] row = new int[bounds.width];
+            for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+                advanceTo(y / bandHeight);
+                System.arraycopy(band, (y % bandHeight) * width + bounds.x, row, 0, bounds.width);
+                raster.setDataElements(bounds.x, y, bounds.width, 1, row);
+            }
+            return raster;
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            int firstRow = tileY * bandHeight;
+            return getData(new Rectangle(0, firstRow, width, Math.min(bandHeight, height - firstRow)));
+        }
+
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(width, height));
+        }
+
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return Image.UndefinedProperty;
+        }
+
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return colorModel;
+        }
+
+        @Override
+        public SampleModel getSampleModel() {
+            return colorModel.createCompatibleSampleModel(width, bandHeight);
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return 1;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return (height + bandHeight - 1) / bandHeight;
+        }
+
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+
+        @Override
+        public int getTileWidth() {
+            return width;
+        }
+
+        @Override
+        public int getTileHeight() {
+            return bandHeight;
+        }
+
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+    }
+}
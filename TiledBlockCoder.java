@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.stream.IntStream;
+
+/**
+ * Huffman codes an image of averaged blocks as independent square tiles so
+ * that encoding and decoding can use one core per tile. All tiles share one
+ * code table; each tile's bitstream starts on a byte boundary.
+ *
+ * Payload layout, all integers big-endian:
+ *
+ * <pre>
+ * tile side in blocks (int), tile count (int),
+ * end offset of each tile's bitstream, relative to the first one (int each),
+ * the tile bitstreams in row-major tile order
+ * </pre>
+ *
+ * Inside a tile the blocks are coded row by row, red, green then blue.
+ */
+public class TiledBlockCoder {
+
+    /**
+     * Count how often each color value occurs, one tile per task.
+     */
+    public static int[] countFrequencies(PixelBuffer averaged, int tileBlocks) {
+        int tilesWide = tilesAcross(averaged.getWidth(), tileBlocks);
+        int tileCount = tilesWide * tilesAcross(averaged.getHeight(), tileBlocks);
+
+        int[][] tileFrequencies = new int[tileCount][];
+        IntStream.range(0, tileCount).parallel().forEach(tile -> {
+            int[] frequency = new int[256];
+            forEachBlock(averaged, tileBlocks, tile, tilesWide, rgb -> {
+                frequency[(rgb >> 16) & 0xFF]++;
+                frequency[(rgb >> 8) & 0xFF]++;
+                frequency[rgb & 0xFF]++;
+            });
+            tileFrequencies[tile] = frequency;
+        });
+
+        int[] colorFrequency = new int[256];
+        for (int[] frequency : tileFrequencies) {
+            for (int color = 0; color < 256; color++) {
+                colorFrequency[color] += frequency[color];
+            }
+        }
+        return colorFrequency;
+    }
+
+    public static byte[] encode(PixelBuffer averaged, int tileBlocks, int[] codes, int[] codeLengths) {
+        int tilesWide = tilesAcross(averaged.getWidth(), tileBlocks);
+        int tileCount = tilesWide * tilesAcross(averaged.getHeight(), tileBlocks);
+
+        // Step 1: Encode every tile into its own bitstream
+        byte[][] tileData = new byte[tileCount][];
+        IntStream.range(0, tileCount).parallel().forEach(tile -> {
+            int tileWidth = Math.min(tileBlocks, averaged.getWidth() - (tile % tilesWide) * tileBlocks);
+            int tileHeight = Math.min(tileBlocks, averaged.getHeight() - (tile / tilesWide) * tileBlocks);
+            BitWriter bitWriter = new BitWriter(tileWidth * tileHeight);
+            forEachBlock(averaged, tileBlocks, tile, tilesWide, rgb -> {
+                bitWriter.writeBits(codes[(rgb >> 16) & 0xFF], codeLengths[(rgb >> 16) & 0xFF]);
+                bitWriter.writeBits(codes[(rgb >> 8) & 0xFF], codeLengths[(rgb >> 8) & 0xFF]);
+                bitWriter.writeBits(codes[rgb & 0xFF], codeLengths[rgb & 0xFF]);
+            });
+            tileData[tile] = bitWriter.toByteArray();
+        });
+
+        // Step 2: Write the tile index followed by the bitstreams
+        long dataLength = 0;
+        for (byte[] data : tileData) {
+            dataLength += data.length;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(Math.toIntExact(8 + 4L * tileCount + dataLength));
+        payload.putInt(tileBlocks);
+        payload.putInt(tileCount);
+        int endOffset = 0;
+        for (byte[] data : tileData) {
+            endOffset += data.length;
+            payload.putInt(endOffset);
+        }
+        for (byte[] data : tileData) {
+            payload.put(data);
+        }
+        return payload.array();
+    }
+
+    /**
+     * Decode every tile in parallel, filling blockFactor x blockFactor pixels
+     * of the output per decoded block. The payload runs from index 0 to the
+     * limit of the buffer, which may be memory-mapped; it is only read with
+     * absolute gets, so the tiles can share it.
+     */
+    public static void decode(ByteBuffer payload, HuffmanDecoder decoder, int blocksWide, int blocksHigh,
+            int blockFactor, PixelBuffer output) throws IOException {
+        // Step 1: Read and check the tile index
+        if (payload.limit() < 8) {
+            throw new IOException("Corrupt tile index: payload of " + payload.limit() + " bytes");
+        }
+        int tileBlocks = payload.getInt(0);
+        int tileCount = payload.getInt(4);
+        if (tileBlocks <= 0) {
+            throw new IOException("Corrupt tile index: tile size " + tileBlocks);
+        }
+        int tilesWide = tilesAcross(blocksWide, tileBlocks);
+        if ((long) tilesWide * tilesAcross(blocksHigh, tileBlocks) != tileCount
+                || 8 + 4L * tileCount > payload.limit()) {
+            throw new IOException("Corrupt tile index: " + tileCount + " tiles");
+        }
+        int dataStart = 8 + 4 * tileCount;
+        int[] tileStart = new int[tileCount + 1];
+        for (int tile = 0; tile < tileCount; tile++) {
+            tileStart[tile + 1] = payload.getInt(8 + 4 * tile);
+            if (tileStart[tile + 1] < tileStart[tile] || dataStart + (long) tileStart[tile + 1] > payload.limit()) {
+                throw new IOException("Corrupt tile index: bad offset for tile " + tile);
+            }
+        }
+
+        // Step 2: Decode the tiles, each into its own region of the output
+        int width = output.getWidth();
+        int[] pixels = output.getPixels();
+        IntStream.range(0, tileCount).parallel().forEach(tile -> {
+            BitReader bitReader = new BitReader(payload, dataStart + tileStart[tile],
+                    tileStart[tile + 1] - tileStart[tile]);
+            int firstX = (tile % tilesWide) * tileBlocks;
+            int firstY = (tile / tilesWide) * tileBlocks;
+            int endX = Math.min(firstX + tileBlocks, blocksWide);
+            int endY = Math.min(firstY + tileBlocks, blocksHigh);
+            for (int y = firstY; y < endY; y++) {
+                for (int x = firstX; x < endX; x++) {
+                    int red = decoder.decodeSymbol(bitReader);
+                    int green = decoder.decodeSymbol(bitReader);
+                    int blue = decoder.decodeSymbol(bitReader);
+                    int rgb = PixelBuffer.pack(red, green, blue);
+
+                    // Fill the corresponding block in the decompressed data
+                    int rowStart = y * blockFactor * width + x * blockFactor;
+                    for (int row = 0; row < blockFactor; row++) {
+                        for (int column = 0; column < blockFactor; column++) {
+                            pixels[rowStart + column] = rgb;
+                        }
+                        rowStart += width;
+                    }
+                }
+            }
+        });
+    }
+
+    static int tilesAcross(int blocks, int tileBlocks) {
+        return (int) ((blocks + (long) tileBlocks - 1) / tileBlocks);
+    }
+
+    interface BlockVisitor {
+        void visit(int rgb);
+    }
+
+    private static void forEachBlock(PixelBuffer averaged, int tileBlocks, int tile, int tilesWide,
+            BlockVisitor visitor) {
+        int width = averaged.getWidth();
+        int[] pixels = averaged.getPixels();
+        int firstX = (tile % tilesWide) * tileBlocks;
+        int firstY = (tile / tilesWide) * tileBlocks;
+        int endX = Math.min(firstX + tileBlocks, width);
+        int endY = Math.min(firstY + tileBlocks, averaged.getHeight());
+        for (int y = firstY; y < endY; y++) {
+            for (int x = firstX; x < endX; x++) {
+                visitor.visit(pixels[y * width + x]);
+            }
+        }
+    }
+}
@@ -1,278 +1,500 @@
-import java.io.*;
-import java.util.*;
-// import java.util.zip.*;
-
-public class Utility {
-
-    public void Compress(int[][][] pixels, String outputFileName) throws IOException {
-
-        int[][][] compressedRGBPixels = averagePixels(pixels);
-        // Step 1: Calculate the frequency of each color value
-        Map<Integer, Integer> colorFrequency = new HashMap<>();
-        for (int[][] row : compressedRGBPixels) {
-            for (int[] pixel : row) {
-                for (int color : pixel) {
-                    colorFrequency.put(color, colorFrequency.getOrDefault(color, 0) + 1);
-                }
-            }
-        }
-
-        // Step 2: Build the Huffman tree
-        HuffmanTree huffmanTree = new HuffmanTree(pixels.length, pixels[0].length, pixels[0][0].length);
-        huffmanTree.buildHuffmanTree(colorFrequency);
-
-        // Step 3: Create a mapping of color values to Huffman codes
-        Map<Integer, String> huffmanCodes = huffmanTree.generateHuffmanCodes();
-
-        // Step 4: Encode the pixel data using Huffman codes
-        List<String> encodedData = new ArrayList<>();
-        for (int[][] row : compressedRGBPixels) {
-            for (int[] pixel : row) {
-                for (int color : pixel) {
-                    encodedData.add(huffmanCodes.get(color));
-                }
-            }
-        }
-
-        StringBuilder compressedDataBuilder = new StringBuilder();
-        for (String code : encodedData) {
-            compressedDataBuilder.append(code);
-        }
-        String compressedDataString = compressedDataBuilder.toString();
-        // Convert binary string to bytes
-        byte[] compressedDataBytes = convertBinaryStringToBytes(compressedDataString);
-
-        // Step 5: Write the compressed data into the output file
-        // apply GZIP
-        // try (ObjectOutputStream oos = new ObjectOutputStream(
-        // new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(outputFileName))))) {
-
-        // without GZIP
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(outputFileName))) {
-            // Serialize Huffman tree for decoding
-            oos.writeObject(huffmanTree);
-            // Serialize the compressed data
-            oos.writeObject(compressedDataBytes);
-        }
-    }
-
-    public int[][][] Decompress(String inputFileName) throws IOException, ClassNotFoundException {
-        // apply GZIP
-        // try (ObjectInputStream ois = new ObjectInputStream(
-        // new BufferedInputStream(new GZIPInputStream(new FileInputStream(inputFileName))))) {
-
-        // without GZIP
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(inputFileName))) {
-            // Step 1: Read the Huffman tree from the input file
-            Object huffmanTreeObject = ois.readObject();
-
-            if (huffmanTreeObject instanceof HuffmanTree) {
-                HuffmanTree huffmanTree = (HuffmanTree) huffmanTreeObject;
-
-                // Step 2: Read the compressed data as a byte array
-                byte[] compressedDataByteArray = (byte[]) ois.readObject();
-
-                // Step 3: Get the original width and height
-                int originalWidth = huffmanTree.getWidth();
-                int originalHeight = huffmanTree.getHeight();
-
-                // Step 4: Calculate the compressed width and height
-                int compressedWidth = originalWidth / 2;
-                int compressedHeight = originalHeight / 2;
-
-                // Step 5: Reconstruct the original int[][][] pixel array
-                int colorDepth = huffmanTree.colorDepth;
-                int[][][] pixels = new int[originalWidth][originalHeight][colorDepth];
-
-                // Initialize the bit position
-                int currentBit = 0;
-                // Start from the root of the Huffman tree
-                HuffmanTree.HuffmanNode currentNode = huffmanTree.root;
-
-                for (int x = 0; x < compressedWidth; x++) {
-                    for (int y = 0; y < compressedHeight; y++) {
-                        for (int z = 0; z < colorDepth; z++) {
-                            // Reset to the root for each pixel
-                            currentNode = huffmanTree.root;
-                            while (true) {
-                                // Check if reached the end of the compressed data
-                                if (currentBit >= compressedDataByteArray.length * 8) {
-                                    // Return the reconstructed image
-                                    return pixels;
-                                }
-
-                                if (currentNode.isLeaf()) {
-                                    // reached a leaf node, which represents a color value
-                                    int color = currentNode.color;
-
-                                    // Determine the position in the decompressed array
-                                    int decompressedX = x * 2;
-                                    int decompressedY = y * 2;
-                                    // Fill the corresponding 2x2 block in the decompressed data
-                                    pixels[decompressedX][decompressedY][z] = color;
-                                    pixels[decompressedX + 1][decompressedY][z] = color;
-                                    pixels[decompressedX][decompressedY + 1][z] = color;
-                                    pixels[decompressedX + 1][decompressedY + 1][z] = color;
-                                    break;
-                                }
-
-                                // Read one bit from the compressed data
-                                int bit = (compressedDataByteArray[currentBit >> 3] >> (7 - (currentBit % 8))) & 1;
-                                currentBit++;
-
-                                // Traverse the Huffman tree based on the bit
-                                if (bit == 0) {
-                                    currentNode = currentNode.left;
-                                } else {
-                                    currentNode = currentNode.right;
-                                }
-                            }
-                        }
-                    }
-                }
-
-                return pixels;
-            } else {
-                throw new IOException("Invalid object type in the input file");
-            }
-        }
-    }
-
-    public static byte[] convertBinaryStringToBytes(String binaryString) {
-        int length = binaryString.length();
-        int byteCount = (length + 7) / 8;
-
-        byte[] bytes = new byte[byteCount];
-
-        for (int i = 0; i < byteCount; i++) {
-            int start = i * 8;
-            int end = Math.min(start + 8, length);
-            String chunk = binaryString.substring(start, end);
-            bytes[i] = (byte) Integer.parseInt(chunk, 2);
-        }
-
-        return bytes;
-    }
-
-    static class HuffmanTree implements Serializable {
-        private HuffmanNode root;
-        private int width;
-        private int height;
-        private int colorDepth;
-
-        public HuffmanTree(int width, int height, int colorDepth) {
-            this.width = width;
-            this.height = height;
-            this.colorDepth = colorDepth;
-        }
-
-        public void buildHuffmanTree(Map<Integer, Integer> colorFrequency) {
-            PriorityQueue<HuffmanNode> priorityQueue = new PriorityQueue<>((a, b) -> a.frequency - b.frequency);
-
-            // Create leaf nodes for each color value
-            for (Map.Entry<Integer, Integer> entry : colorFrequency.entrySet()) {
-                HuffmanNode node = new HuffmanNode(entry.getKey(), entry.getValue());
-                priorityQueue.offer(node);
-            }
-
-            // Build the Huffman tree
-            while (priorityQueue.size() > 1) {
-                HuffmanNode left = priorityQueue.poll();
-                HuffmanNode right = priorityQueue.poll();
-                HuffmanNode parent = new HuffmanNode(-1, left.frequency + right.frequency);
-                parent.left = left;
-                parent.right = right;
-                priorityQueue.offer(parent);
-            }
-            root = priorityQueue.poll();
-        }
-
-        public Map<Integer, String> generateHuffmanCodes() {
-            Map<Integer, String> huffmanCodes = new HashMap<>();
-            if (root != null) {
-                String code = "";
-                generateHuffmanCodesRecursive(root, code, huffmanCodes);
-            }
-            return huffmanCodes;
-        }
-
-        private void generateHuffmanCodesRecursive(HuffmanNode node, String code, Map<Integer, String> huffmanCodes) {
-            if (node.isLeaf()) {
-                huffmanCodes.put(node.color, code);
-            } else {
-                if (node.left != null) {
-                    // Append a '0' bit to the code
-                    generateHuffmanCodesRecursive(node.left, code + "0", huffmanCodes);
-                }
-                if (node.right != null) {
-                    // Append a '1' bit to the code
-                    generateHuffmanCodesRecursive(node.right, code + "1", huffmanCodes);
-                }
-            }
-        }
-
-        public int getWidth() {
-            return width;
-        }
-
-        public int getHeight() {
-            return height;
-        }
-
-        public int getColorDepth() {
-            return colorDepth;
-        }
-
-        static class HuffmanNode implements Serializable {
-            int color;
-            int frequency;
-            HuffmanNode left;
-            HuffmanNode right;
-
-            HuffmanNode(int color, int frequency) {
-                this.color = color;
-                this.frequency = frequency;
-            }
-
-            boolean isLeaf() {
-                return left == null && right == null;
-            }
-        }
-
-    }
-
-    public static int[][][] averagePixels(int[][][] pixels) {
-        int width = pixels.length;
-        int height = pixels[0].length;
-
-        int newWidth = width / 2;
-        int newHeight = height / 2;
-        int[][][] averagedPixels = new int[newWidth][newHeight][3];
-
-        for (int i = 0; i < newWidth; i++) {
-            for (int j = 0; j < newHeight; j++) {
-                int sumR = 0, sumG = 0, sumB = 0;
-
-                for (int x = i * 2; x < i * 2 + 2; x++) {
-                    for (int y = j * 2; y < j * 2 + 2; y++) {
-                        sumR += pixels[x][y][0];
-                        sumG += pixels[x][y][1];
-                        sumB += pixels[x][y][2];
-                    }
-                }
-
-                // rounding to near 10
-                int avgR = (sumR / 4) == 255 ? 250 : Math.round((sumR / 4) / (float) 10) * 10;
-                int avgG = (sumG / 4) == 255 ? 250 : Math.round((sumG / 4) / (float) 10) * 10;
-                int avgB = (sumB / 4) == 255 ? 250 : Math.round((sumB / 4) / (float) 10) * 10;
-
-                averagedPixels[i][j][0] = avgR;
-                averagedPixels[i][j][1] = avgG;
-                averagedPixels[i][j][2] = avgB;
-            }
-        }
-
-        return averagedPixels;
-    }
-
-}
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.stream.IntStream;
+
+public class Utility {
+    // how Compress lays out the file
+    private final Mode mode;
+
+    public Utility() {
+        this(Mode.FLAT);
+    }
+
+    /**
+     * @param mode how to lay out the compressed file: one stream, parallel
+     *             tiles, prediction residuals or a progressive pyramid
+     */
+    public Utility(Mode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("Mode must not be null");
+        }
+        this.mode = mode;
+    }
+
+    /**
+     * How Compress lays out the file, with the entropy coder it allows. A
+     * single stream, with or without prediction, can be Huffman or rANS
+     * coded; tiles and pyramids are always Huffman coded. Every file is
+     * decoded by any Utility, whatever its mode.
+     */
+    public static final class Mode {
+        public static final Mode FLAT = new Mode(0, false, CompressedFile.BACKEND_HUFFMAN, 0);
+
+        // side of the tiles that are coded in parallel, in pixels; 0 codes the
+        // whole image as a single stream
+        private final int tileSize;
+        // code prediction residuals instead of the averaged values, see PredictiveCoder
+        private final boolean predictive;
+        // entropy coder, one of the CompressedFile.BACKEND_ constants
+        private final int backend;
+        // levels of the progressive pyramid, see PyramidCoder; 0 for a flat file
+        private final int pyramidLevels;
+
+        private Mode(int tileSize, boolean predictive, int backend, int pyramidLevels) {
+            this.tileSize = tileSize;
+            this.predictive = predictive;
+            this.backend = backend;
+            this.pyramidLevels = pyramidLevels;
+        }
+
+        /**
+         * The averaged values as one stream, coded with
+         * CompressedFile.BACKEND_HUFFMAN or BACKEND_RANS.
+         */
+        public static Mode flat(int backend) {
+            CompressedFile.backendFlags(backend);
+            return new Mode(0, false, backend, 0);
+        }
+
+        /**
+         * Square tiles of tileSize pixels, rounded down to whole 2x2 blocks,
+         * averaged and coded in parallel with one Huffman code.
+         */
+        public static Mode tiled(int tileSize) {
+            if (tileSize < 2) {
+                throw new IllegalArgumentException("Tile size must be at least 2 pixels, got " + tileSize);
+            }
+            return new Mode(tileSize - tileSize % 2, false, CompressedFile.BACKEND_HUFFMAN, 0);
+        }
+
+        /**
+         * The residuals of per-row predictors as one stream, coded with
+         * CompressedFile.BACKEND_HUFFMAN or BACKEND_RANS.
+         */
+        public static Mode predictive(int backend) {
+            CompressedFile.backendFlags(backend);
+            return new Mode(0, true, backend, 0);
+        }
+
+        /**
+         * levels resolutions stored coarse to fine in one Huffman coded
+         * stream, so DecompressScaled can stop early.
+         */
+        public static Mode progressive(int levels) {
+            if (levels < 1 || levels > PyramidCoder.MAX_PYRAMID_LEVELS) {
+                throw new IllegalArgumentException("Pyramid levels must be between 1 and "
+                        + PyramidCoder.MAX_PYRAMID_LEVELS + ", got " + levels);
+            }
+            return new Mode(0, false, CompressedFile.BACKEND_HUFFMAN, levels);
+        }
+    }
+
+    public void Compress(int[][][] pixels, String outputFileName) throws IOException {
+        Compress(PixelBuffer.fromArray(pixels), outputFileName);
+    }
+
+    public void Compress(PixelBuffer pixels, String outputFileName) throws IOException {
+        if (mode.tileSize > 0) {
+            CompressTiled(pixels, outputFileName);
+            return;
+        }
+        if (mode.predictive) {
+            CompressPredictive(pixels, outputFileName);
+            return;
+        }
+        if (mode.pyramidLevels > 0) {
+            CompressProgressive(pixels, outputFileName);
+            return;
+        }
+
+        int[] compressedRGBPixels = averagePixels(pixels).getPixels();
+        // Step 1: Calculate the frequency of each color value
+        int[] colorFrequency = new int[256];
+        EntropyCoder.countChannels(compressedRGBPixels, colorFrequency);
+
+        // With the rANS backend, store the scaled frequencies and code the values with them
+        if (mode.backend == CompressedFile.BACKEND_RANS) {
+            RansCoder ransCoder = RansCoder.fromHistogram(colorFrequency);
+            ByteArrayOutputStream tableSection = new ByteArrayOutputStream();
+            ransCoder.writeTo(new DataOutputStream(tableSection));
+            new CompressedFile(CompressedFile.CODEC_AVERAGE_2X2, 2, CompressedFile.backendFlags(mode.backend),
+                    pixels.getWidth(), pixels.getHeight(), tableSection.toByteArray(),
+                    ransCoder.encodeChannels(compressedRGBPixels)).write(outputFileName);
+            return;
+        }
+
+        // Step 2: Build the Huffman code lengths and assign canonical codes from them
+        CanonicalHuffmanCode huffmanCode = EntropyCoder.buildCode(colorFrequency);
+
+        // Step 3: Encode the pixel data straight into packed bytes, red, green then blue
+        BitWriter bitWriter = new BitWriter(compressedRGBPixels.length);
+        EntropyCoder.encodeChannels(compressedRGBPixels, huffmanCode, bitWriter);
+        byte[] compressedDataBytes = bitWriter.toByteArray();
+
+        // Step 4: Write the code lengths and compressed data into the output file
+        ByteArrayOutputStream tableSection = new ByteArrayOutputStream();
+        huffmanCode.writeTo(new DataOutputStream(tableSection));
+        new CompressedFile(CompressedFile.CODEC_AVERAGE_2X2, 2, pixels.getWidth(), pixels.getHeight(),
+                tableSection.toByteArray(), compressedDataBytes).write(outputFileName);
+    }
+
+    /**
+     * Compress with the image split into tiles that are averaged, counted and
+     * encoded in parallel. The tiles share one Huffman code.
+     */
+    private void CompressTiled(PixelBuffer pixels, String outputFileName) throws IOException {
+        int tileBlocks = mode.tileSize / 2;
+
+        // Step 1: Average the blocks and count the color values, a band of tiles per task
+        PixelBuffer averaged = averagePixels(pixels, tileBlocks);
+        int[] frequency = TiledBlockCoder.countFrequencies(averaged, tileBlocks);
+
+        // Step 2: Build the shared Huffman code
+        CanonicalHuffmanCode huffmanCode = EntropyCoder.buildCode(frequency);
+
+        // Step 3: Encode every tile into its own bitstream
+        byte[] compressedDataBytes = TiledBlockCoder.encode(averaged, tileBlocks, huffmanCode.getCodes(),
+                huffmanCode.getCodeLengths());
+
+        // Step 4: Write the code lengths and the tiles into the output file
+        ByteArrayOutputStream tableSection = new ByteArrayOutputStream();
+        huffmanCode.writeTo(new DataOutputStream(tableSection));
+        new CompressedFile(CompressedFile.CODEC_AVERAGE_2X2, 2, CompressedFile.FLAG_TILED, pixels.getWidth(),
+                pixels.getHeight(), tableSection.toByteArray(), compressedDataBytes).write(outputFileName);
+    }
+
+    /**
+     * Compress the residuals of the averaged levels after each row's
+     * prediction filter, see PredictiveCoder.
+     */
+    private void CompressPredictive(PixelBuffer pixels, String outputFileName) throws IOException {
+        PixelBuffer averaged = averagePixels(pixels);
+        int width = averaged.getWidth();
+        int height = averaged.getHeight();
+
+        // Step 1: Pick a filter for every row and turn the levels into residuals
+        byte[] filters = new byte[height];
+        int[] residuals = PredictiveCoder.filter(PredictiveCoder.levels(averaged), width, height, filters);
+
+        // Step 2: Build the Huffman code of the residuals
+        int[] residualFrequency = new int[PredictiveCoder.LEVELS];
+        EntropyCoder.count(residuals, residualFrequency);
+        int flags = CompressedFile.FLAG_PREDICTIVE | CompressedFile.backendFlags(mode.backend);
+        // With the rANS backend, the row filters are followed by the rANS stream
+        if (mode.backend == CompressedFile.BACKEND_RANS) {
+            RansCoder ransCoder = RansCoder.fromHistogram(residualFrequency);
+            byte[] coded = ransCoder.encode(residuals);
+            byte[] payload = new byte[height + coded.length];
+            System.arraycopy(filters, 0, payload, 0, height);
+            System.arraycopy(coded, 0, payload, height, coded.length);
+            ByteArrayOutputStream tableSection = new ByteArrayOutputStream();
+            ransCoder.writeTo(new DataOutputStream(tableSection));
+            new CompressedFile(CompressedFile.CODEC_AVERAGE_2X2, 2, flags, pixels.getWidth(), pixels.getHeight(),
+                    tableSection.toByteArray(), payload).write(outputFileName);
+            return;
+        }
+        CanonicalHuffmanCode huffmanCode = EntropyCoder.buildCode(residualFrequency);
+
+        // Step 3: Write the row filters, then the residuals as packed bytes
+        BitWriter bitWriter = new BitWriter(height + residuals.length / 2);
+        for (byte filter : filters) {
+            bitWriter.writeBits(filter, 8);
+        }
+        EntropyCoder.encode(residuals, huffmanCode, bitWriter);
+
+        // Step 4: Write the code lengths and compressed data into the output file
+        ByteArrayOutputStream tableSection = new ByteArrayOutputStream();
+        huffmanCode.writeTo(new DataOutputStream(tableSection));
+        new CompressedFile(CompressedFile.CODEC_AVERAGE_2X2, 2, flags, pixels.getWidth(), pixels.getHeight(),
+                tableSection.toByteArray(), bitWriter.toByteArray()).write(outputFileName);
+    }
+
+    /**
+     * Compress the averaged levels as a coarse-to-fine pyramid, see
+     * PyramidCoder. The table section is empty: every level carries its own
+     * Huffman code.
+     */
+    private void CompressProgressive(PixelBuffer pixels, String outputFileName) throws IOException {
+        PixelBuffer averaged = averagePixels(pixels);
+        byte[] payload = PyramidCoder.encode(PredictiveCoder.levels(averaged), averaged.getWidth(),
+                averaged.getHeight(), mode.pyramidLevels);
+        new CompressedFile(CompressedFile.CODEC_AVERAGE_2X2, 2, CompressedFile.FLAG_PROGRESSIVE, pixels.getWidth(),
+                pixels.getHeight(), new byte[0], payload).write(outputFileName);
+    }
+
+    public int[][][] Decompress(String inputFileName) throws IOException {
+        return DecompressToBuffer(inputFileName).toArray();
+    }
+
+    public PixelBuffer DecompressToBuffer(String inputFileName) throws IOException {
+        CompressedFile compressedFile = CompressedFile.map(inputFileName, CompressedFile.CODEC_AVERAGE_2X2);
+        return compressedFile.decodeChecked(() -> DecompressMapped(compressedFile));
+    }
+
+    /**
+     * Decode a mapped file, whose CRC decodeChecked checks afterwards.
+     */
+    private static PixelBuffer DecompressMapped(CompressedFile compressedFile) throws IOException {
+        // Step 1: Read the Huffman code lengths
+        if (compressedFile.isProgressive()) {
+            checkProgressive(compressedFile);
+            PixelBuffer pixels = new PixelBuffer(compressedFile.getWidth(), compressedFile.getHeight());
+            int compressedWidth = pixels.getWidth() / 2;
+            int compressedHeight = pixels.getHeight() / 2;
+            fillLevels(PyramidCoder.decode(compressedFile.getPayloadBuffer(), compressedWidth, compressedHeight, 0),
+                    compressedWidth, compressedHeight, pixels);
+            return pixels;
+        }
+        if (compressedFile.getBackend() == CompressedFile.BACKEND_RANS) {
+            return DecompressRans(compressedFile);
+        }
+        CanonicalHuffmanCode huffmanCode = CanonicalHuffmanCode.readFrom(compressedFile.openTableSection(),
+                compressedFile.isPredictive() ? PredictiveCoder.LEVELS : 256);
+
+        // Step 2: Get the mapped compressed data and the original width and height
+        ByteBuffer compressedData = compressedFile.getPayloadBuffer();
+        int originalWidth = compressedFile.getWidth();
+        int originalHeight = compressedFile.getHeight();
+
+        // Step 3: Calculate the compressed width and height
+        int compressedWidth = originalWidth / 2;
+        int compressedHeight = originalHeight / 2;
+
+        // Step 4: Reconstruct the original image, one averaged pixel at a time
+        PixelBuffer pixels = new PixelBuffer(originalWidth, originalHeight);
+        int[] output = pixels.getPixels();
+
+        if (compressedFile.isTiled()) {
+            TiledBlockCoder.decode(compressedData, huffmanCode.createDecoder(), compressedWidth,
+                    compressedHeight, 2, pixels);
+            return pixels;
+        }
+
+        // Decode one whole color value per table lookup
+        HuffmanDecoder decoder = huffmanCode.createDecoder();
+        BitReader bitReader = new BitReader(compressedData);
+
+        if (compressedFile.isPredictive()) {
+            DecompressPredictive(decoder, bitReader, compressedWidth, compressedHeight, pixels);
+            return pixels;
+        }
+
+        for (int y = 0; y < compressedHeight; y++) {
+            for (int x = 0; x < compressedWidth; x++) {
+                int red = decoder.decodeSymbol(bitReader);
+                int green = decoder.decodeSymbol(bitReader);
+                int blue = decoder.decodeSymbol(bitReader);
+                int rgb = PixelBuffer.pack(red, green, blue);
+
+                // Fill the corresponding 2x2 block in the decompressed data
+                int index = (y * 2) * originalWidth + x * 2;
+                output[index] = rgb;
+                output[index + 1] = rgb;
+                output[index + originalWidth] = rgb;
+                output[index + originalWidth + 1] = rgb;
+            }
+        }
+
+        return pixels;
+    }
+
+    /**
+     * Decode a thumbnail of a 2x2 file, 1/scale of its width and height
+     * rounded up, where scale is a power of two of at least 2. Each pixel is
+     * close to the mean of a scale x scale block of the image Decompress
+     * returns, in steps of 10 like the levels of PredictiveCoder. Progressive
+     * files are read only down to the level of that scale, so a 1/8 thumbnail
+     * touches under a tenth of their payload; other files are fully decoded
+     * first.
+     */
+    public PixelBuffer DecompressScaled(String inputFileName, int scale) throws IOException {
+        if (scale < 2 || Integer.bitCount(scale) != 1) {
+            throw new IllegalArgumentException("Scale must be a power of two of at least 2, not " + scale);
+        }
+        int target = Integer.numberOfTrailingZeros(scale) - 1;
+
+        // Step 1: Decode the pyramid level of the scale, or reduce the full image to it
+        CompressedFile compressedFile = CompressedFile.map(inputFileName, CompressedFile.CODEC_AVERAGE_2X2);
+        int compressedWidth = compressedFile.getWidth() / 2;
+        int compressedHeight = compressedFile.getHeight() / 2;
+        if (target >= PyramidCoder.MAX_PYRAMID_LEVELS || compressedWidth == 0 || compressedHeight == 0) {
+            throw new IllegalArgumentException("Scale " + scale + " is too large for " + inputFileName);
+        }
+        int[] levels;
+        if (compressedFile.isProgressive()) {
+            // every level read has its own CRC, so the file's CRC over all of them is not checked
+            checkProgressive(compressedFile);
+            levels = PyramidCoder.decode(compressedFile.getPayloadBuffer(), compressedWidth, compressedHeight, target);
+        } else {
+            PixelBuffer pixels = compressedFile.decodeChecked(() -> DecompressMapped(compressedFile));
+            PixelBuffer averaged = new PixelBuffer(compressedWidth, compressedHeight);
+            for (int y = 0; y < compressedHeight; y++) {
+                for (int x = 0; x < compressedWidth; x++) {
+                    averaged.setRGB(x, y, pixels.getRGB(2 * x, 2 * y));
+                }
+            }
+            levels = PredictiveCoder.levels(averaged);
+            for (int level = 0; level < target; level++) {
+                levels = PyramidCoder.reduce(levels, PyramidCoder.levelSize(compressedWidth, level),
+                        PyramidCoder.levelSize(compressedHeight, level));
+            }
+        }
+
+        // Step 2: One output pixel per level pixel
+        PixelBuffer thumbnail = new PixelBuffer(PyramidCoder.levelSize(compressedWidth, target),
+                PyramidCoder.levelSize(compressedHeight, target));
+        int[] output = thumbnail.getPixels();
+        for (int i = 0; i < output.length; i++) {
+            output[i] = PixelBuffer.pack(levels[3 * i] * 10, levels[3 * i + 1] * 10, levels[3 * i + 2] * 10);
+        }
+        return thumbnail;
+    }
+
+    // a progressive file has no tiles, prediction or backend of its own
+    private static void checkProgressive(CompressedFile compressedFile) throws IOException {
+        if (compressedFile.isTiled() || compressedFile.isPredictive()
+                || compressedFile.getBackend() != CompressedFile.BACKEND_HUFFMAN) {
+            throw new IOException("Corrupt header: progressive files are neither tiled, predictive nor rANS coded");
+        }
+    }
+
+    /**
+     * Decode a file written with the rANS backend. Predictive payloads start
+     * with the row filters, one byte each, as with Huffman coding.
+     */
+    private static PixelBuffer DecompressRans(CompressedFile compressedFile) throws IOException {
+        ByteBuffer payload = compressedFile.getPayloadBuffer();
+        int compressedWidth = compressedFile.getWidth() / 2;
+        int compressedHeight = compressedFile.getHeight() / 2;
+        PixelBuffer pixels = new PixelBuffer(compressedFile.getWidth(), compressedFile.getHeight());
+        if (compressedFile.isTiled()) {
+            throw new IOException("Corrupt header: rANS coded files are not tiled");
+        }
+
+        if (compressedFile.isPredictive()) {
+            RansCoder ransCoder = RansCoder.readFrom(compressedFile.openTableSection(), PredictiveCoder.LEVELS);
+            byte[] filters = readFilters(new BitReader(payload, 0, Math.min(payload.limit(), compressedHeight)),
+                    compressedHeight);
+            int[] levels = new int[3 * compressedWidth * compressedHeight];
+            ransCoder.decode(payload, compressedHeight, levels);
+            PredictiveCoder.unfilter(levels, compressedWidth, compressedHeight, filters);
+            fillLevels(levels, compressedWidth, compressedHeight, pixels);
+            return pixels;
+        }
+
+        int[] averaged = new int[compressedWidth * compressedHeight];
+        RansCoder.readFrom(compressedFile.openTableSection(), 256).decodeChannels(payload, averaged);
+        int originalWidth = pixels.getWidth();
+        int[] output = pixels.getPixels();
+        for (int y = 0; y < compressedHeight; y++) {
+            for (int x = 0; x < compressedWidth; x++) {
+                int rgb = averaged[y * compressedWidth + x];
+
+                // Fill the corresponding 2x2 block in the decompressed data
+                int index = (y * 2) * originalWidth + x * 2;
+                output[index] = rgb;
+                output[index + 1] = rgb;
+                output[index + originalWidth] = rgb;
+                output[index + originalWidth + 1] = rgb;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Read the row filters, decode the residuals, undo the prediction and
+     * fill each 2x2 block with its level times 10.
+     */
+    private static void DecompressPredictive(HuffmanDecoder decoder, BitReader bitReader, int compressedWidth,
+            int compressedHeight, PixelBuffer pixels) throws IOException {
+        byte[] filters = readFilters(bitReader, compressedHeight);
+        int[] levels = new int[3 * compressedWidth * compressedHeight];
+        EntropyCoder.decode(decoder, bitReader, levels, 0, levels.length);
+        PredictiveCoder.unfilter(levels, compressedWidth, compressedHeight, filters);
+        fillLevels(levels, compressedWidth, compressedHeight, pixels);
+    }
+
+    // the filter of every row of blocks, one byte each
+    private static byte[] readFilters(BitReader bitReader, int compressedHeight) throws IOException {
+        byte[] filters = new byte[compressedHeight];
+        for (int y = 0; y < compressedHeight; y++) {
+            int filter = bitReader.readBits(8);
+            if (filter >= PredictiveCoder.FILTERS) {
+                throw new IOException("Corrupt predictive data: unknown filter " + filter + " in row " + y);
+            }
+            filters[y] = (byte) filter;
+        }
+        return filters;
+    }
+
+    // fill each 2x2 block with its level times 10
+    private static void fillLevels(int[] levels, int compressedWidth, int compressedHeight, PixelBuffer pixels) {
+        int originalWidth = pixels.getWidth();
+        int[] output = pixels.getPixels();
+        for (int y = 0; y < compressedHeight; y++) {
+            for (int x = 0; x < compressedWidth; x++) {
+                int i = 3 * (y * compressedWidth + x);
+                int rgb = PixelBuffer.pack(levels[i] * 10, levels[i + 1] * 10, levels[i + 2] * 10);
+
+                int index = (y * 2) * originalWidth + x * 2;
+                output[index] = rgb;
+                output[index + 1] = rgb;
+                output[index + originalWidth] = rgb;
+                output[index + originalWidth + 1] = rgb;
+            }
+        }
+    }
+
+    public static int[][][] averagePixels(int[][][] pixels) {
+        return averagePixels(PixelBuffer.fromArray(pixels)).toArray();
+    }
+
+    public static PixelBuffer averagePixels(PixelBuffer pixels) {
+        PixelBuffer averagedPixels = new PixelBuffer(pixels.getWidth() / 2, pixels.getHeight() / 2);
+        averageRows(pixels, averagedPixels, 0, averagedPixels.getHeight());
+        return averagedPixels;
+    }
+
+    /**
+     * Average the blocks in parallel, one band of bandRows block rows per task.
+     */
+    public static PixelBuffer averagePixels(PixelBuffer pixels, int bandRows) {
+        PixelBuffer averagedPixels = new PixelBuffer(pixels.getWidth() / 2, pixels.getHeight() / 2);
+        int newHeight = averagedPixels.getHeight();
+        IntStream.range(0, (newHeight + bandRows - 1) / bandRows).parallel()
+                .forEach(band -> averageRows(pixels, averagedPixels, band * bandRows,
+                        Math.min(newHeight, (band + 1) * bandRows)));
+        return averagedPixels;
+    }
+
+    // average the blocks of rows firstRow to endRow - 1 of the averaged image
+    private static void averageRows(PixelBuffer pixels, PixelBuffer averagedPixels, int firstRow, int endRow) {
+        int width = pixels.getWidth();
+        int[] source = pixels.getPixels();
+        int newWidth = averagedPixels.getWidth();
+        int[] target = averagedPixels.getPixels();
+
+        for (int j = firstRow; j < endRow; j++) {
+            for (int i = 0; i < newWidth; i++) {
+                int sumR = 0, sumG = 0, sumB = 0;
+
+                for (int y = j * 2; y < j * 2 + 2; y++) {
+                    for (int x = i * 2; x < i * 2 + 2; x++) {
+                        int rgb = source[y * width + x];
+                        sumR += (rgb >> 16) & 0xFF;
+                        sumG += (rgb >> 8) & 0xFF;
+                        sumB += rgb & 0xFF;
+                    }
+                }
+
+                // rounding to near 10
+                int avgR = (sumR / 4) == 255 ? 250 : Math.round((sumR / 4) / (float) 10) * 10;
+                int avgG = (sumG / 4) == 255 ? 250 : Math.round((sumG / 4) / (float) 10) * 10;
+                int avgB = (sumB / 4) == 255 ? 250 : Math.round((sumB / 4) / (float) 10) * 10;
+
+                target[j * newWidth + i] = PixelBuffer.pack(avgR, avgG, avgB);
+            }
+        }
+    }
+
+}
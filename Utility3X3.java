@@ -1,282 +1,278 @@
-import java.io.*;
-import java.util.*;
-
-public class Utility3X3 {
-
-    public void Compress(int[][][] pixels, String outputFileName) throws IOException {
-        // The following is a bad implementation that we have intentionally put in the
-        // function to make App.java run, you should
-        // write code to reimplement the function without changing any of the input
-        // parameters, and making sure the compressed file
-        // gets written into outputFileName
-
-        int[][][] compressedRGBPixels = averagePixels(pixels);
-
-        // Step 1: Calculate the frequency of each color value
-
-        Map<Integer, Integer> colorFrequency = new HashMap<>();
-        int width = compressedRGBPixels.length;
-        int height = 0;
-        for (int[][] row : compressedRGBPixels) {
-            height = row.length;
-            for (int[] pixel : row) {
-                for (int color : pixel) {
-                    colorFrequency.put(color, colorFrequency.getOrDefault(color, 0) + 1);
-                }
-            }
-        }
-
-        // Step 2: Build the Huffman tree
-        HuffmanTree huffmanTree = new HuffmanTree(width, height, 3);
-        huffmanTree.buildHuffmanTree(colorFrequency);
-        // Step 3: Create a mapping of color values to Huffman codes
-        Map<Integer, String> huffmanCodes = huffmanTree.generateHuffmanCodes();
-
-        // Step 4: Encode the pixel data using Huffman codes
-        List<String> encodedData = new ArrayList<>();
-        for (int[][] row : compressedRGBPixels) {
-            for (int[] pixel : row) {
-                for (int color : pixel) {
-                    encodedData.add(huffmanCodes.get(color));
-                }
-            }
-        }
-
-        StringBuilder compressedDataBuilder = new StringBuilder();
-        for (String code : encodedData) {
-            compressedDataBuilder.append(code);
-        }
-        String compressedDataString = compressedDataBuilder.toString();
-
-        // Convert binary string to bytes
-        byte[] compressedDataBytes = convertBinaryStringToBytes(compressedDataString);
-
-        // Step 5: Write the compressed data into the output file
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(outputFileName))) {
-            oos.writeObject(huffmanTree); // Serialize Huffman tree for decoding
-            oos.writeObject(compressedDataBytes); // Serialize the compressed data
-
-            int[] dimensions = { pixels.length, pixels[0].length };
-            oos.writeObject(dimensions);
-        }
-    }
-
-    public int[][][] Decompress(String inputFileName) throws IOException, ClassNotFoundException {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(inputFileName))) {
-            // Step 1: Read the Huffman tree from the input file
-            Object huffmanTreeObject = ois.readObject();
-
-            if (huffmanTreeObject instanceof HuffmanTree) {
-                HuffmanTree huffmanTree = (HuffmanTree) huffmanTreeObject;
-
-                // Step 2: Read the compressed data as a byte array
-                byte[] compressedDataByteArray = (byte[]) ois.readObject();
-
-                // Step 3: Read the original width and height
-                int[] originalDimensions = (int[]) ois.readObject();
-                int originalWidth = originalDimensions[0];
-                int originalHeight = originalDimensions[1];
-
-                // Step 4: Calculate the compressed width and height
-                int compressedWidth = originalWidth / 3;
-                int compressedHeight = originalHeight / 3;
-
-                // Step 5: Reconstruct the original int[][][] pixel array
-                int colorDepth = huffmanTree.colorDepth;
-                int[][][] pixels = new int[originalWidth][originalHeight][colorDepth];
-
-                int currentBit = 0; // Initialize the bit position
-                HuffmanTree.HuffmanNode currentNode = huffmanTree.root; // Start from the root of the Huffman tree
-
-                for (int x = 0; x < compressedWidth; x++) {
-                    for (int y = 0; y < compressedHeight; y++) {
-                        for (int z = 0; z < colorDepth; z++) {
-                            currentNode = huffmanTree.root; // Reset to the root for each pixel
-                            while (true) {
-                                // Check if we've reached the end of the compressed data
-                                if (currentBit >= compressedDataByteArray.length * 8) {
-                                    return pixels; // Return the reconstructed image
-                                }
-
-                                if (currentNode.isLeaf()) {
-                                    // We've reached a leaf node, which represents a color value
-                                    int color = currentNode.color;
-
-                                    // Determine the position in the decompressed array
-                                    int decompressedX = x * 3;
-                                    int decompressedY = y * 3;
-                                    // Fill the corresponding 2x2 block in the decompressed data
-                                    pixels[decompressedX][decompressedY][z] = color;
-                                    pixels[decompressedX][decompressedY + 1][z] = color;
-                                    pixels[decompressedX][decompressedY + 2][z] = color;
-
-                                    pixels[decompressedX + 1][decompressedY][z] = color;
-                                    pixels[decompressedX + 1][decompressedY + 1][z] = color;
-                                    pixels[decompressedX + 1][decompressedY + 2][z] = color;
-
-                                    pixels[decompressedX + 2][decompressedY][z] = color;
-                                    pixels[decompressedX + 2][decompressedY + 1][z] = color;
-                                    pixels[decompressedX + 2][decompressedY + 2][z] = color;
-
-                                    break;
-                                }
-
-                                // Read one bit from the compressed data
-                                int bit = (compressedDataByteArray[currentBit >> 3] >> (7 - (currentBit % 8))) & 1;
-                                currentBit++;
-
-                                // Traverse the Huffman tree based on the bit
-                                if (bit == 0) {
-                                    currentNode = currentNode.left;
-                                } else {
-                                    currentNode = currentNode.right;
-                                }
-                            }
-                        }
-                    }
-                }
-
-                return pixels;
-            } else {
-                throw new IOException("Invalid object type in the input file");
-            }
-        }
-    }
-
-    public static byte[] convertBinaryStringToBytes(String binaryString) {
-        int length = binaryString.length();
-        int byteCount = (length + 7) / 8; // Calculate the number of bytes required
-
-        byte[] bytes = new byte[byteCount];
-
-        for (int i = 0; i < byteCount; i++) {
-            int start = i * 8;
-            int end = Math.min(start + 8, length);
-            String chunk = binaryString.substring(start, end);
-            bytes[i] = (byte) Integer.parseInt(chunk, 2);
-        }
-
-        return bytes;
-    }
-
-    static class HuffmanTree implements Serializable {
-        private HuffmanNode root;
-        private int width;
-        private int height;
-        private int colorDepth;
-
-        public HuffmanTree(int width, int height, int colorDepth) {
-            this.width = width;
-            this.height = height;
-            this.colorDepth = colorDepth;
-        }
-
-        public void buildHuffmanTree(Map<Integer, Integer> colorFrequency) {
-            PriorityQueue<HuffmanNode> priorityQueue = new PriorityQueue<>((a, b) -> a.frequency - b.frequency);
-
-            // Create leaf nodes for each color value
-            for (Map.Entry<Integer, Integer> entry : colorFrequency.entrySet()) {
-                HuffmanNode node = new HuffmanNode(entry.getKey(), entry.getValue());
-                priorityQueue.offer(node);
-            }
-
-            // Build the Huffman tree
-            while (priorityQueue.size() > 1) {
-                HuffmanNode left = priorityQueue.poll();
-                HuffmanNode right = priorityQueue.poll();
-                HuffmanNode parent = new HuffmanNode(-1, left.frequency + right.frequency);
-                parent.left = left;
-                parent.right = right;
-                priorityQueue.offer(parent);
-            }
-            root = priorityQueue.poll();
-        }
-
-        public Map<Integer, String> generateHuffmanCodes() {
-            Map<Integer, String> huffmanCodes = new HashMap<>();
-            if (root != null) {
-                String code = "";
-                generateHuffmanCodesRecursive(root, code, huffmanCodes);
-            }
-            return huffmanCodes;
-        }
-
-        private void generateHuffmanCodesRecursive(HuffmanNode node, String code, Map<Integer, String> huffmanCodes) {
-            if (node.isLeaf()) {
-                huffmanCodes.put(node.color, code);
-            } else {
-                if (node.left != null) {
-                    // Append a '0' bit to the code
-                    generateHuffmanCodesRecursive(node.left, code + "0", huffmanCodes);
-                }
-                if (node.right != null) {
-                    // Append a '1' bit to the code
-                    generateHuffmanCodesRecursive(node.right, code + "1", huffmanCodes);
-                }
-            }
-        }
-
-        public int getWidth() {
-            return width;
-        }
-
-        public int getHeight() {
-            return height;
-        }
-
-        public int getColorDepth() {
-            return colorDepth;
-        }
-
-        static class HuffmanNode implements Serializable {
-            int color;
-            int frequency;
-            HuffmanNode left;
-            HuffmanNode right;
-
-            HuffmanNode(int color, int frequency) {
-                this.color = color;
-                this.frequency = frequency;
-            }
-
-            boolean isLeaf() {
-                return left == null && right == null;
-            }
-        }
-
-    }
-
-    public static int[][][] averagePixels(int[][][] pixels) {
-        int width = pixels.length;
-        int height = pixels[0].length;
-
-        int newWidth = width / 3;
-        int newHeight = height / 3;
-        int[][][] averagedPixels = new int[newWidth][newHeight][3];
-
-        for (int i = 0; i < newWidth; i++) {
-            for (int j = 0; j < newHeight; j++) {
-                int sumR = 0, sumG = 0, sumB = 0;
-
-                for (int x = i * 3; x < i * 3 + 3; x++) {
-                    for (int y = j * 3; y < j * 3 + 3; y++) {
-                        sumR += pixels[x][y][0];
-                        sumG += pixels[x][y][1];
-                        sumB += pixels[x][y][2];
-                    }
-                }
-
-                int avgR = sumR / 9;
-                int avgG = sumG / 9;
-                int avgB = sumB / 9;
-
-                averagedPixels[i][j][0] = avgR;
-                averagedPixels[i][j][1] = avgG;
-                averagedPixels[i][j][2] = avgB;
-            }
-        }
-
-        return averagedPixels;
-    }
-
-}
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.stream.IntStream;
+
+public class Utility3X3 {
+    // how Compress lays out the file
+    private final Mode mode;
+
+    public Utility3X3() {
+        this(Mode.FLAT);
+    }
+
+    /**
+     * @param mode how to lay out the compressed file: one stream or parallel
+     *             tiles
+     */
+    public Utility3X3(Mode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("Mode must not be null");
+        }
+        this.mode = mode;
+    }
+
+    /**
+     * How Compress lays out the file, with the entropy coder it allows. A
+     * single stream can be Huffman or rANS coded; tiles are always Huffman
+     * coded. Every file is decoded by any Utility3X3, whatever its mode.
+     */
+    public static final class Mode {
+        public static final Mode FLAT = new Mode(0, CompressedFile.BACKEND_HUFFMAN);
+
+        // side of the tiles that are coded in parallel, in pixels; 0 codes the
+        // whole image as a single stream
+        private final int tileSize;
+        // entropy coder, one of the CompressedFile.BACKEND_ constants
+        private final int backend;
+
+        private Mode(int tileSize, int backend) {
+            this.tileSize = tileSize;
+            this.backend = backend;
+        }
+
+        /**
+         * The averaged values as one stream, coded with
+         * CompressedFile.BACKEND_HUFFMAN or BACKEND_RANS.
+         */
+        public static Mode flat(int backend) {
+            CompressedFile.backendFlags(backend);
+            return new Mode(0, backend);
+        }
+
+        /**
+         * Square tiles of tileSize pixels, rounded down to whole 3x3 blocks,
+         * averaged and coded in parallel with one Huffman code.
+         */
+        public static Mode tiled(int tileSize) {
+            if (tileSize < 3) {
+                throw new IllegalArgumentException("Tile size must be at least 3 pixels, got " + tileSize);
+            }
+            return new Mode(tileSize - tileSize % 3, CompressedFile.BACKEND_HUFFMAN);
+        }
+    }
+
+    public void Compress(int[][][] pixels, String outputFileName) throws IOException {
+        Compress(PixelBuffer.fromArray(pixels), outputFileName);
+    }
+
+    public void Compress(PixelBuffer pixels, String outputFileName) throws IOException {
+        if (mode.tileSize > 0) {
+            CompressTiled(pixels, outputFileName);
+            return;
+        }
+
+        int[] compressedRGBPixels = averagePixels(pixels).getPixels();
+        // Step 1: Calculate the frequency of each color value
+        int[] colorFrequency = new int[256];
+        EntropyCoder.countChannels(compressedRGBPixels, colorFrequency);
+
+        // With the rANS backend, store the scaled frequencies and code the values with them
+        if (mode.backend == CompressedFile.BACKEND_RANS) {
+            RansCoder ransCoder = RansCoder.fromHistogram(colorFrequency);
+            ByteArrayOutputStream tableSection = new ByteArrayOutputStream();
+            ransCoder.writeTo(new DataOutputStream(tableSection));
+            new CompressedFile(CompressedFile.CODEC_AVERAGE_3X3, 3, CompressedFile.backendFlags(mode.backend),
+                    pixels.getWidth(), pixels.getHeight(), tableSection.toByteArray(),
+                    ransCoder.encodeChannels(compressedRGBPixels)).write(outputFileName);
+            return;
+        }
+
+        // Step 2: Build the Huffman code lengths and assign canonical codes from them
+        CanonicalHuffmanCode huffmanCode = EntropyCoder.buildCode(colorFrequency);
+
+        // Step 3: Encode the pixel data straight into packed bytes, red, green then blue
+        BitWriter bitWriter = new BitWriter(compressedRGBPixels.length);
+        EntropyCoder.encodeChannels(compressedRGBPixels, huffmanCode, bitWriter);
+        byte[] compressedDataBytes = bitWriter.toByteArray();
+
+        // Step 4: Write the code lengths and compressed data into the output file
+        ByteArrayOutputStream tableSection = new ByteArrayOutputStream();
+        huffmanCode.writeTo(new DataOutputStream(tableSection));
+        new CompressedFile(CompressedFile.CODEC_AVERAGE_3X3, 3, pixels.getWidth(), pixels.getHeight(),
+                tableSection.toByteArray(), compressedDataBytes).write(outputFileName);
+    }
+
+    /**
+     * Compress with the image split into tiles that are averaged, counted and
+     * encoded in parallel. The tiles share one Huffman code.
+     */
+    private void CompressTiled(PixelBuffer pixels, String outputFileName) throws IOException {
+        int tileBlocks = mode.tileSize / 3;
+
+        // Step 1: Average the blocks and count the color values, a band of tiles per task
+        PixelBuffer averaged = averagePixels(pixels, tileBlocks);
+        int[] frequency = TiledBlockCoder.countFrequencies(averaged, tileBlocks);
+
+        // Step 2: Build the shared Huffman code
+        CanonicalHuffmanCode huffmanCode = EntropyCoder.buildCode(frequency);
+
+        // Step 3: Encode every tile into its own bitstream
+        byte[] compressedDataBytes = TiledBlockCoder.encode(averaged, tileBlocks, huffmanCode.getCodes(),
+                huffmanCode.getCodeLengths());
+
+        // Step 4: Write the code lengths and the tiles into the output file
+        ByteArrayOutputStream tableSection = new ByteArrayOutputStream();
+        huffmanCode.writeTo(new DataOutputStream(tableSection));
+        new CompressedFile(CompressedFile.CODEC_AVERAGE_3X3, 3, CompressedFile.FLAG_TILED, pixels.getWidth(),
+                pixels.getHeight(), tableSection.toByteArray(), compressedDataBytes).write(outputFileName);
+    }
+
+    public int[][][] Decompress(String inputFileName) throws IOException {
+        return DecompressToBuffer(inputFileName).toArray();
+    }
+
+    public PixelBuffer DecompressToBuffer(String inputFileName) throws IOException {
+        CompressedFile compressedFile = CompressedFile.map(inputFileName, CompressedFile.CODEC_AVERAGE_3X3);
+        return compressedFile.decodeChecked(() -> DecompressMapped(compressedFile));
+    }
+
+    /**
+     * Decode a mapped file, whose CRC decodeChecked checks afterwards.
+     */
+    private static PixelBuffer DecompressMapped(CompressedFile compressedFile) throws IOException {
+        // Step 1: Read the Huffman code lengths
+        if (compressedFile.getBackend() == CompressedFile.BACKEND_RANS) {
+            return DecompressRans(compressedFile);
+        }
+        CanonicalHuffmanCode huffmanCode = CanonicalHuffmanCode.readFrom(compressedFile.openTableSection(), 256);
+
+        // Step 2: Get the mapped compressed data
+        ByteBuffer compressedData = compressedFile.getPayloadBuffer();
+
+        // Step 3: Read the original width and height
+        int originalWidth = compressedFile.getWidth();
+        int originalHeight = compressedFile.getHeight();
+
+        // Step 4: Calculate the compressed width and height
+        int compressedWidth = originalWidth / 3;
+        int compressedHeight = originalHeight / 3;
+
+        // Step 5: Reconstruct the original image, one averaged pixel at a time
+        PixelBuffer pixels = new PixelBuffer(originalWidth, originalHeight);
+        int[] output = pixels.getPixels();
+
+        if (compressedFile.isTiled()) {
+            TiledBlockCoder.decode(compressedData, huffmanCode.createDecoder(), compressedWidth,
+                    compressedHeight, 3, pixels);
+            return pixels;
+        }
+
+        HuffmanDecoder decoder = huffmanCode.createDecoder(); // One table lookup per color value
+        BitReader bitReader = new BitReader(compressedData);
+
+        for (int y = 0; y < compressedHeight; y++) {
+            for (int x = 0; x < compressedWidth; x++) {
+                int red = decoder.decodeSymbol(bitReader);
+                int green = decoder.decodeSymbol(bitReader);
+                int blue = decoder.decodeSymbol(bitReader);
+                int rgb = PixelBuffer.pack(red, green, blue);
+
+                // Fill the corresponding 3x3 block in the decompressed data
+                int index = (y * 3) * originalWidth + x * 3;
+                for (int row = 0; row < 3; row++) {
+                    output[index] = rgb;
+                    output[index + 1] = rgb;
+                    output[index + 2] = rgb;
+                    index += originalWidth;
+                }
+            }
+        }
+
+        return pixels;
+    }
+
+    /**
+     * Decode a file written with the rANS backend.
+     */
+    private static PixelBuffer DecompressRans(CompressedFile compressedFile) throws IOException {
+        if (compressedFile.isTiled()) {
+            throw new IOException("Corrupt header: rANS coded files are not tiled");
+        }
+        int originalWidth = compressedFile.getWidth();
+        int compressedWidth = originalWidth / 3;
+        int compressedHeight = compressedFile.getHeight() / 3;
+        int[] averaged = new int[compressedWidth * compressedHeight];
+        RansCoder.readFrom(compressedFile.openTableSection(), 256).decodeChannels(compressedFile.getPayloadBuffer(),
+                averaged);
+
+        PixelBuffer pixels = new PixelBuffer(originalWidth, compressedFile.getHeight());
+        int[] output = pixels.getPixels();
+        for (int y = 0; y < compressedHeight; y++) {
+            for (int x = 0; x < compressedWidth; x++) {
+                int rgb = averaged[y * compressedWidth + x];
+
+                // Fill the corresponding 3x3 block in the decompressed data
+                int index = (y * 3) * originalWidth + x * 3;
+                for (int row = 0; row < 3; row++) {
+                    output[index] = rgb;
+                    output[index + 1] = rgb;
+                    output[index + 2] = rgb;
+                    index += originalWidth;
+                }
+            }
+        }
+        return pixels;
+    }
+
+    public static int[][][] averagePixels(int[][][] pixels) {
+        return averagePixels(PixelBuffer.fromArray(pixels)).toArray();
+    }
+
+    public static PixelBuffer averagePixels(PixelBuffer pixels) {
+        PixelBuffer averagedPixels = new PixelBuffer(pixels.getWidth() / 3, pixels.getHeight() / 3);
+        averageRows(pixels, averagedPixels, 0, averagedPixels.getHeight());
+        return averagedPixels;
+    }
+
+    /**
+     * Average the blocks in parallel, one band of bandRows block rows per task.
+     */
+    public static PixelBuffer averagePixels(PixelBuffer pixels, int bandRows) {
+        PixelBuffer averagedPixels = new PixelBuffer(pixels.getWidth() / 3, pixels.getHeight() / 3);
+        int newHeight = averagedPixels.getHeight();
+        IntStream.range(0, (newHeight + bandRows - 1) / bandRows).parallel()
+                .forEach(band -> averageRows(pixels, averagedPixels, band * bandRows,
+                        Math.min(newHeight, (band + 1) * bandRows)));
+        return averagedPixels;
+    }
+
+    // average the blocks of rows firstRow to endRow - 1 of the averaged image
+    private static void averageRows(PixelBuffer pixels, PixelBuffer averagedPixels, int firstRow, int endRow) {
+        int width = pixels.getWidth();
+        int[] source = pixels.getPixels();
+        int newWidth = averagedPixels.getWidth();
+        int[] target = averagedPixels.getPixels();
+
+        for (int j = firstRow; j < endRow; j++) {
+            for (int i = 0; i < newWidth; i++) {
+                int sumR = 0, sumG = 0, sumB = 0;
+
+                for (int y = j * 3; y < j * 3 + 3; y++) {
+                    for (int x = i * 3; x < i * 3 + 3; x++) {
+                        int rgb = source[y * width + x];
+                        sumR += (rgb >> 16) & 0xFF;
+                        sumG += (rgb >> 8) & 0xFF;
+                        sumB += rgb & 0xFF;
+                    }
+                }
+
+                int avgR = sumR / 9;
+                int avgG = sumG / 9;
+                int avgB = sumB / 9;
+
+                target[j * newWidth + i] = PixelBuffer.pack(avgR, avgG, avgB);
+            }
+        }
+    }
+
+}
@@ -1,603 +1,1176 @@
-import java.io.*;
-import java.util.*;
-
-public class UtilityColorQuantization {
-
-    public void Compress(int[][][] pixels, String outputFileName) throws IOException {
-
-        int maxColors = 126;
-        Cube cube = new Cube(pixels, maxColors);
-        cube.classification();
-        cube.reduction();
-
-        int[][] assignment = cube.assignment();
-        int[] colormap = cube.colormap;
-
-        // Step 1: Calculate the frequency of each color value
-        Map<Integer, Integer> colorFrequency = new HashMap<>();
-        int width = assignment.length;
-        int height = assignment[0].length;
-        for (int[] row : assignment) {
-            for (int mapIndex : row) {
-                colorFrequency.put(mapIndex, colorFrequency.getOrDefault(mapIndex, 0) + 1);
-
-            }
-        }
-
-        // Step 2: Build the Huffman tree
-        HuffmanTree huffmanTree = new HuffmanTree(width, height, 3);
-        huffmanTree.buildHuffmanTree(colorFrequency);
-        // Step 3: Create a mapping of color values to Huffman codes
-        Map<Integer, String> huffmanCodes = huffmanTree.generateHuffmanCodes();
-
-        // Step 4: Encode the pixel data using Huffman codes
-        List<String> encodedData = new ArrayList<>();
-        for (int[] row : assignment) {
-            for (int mapIndex : row) {
-                encodedData.add(huffmanCodes.get(mapIndex));
-
-            }
-        }
-
-        StringBuilder compressedDataBuilder = new StringBuilder();
-        for (String code : encodedData) {
-            compressedDataBuilder.append(code);
-        }
-        String compressedDataString = compressedDataBuilder.toString();
-        // Convert binary string to bytes
-        byte[] compressedDataBytes = convertBinaryStringToBytes(compressedDataString);
-
-        // Step 5: Write the compressed data into the output file
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(outputFileName))) {
-            oos.writeObject(huffmanTree);
-            oos.writeObject(compressedDataBytes);
-            oos.writeObject(colormap);
-        }
-    }
-
-    public int[][][] Decompress(String inputFileName) throws IOException, ClassNotFoundException {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(inputFileName))) {
-            // Step 1: Read the Huffman tree from the input file
-            Object huffmanTreeObject = ois.readObject();
-
-            if (huffmanTreeObject instanceof HuffmanTree) {
-                HuffmanTree huffmanTree = (HuffmanTree) huffmanTreeObject;
-
-                // Step 2: Read the compressed data as a byte array
-                byte[] compressedDataByteArray = (byte[]) ois.readObject();
-                int[] colormap = (int[]) ois.readObject();
-
-                // Step 3: Reconstruct the original int[][][] pixel array
-                int width = huffmanTree.width;
-                int height = huffmanTree.height;
-                int colorDepth = huffmanTree.colorDepth;
-                int[][][] pixels = new int[width][height][colorDepth];
-
-                int currentBit = 0; // Initialize the bit position
-                HuffmanTree.HuffmanNode currentNode = huffmanTree.root; // Start from the root of the Huffman tree
-
-                for (int x = 0; x < width; x++) {
-                    for (int y = 0; y < height; y++) {
-                        currentNode = huffmanTree.root; // Reset to the root for each pixel
-                        while (true) {
-                            // Check if we've reached the end of the compressed data
-                            if (currentBit >= compressedDataByteArray.length * 8) {
-                                return pixels; // Return the reconstructed image
-                            }
-
-                            if (currentNode.isLeaf()) {
-                                // We've reached a leaf node, which represents a color value
-                                int color = colormap[currentNode.color];
-                                int red = (color >> 16) & 0xFF;
-                                int green = (color >> 8) & 0xFF;
-                                int blue = color & 0xFF;
-                                pixels[x][y][0] = red;
-                                pixels[x][y][1] = green;
-                                pixels[x][y][2] = blue;
-                                break;
-                            }
-
-                            // Read one bit from the compressed data
-                            int bit = (compressedDataByteArray[currentBit >> 3] >> (7 - (currentBit % 8))) & 1;
-                            currentBit++;
-
-                            // Traverse the Huffman tree based on the bit
-                            if (bit == 0) {
-                                currentNode = currentNode.left;
-                            } else {
-                                currentNode = currentNode.right;
-                            }
-                        }
-
-                    }
-                }
-
-                return pixels;
-            } else {
-                throw new IOException("Invalid object type in the input file");
-            }
-        }
-    }
-
-    public static byte[] convertBinaryStringToBytes(String binaryString) {
-        int length = binaryString.length();
-        int byteCount = (length + 7) / 8; // Calculate the number of bytes required
-
-        byte[] bytes = new byte[byteCount];
-
-        for (int i = 0; i < byteCount; i++) {
-            int start = i * 8;
-            int end = Math.min(start + 8, length);
-            String chunk = binaryString.substring(start, end);
-            bytes[i] = (byte) Integer.parseInt(chunk, 2);
-        }
-
-        return bytes;
-    }
-
-    static class HuffmanTree implements Serializable {
-        private HuffmanNode root;
-        private int width;
-        private int height;
-        private int colorDepth;
-
-        public HuffmanTree(int width, int height, int colorDepth) {
-            this.width = width;
-            this.height = height;
-            this.colorDepth = colorDepth;
-        }
-
-        public void buildHuffmanTree(Map<Integer, Integer> colorFrequency) {
-            PriorityQueue<HuffmanNode> priorityQueue = new PriorityQueue<>((a, b) -> a.frequency - b.frequency);
-
-            // Create leaf nodes for each color value
-            for (Map.Entry<Integer, Integer> entry : colorFrequency.entrySet()) {
-                HuffmanNode node = new HuffmanNode(entry.getKey(), entry.getValue());
-                priorityQueue.offer(node);
-            }
-
-            // Build the Huffman tree
-            while (priorityQueue.size() > 1) {
-                HuffmanNode left = priorityQueue.poll();
-                HuffmanNode right = priorityQueue.poll();
-                HuffmanNode parent = new HuffmanNode(-1, left.frequency + right.frequency);
-                parent.left = left;
-                parent.right = right;
-                priorityQueue.offer(parent);
-            }
-            root = priorityQueue.poll();
-        }
-
-        public Map<Integer, String> generateHuffmanCodes() {
-            Map<Integer, String> huffmanCodes = new HashMap<>();
-            if (root != null) {
-                String code = "";
-                generateHuffmanCodesRecursive(root, code, huffmanCodes);
-            }
-            return huffmanCodes;
-        }
-
-        private void generateHuffmanCodesRecursive(HuffmanNode node, String code, Map<Integer, String> huffmanCodes) {
-            if (node.isLeaf()) {
-                huffmanCodes.put(node.color, code);
-            } else {
-                if (node.left != null) {
-                    // Append a '0' bit to the code
-                    generateHuffmanCodesRecursive(node.left, code + "0", huffmanCodes);
-                }
-                if (node.right != null) {
-                    // Append a '1' bit to the code
-                    generateHuffmanCodesRecursive(node.right, code + "1", huffmanCodes);
-                }
-            }
-        }
-
-        public int getWidth() {
-            return width;
-        }
-
-        public int getHeight() {
-            return height;
-        }
-
-        public int getColorDepth() {
-            return colorDepth;
-        }
-
-        static class HuffmanNode implements Serializable {
-            int color;
-            int frequency;
-            HuffmanNode left;
-            HuffmanNode right;
-
-            HuffmanNode(int color, int frequency) {
-                this.color = color;
-                this.frequency = frequency;
-            }
-
-            boolean isLeaf() {
-                return left == null && right == null;
-            }
-        }
-
-    }
-
-    final static boolean QUICK = true;
-
-    final static int MAX_RGB = 255;
-    final static int MAX_NODES = 266817;
-    final static int MAX_TREE_DEPTH = 8;
-
-    // these are precomputed in advance
-    static int SQUARES[];
-    static int SHIFT[];
-
-    static {
-        SQUARES = new int[MAX_RGB + MAX_RGB + 1];
-        for (int i = -MAX_RGB; i <= MAX_RGB; i++) {
-            SQUARES[i + MAX_RGB] = i * i;
-        }
-
-        SHIFT = new int[MAX_TREE_DEPTH + 1];
-        for (int i = 0; i < MAX_TREE_DEPTH + 1; ++i) {
-            SHIFT[i] = 1 << (15 - i);
-        }
-    }
-
-    static class Cube {
-        int pixels[][][];
-        int max_colors;
-        int colormap[];
-
-        Node root;
-        int depth;
-
-        // counter for the number of colors in the cube. this gets
-        // recalculated often.
-        int colors;
-
-        // counter for the number of nodes in the tree
-        int nodes;
-
-        Cube(int pixels[][][], int max_colors) {
-            this.pixels = pixels;
-            this.max_colors = max_colors;
-
-            int i = max_colors;
-            // tree_depth = log max_colors
-            // 4
-            for (depth = 1; i != 0; depth++) {
-                i /= 4;
-            }
-            if (depth > 1) {
-                --depth;
-            }
-            if (depth > MAX_TREE_DEPTH) {
-                depth = MAX_TREE_DEPTH;
-            } else if (depth < 2) {
-                depth = 2;
-            }
-
-            root = new Node(this);
-        }
-
-        void classification() {
-            int pixels[][][] = this.pixels;
-
-            int width = pixels.length;
-            int height = pixels[0].length;
-
-            // convert to indexed color
-            for (int x = width; x-- > 0;) {
-                for (int y = height; y-- > 0;) {
-                    int red = pixels[x][y][0];
-                    int green = pixels[x][y][1];
-                    int blue = pixels[x][y][2];
-
-                    // a hard limit on the number of nodes in the tree
-                    if (nodes > MAX_NODES) {
-                        System.out.println("pruning");
-                        root.pruneLevel();
-                        --depth;
-                    }
-
-                    // walk the tree to depth, increasing the
-                    // number_pixels count for each node
-                    Node node = root;
-                    for (int level = 1; level <= depth; ++level) {
-                        int id = (((red > node.mid_red ? 1 : 0) << 0) |
-                                ((green > node.mid_green ? 1 : 0) << 1) |
-                                ((blue > node.mid_blue ? 1 : 0) << 2));
-                        if (node.child[id] == null) {
-                            new Node(node, id, level);
-                        }
-                        node = node.child[id];
-                        node.number_pixels += SHIFT[level];
-                    }
-
-                    ++node.unique;
-                    node.total_red += red;
-                    node.total_green += green;
-                    node.total_blue += blue;
-                }
-            }
-        }
-
-        void reduction() {
-            int threshold = 1;
-            while (colors > max_colors) {
-                colors = 0;
-                threshold = root.reduce(threshold, Integer.MAX_VALUE);
-            }
-        }
-
-        static class Search {
-            int distance;
-            int color_number;
-        }
-
-        int[][] assignment() {
-            colormap = new int[colors];
-
-            colors = 0;
-            root.colormap();
-
-            int pixels[][][] = this.pixels;
-
-            int width = pixels.length;
-            int height = pixels[0].length;
-            int results[][] = new int[width][height];
-
-            Search search = new Search();
-
-            // convert to indexed color
-            for (int x = width; x-- > 0;) {
-                for (int y = height; y-- > 0;) {
-                    int red = pixels[x][y][0];
-                    int green = pixels[x][y][1];
-                    int blue = pixels[x][y][2];
-
-                    // walk the tree to find the cube containing that color
-                    Node node = root;
-                    for (;;) {
-                        int id = (((red > node.mid_red ? 1 : 0) << 0) |
-                                ((green > node.mid_green ? 1 : 0) << 1) |
-                                ((blue > node.mid_blue ? 1 : 0) << 2));
-                        if (node.child[id] == null) {
-                            break;
-                        }
-                        node = node.child[id];
-                    }
-
-                    if (QUICK) {
-                        // if QUICK is set, just use that
-                        // node. Strictly speaking, this isn't
-                        // necessarily best match.
-                        results[x][y] = node.color_number;
-                    } else {
-                        // Find the closest color.
-                        search.distance = Integer.MAX_VALUE;
-                        node.parent.closestColor(red, green, blue, search);
-                        results[x][y] = search.color_number;
-                    }
-                }
-            }
-            return results;
-        }
-
-        int[] getColorMap() {
-            return this.colormap;
-        }
-
-        static class Node {
-            Cube cube;
-
-            // parent node
-            Node parent;
-
-            // child nodes
-            Node child[];
-            int nchild;
-
-            // our index within our parent
-            int id;
-            // our level within the tree
-            int level;
-            // our color midpoint
-            int mid_red;
-            int mid_green;
-            int mid_blue;
-
-            // the pixel count for this node and all children
-            int number_pixels;
-
-            // the pixel count for this node
-            int unique;
-            // the sum of all pixels contained in this node
-            int total_red;
-            int total_green;
-            int total_blue;
-
-            // used to build the colormap
-            int color_number;
-
-            Node(Cube cube) {
-                this.cube = cube;
-                this.parent = this;
-                this.child = new Node[8];
-                this.id = 0;
-                this.level = 0;
-
-                this.number_pixels = Integer.MAX_VALUE;
-
-                this.mid_red = (MAX_RGB + 1) >> 1;
-                this.mid_green = (MAX_RGB + 1) >> 1;
-                this.mid_blue = (MAX_RGB + 1) >> 1;
-            }
-
-            Node(Node parent, int id, int level) {
-                this.cube = parent.cube;
-                this.parent = parent;
-                this.child = new Node[8];
-                this.id = id;
-                this.level = level;
-
-                // add to the cube
-                ++cube.nodes;
-                if (level == cube.depth) {
-                    ++cube.colors;
-                }
-
-                // add to the parent
-                ++parent.nchild;
-                parent.child[id] = this;
-
-                // figure out our midpoint
-                int bi = (1 << (MAX_TREE_DEPTH - level)) >> 1;
-                mid_red = parent.mid_red + ((id & 1) > 0 ? bi : -bi);
-                mid_green = parent.mid_green + ((id & 2) > 0 ? bi : -bi);
-                mid_blue = parent.mid_blue + ((id & 4) > 0 ? bi : -bi);
-            }
-
-            /**
-             * Remove this child node, and make sure our parent
-             * absorbs our pixel statistics.
-             */
-            void pruneChild() {
-                --parent.nchild;
-                parent.unique += unique;
-                parent.total_red += total_red;
-                parent.total_green += total_green;
-                parent.total_blue += total_blue;
-                parent.child[id] = null;
-                --cube.nodes;
-                cube = null;
-                parent = null;
-            }
-
-            /**
-             * Prune the lowest layer of the tree.
-             */
-            void pruneLevel() {
-                if (nchild != 0) {
-                    for (int id = 0; id < 8; id++) {
-                        if (child[id] != null) {
-                            child[id].pruneLevel();
-                        }
-                    }
-                }
-                if (level == cube.depth) {
-                    pruneChild();
-                }
-            }
-
-            /**
-             * Remove any nodes that have fewer than threshold
-             * pixels. Also, as long as we're walking the tree:
-             *
-             * - figure out the color with the fewest pixels
-             * - recalculate the total number of colors in the tree
-             */
-            int reduce(int threshold, int next_threshold) {
-                if (nchild != 0) {
-                    for (int id = 0; id < 8; id++) {
-                        if (child[id] != null) {
-                            next_threshold = child[id].reduce(threshold, next_threshold);
-                        }
-                    }
-                }
-                if (number_pixels <= threshold) {
-                    pruneChild();
-                } else {
-                    if (unique != 0) {
-                        cube.colors++;
-                    }
-                    if (number_pixels < next_threshold) {
-                        next_threshold = number_pixels;
-                    }
-                }
-                return next_threshold;
-            }
-
-            /*
-             * colormap traverses the color cube tree and notes each
-             * colormap entry. A colormap entry is any node in the
-             * color cube tree where the number of unique colors is
-             * not zero.
-             */
-            void colormap() {
-                if (nchild != 0) {
-                    for (int id = 0; id < 8; id++) {
-                        if (child[id] != null) {
-                            child[id].colormap();
-                        }
-                    }
-                }
-                if (unique != 0) {
-                    int r = ((total_red + (unique >> 1)) / unique);
-                    int g = ((total_green + (unique >> 1)) / unique);
-                    int b = ((total_blue + (unique >> 1)) / unique);
-                    cube.colormap[cube.colors] = (((0xFF) << 24) |
-                            ((r & 0xFF) << 16) |
-                            ((g & 0xFF) << 8) |
-                            ((b & 0xFF) << 0));
-                    color_number = cube.colors++;
-                }
-            }
-
-            /*
-             * ClosestColor traverses the color cube tree at a
-             * particular node and determines which colormap entry
-             * best represents the input color.
-             */
-            void closestColor(int red, int green, int blue, Search search) {
-                if (nchild != 0) {
-                    for (int id = 0; id < 8; id++) {
-                        if (child[id] != null) {
-                            child[id].closestColor(red, green, blue, search);
-                        }
-                    }
-                }
-
-                if (unique != 0) {
-                    int color = cube.colormap[color_number];
-                    int distance = distance(color, red, green, blue);
-                    if (distance < search.distance) {
-                        search.distance = distance;
-                        search.color_number = color_number;
-                    }
-                }
-            }
-
-            /**
-             * Figure out the distance between this node and som color.
-             */
-            final static int distance(int color, int r, int g, int b) {
-                return (SQUARES[((color >> 16) & 0xFF) - r + MAX_RGB] +
-                        SQUARES[((color >> 8) & 0xFF) - g + MAX_RGB] +
-                        SQUARES[((color >> 0) & 0xFF) - b + MAX_RGB]);
-            }
-
-            public String toString() {
-                StringBuffer buf = new StringBuffer();
-                if (parent == this) {
-                    buf.append("root");
-                } else {
-                    buf.append("node");
-                }
-                buf.append(' ');
-                buf.append(level);
-                buf.append(" [");
-                buf.append(mid_red);
-                buf.append(',');
-                buf.append(mid_green);
-                buf.append(',');
-                buf.append(mid_blue);
-                buf.append(']');
-                return new String(buf);
-            }
-        }
-
-    }
-
-}
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+public class UtilityColorQuantization {
+    private final Sampling sampling;
+    // shared palette and code of corpus mode, null to build them per image
+    private final PaletteDictionary dictionary;
+    // entropy coder, one of the CompressedFile.BACKEND_ constants
+    private final int backend;
+
+    public UtilityColorQuantization() {
+        this(Sampling.FULL);
+    }
+
+    /**
+     * @param sampling the pixels the palette is built from; every pixel is
+     *                 still mapped to the palette
+     */
+    public UtilityColorQuantization(Sampling sampling) {
+        this(sampling, CompressedFile.BACKEND_HUFFMAN);
+    }
+
+    /**
+     * @param sampling the pixels the palette is built from; every pixel is
+     *                 still mapped to the palette
+     * @param backend  entropy coder of the colormap indices,
+     *                 CompressedFile.BACKEND_HUFFMAN or BACKEND_RANS
+     */
+    public UtilityColorQuantization(Sampling sampling, int backend) {
+        if (sampling == null) {
+            throw new IllegalArgumentException("Sampling must not be null");
+        }
+        CompressedFile.backendFlags(backend);
+        this.sampling = sampling;
+        this.dictionary = null;
+        this.backend = backend;
+    }
+
+    /**
+     * Corpus mode: compress with the palette and Huffman code of a
+     * dictionary, and store only its id in each file.
+     */
+    public UtilityColorQuantization(PaletteDictionary dictionary) {
+        if (dictionary == null) {
+            throw new IllegalArgumentException("Dictionary must not be null");
+        }
+        this.sampling = Sampling.FULL;
+        this.dictionary = dictionary;
+        this.backend = CompressedFile.BACKEND_HUFFMAN;
+    }
+
+    /**
+     * Report, for every image in Original/, how long building the palette
+     * takes and how much PSNR is lost when it is built from a sample rather
+     * than from every pixel.
+     *
+     * Run with: java UtilityColorQuantization [stride|stratified|budget N]...
+     */
+    public static void main(String[] args) throws IOException {
+        List<Sampling> samplings = new ArrayList<>();
+        if (args.length % 2 != 0) {
+            throw new IllegalArgumentException("Usage: java UtilityColorQuantization [stride|stratified|budget N]...");
+        }
+        for (int i = 0; i < args.length - 1; i += 2) {
+            samplings.add(Sampling.parse(args[i], Integer.parseInt(args[i + 1])));
+        }
+        if (samplings.isEmpty()) {
+            samplings.add(Sampling.budget(1 << 20));
+        }
+        File[] files = new File("Original/").listFiles(File::isFile);
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            PixelBuffer pixels = new ImagetoPixelConverter(file.getPath()).getPixelBuffer();
+            long start = System.nanoTime();
+            Cube full = buildPalette(pixels, Sampling.FULL);
+            long fullNanos = System.nanoTime() - start;
+            double fullPSNR = QualityMetrics.compare(pixels, quantize(pixels, full)).getPSNR();
+            System.out.printf("%s: full %.2f dB, palette in %.1f ms%n", file.getName(), fullPSNR, fullNanos / 1e6);
+            for (Sampling sampling : samplings) {
+                start = System.nanoTime();
+                Cube sampled = buildPalette(pixels, sampling);
+                long sampledNanos = System.nanoTime() - start;
+                double sampledPSNR = QualityMetrics.compare(pixels, quantize(pixels, sampled)).getPSNR();
+                System.out.printf("%s: %s %.2f dB (%+.2f dB), palette in %.1f ms%n", file.getName(), sampling,
+                        sampledPSNR, sampledPSNR - fullPSNR, sampledNanos / 1e6);
+            }
+        }
+    }
+
+    private static Cube buildPalette(PixelBuffer pixels, Sampling sampling) {
+        Cube cube = new Cube(pixels, 126);
+        cube.classification(sampling.sample(pixels));
+        cube.reduction();
+        return cube;
+    }
+
+    // the image as it decompresses, without the entropy coding
+    private static PixelBuffer quantize(PixelBuffer pixels, Cube cube) {
+        int[] assignment = cube.assignment();
+        PixelBuffer quantized = new PixelBuffer(pixels.getWidth(), pixels.getHeight());
+        int[] output = quantized.getPixels();
+        for (int i = 0; i < output.length; i++) {
+            output[i] = cube.colormap[assignment[i]] & 0xFFFFFF;
+        }
+        return quantized;
+    }
+
+    public void Compress(int[][][] pixels, String outputFileName) throws IOException {
+        Compress(PixelBuffer.fromArray(pixels), outputFileName);
+    }
+
+    public void Compress(PixelBuffer pixels, String outputFileName) throws IOException {
+        if (dictionary != null) {
+            compressWithDictionary(pixels, outputFileName);
+            return;
+        }
+
+        int maxColors = 126;
+        Cube cube = new Cube(pixels, maxColors);
+        cube.classification(sampling.sample(pixels));
+        cube.reduction();
+
+        int[] assignment = cube.assignment();
+        int[] colormap = cube.colormap;
+
+        // Step 1: Calculate the frequency of each colormap index, and of the
+        // indices and run codes of the run-length mode
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+        int[] colorFrequency = new int[colormap.length];
+        EntropyCoder.count(assignment, colorFrequency);
+        int[] runFrequency = new int[colormap.length + EntropyCoder.RUN_SYMBOLS];
+        long runExtraBits = EntropyCoder.countRuns(assignment, colormap.length, runFrequency);
+
+        if (backend == CompressedFile.BACKEND_RANS) {
+            compressRans(width, height, colormap, assignment, colorFrequency, runFrequency, runExtraBits,
+                    outputFileName);
+            return;
+        }
+
+        // Step 2: Build the Huffman code lengths and assign canonical codes from them, in
+        // the run-length mode if that codes the indices in fewer bits
+        CanonicalHuffmanCode huffmanCode = EntropyCoder.buildCode(colorFrequency);
+        CanonicalHuffmanCode runCode = EntropyCoder.buildCode(runFrequency);
+        boolean runLength = runFrequency.length <= MAX_SYMBOLS
+                && EntropyCoder.codedBits(runFrequency, runCode.getCodeLengths()) + runExtraBits
+                        < EntropyCoder.codedBits(colorFrequency, huffmanCode.getCodeLengths());
+
+        // Step 3: Encode the pixel data straight into packed bytes
+        BitWriter bitWriter = new BitWriter(width * height / 2);
+        if (runLength) {
+            huffmanCode = runCode;
+            EntropyCoder.encodeRuns(assignment, colormap.length, huffmanCode, bitWriter);
+        } else {
+            EntropyCoder.encode(assignment, huffmanCode, bitWriter);
+        }
+        byte[] compressedDataBytes = bitWriter.toByteArray();
+
+        // Step 4: Write the colormap, code lengths and compressed data into the output file
+        ByteArrayOutputStream tableSection = new ByteArrayOutputStream();
+        DataOutputStream tableOutput = new DataOutputStream(tableSection);
+        writeColormap(tableOutput, colormap);
+        huffmanCode.writeTo(tableOutput);
+        new CompressedFile(CompressedFile.CODEC_COLOR_QUANTIZATION, 1, runLength ? CompressedFile.FLAG_RUN_LENGTH : 0,
+                width, height, tableSection.toByteArray(), compressedDataBytes).write(outputFileName);
+    }
+
+    /**
+     * Steps 2 to 4 of Compress with the rANS backend: the table section holds
+     * the colormap and the scaled frequencies.
+     */
+    private void compressRans(int width, int height, int[] colormap, int[] assignment, int[] colorFrequency,
+            int[] runFrequency, long runExtraBits, String outputFileName) throws IOException {
+        RansCoder ransCoder = RansCoder.fromHistogram(colorFrequency);
+        RansCoder runCoder = RansCoder.fromHistogram(runFrequency);
+        boolean runLength = runCoder.codedBits(runFrequency) + runExtraBits < ransCoder.codedBits(colorFrequency);
+        byte[] compressedDataBytes = runLength ? runCoder.encodeRuns(assignment, colormap.length)
+                : ransCoder.encode(assignment);
+
+        ByteArrayOutputStream tableSection = new ByteArrayOutputStream();
+        DataOutputStream tableOutput = new DataOutputStream(tableSection);
+        writeColormap(tableOutput, colormap);
+        (runLength ? runCoder : ransCoder).writeTo(tableOutput);
+        int flags = (runLength ? CompressedFile.FLAG_RUN_LENGTH : 0) | CompressedFile.backendFlags(backend);
+        new CompressedFile(CompressedFile.CODEC_COLOR_QUANTIZATION, 1, flags, width, height,
+                tableSection.toByteArray(), compressedDataBytes).write(outputFileName);
+    }
+
+    /**
+     * Map the pixels to the dictionary's palette, whose inverse colormap is
+     * already filled, and code them with its Huffman code. The table section
+     * only holds the dictionary id.
+     */
+    private void compressWithDictionary(PixelBuffer pixels, String outputFileName) throws IOException {
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+        int[] assignment = dictionary.getInverseColormap().map(pixels.getPixels());
+
+        BitWriter bitWriter = new BitWriter(width * height / 2);
+        EntropyCoder.encode(assignment, dictionary.getHuffmanCode(), bitWriter);
+
+        ByteArrayOutputStream tableSection = new ByteArrayOutputStream();
+        new DataOutputStream(tableSection).writeInt(dictionary.getId());
+        new CompressedFile(CompressedFile.CODEC_COLOR_QUANTIZATION, 1, CompressedFile.FLAG_DICTIONARY, width, height,
+                tableSection.toByteArray(), bitWriter.toByteArray()).write(outputFileName);
+    }
+
+    public int[][][] Decompress(String inputFileName) throws IOException {
+        return DecompressToBuffer(inputFileName).toArray();
+    }
+
+    public PixelBuffer DecompressToBuffer(String inputFileName) throws IOException {
+        CompressedFile compressedFile = CompressedFile.map(inputFileName, CompressedFile.CODEC_COLOR_QUANTIZATION);
+        return compressedFile.decodeChecked(() -> DecompressMapped(compressedFile));
+    }
+
+    /**
+     * Decode a mapped file, whose CRC decodeChecked checks afterwards.
+     */
+    private static PixelBuffer DecompressMapped(CompressedFile compressedFile) throws IOException {
+        // Step 1: Read the colormap and entropy code tables, which a
+        // file in corpus mode takes from its dictionary
+        DataInputStream tableInput = compressedFile.openTableSection();
+        int[] colormap;
+        HuffmanDecoder decoder = null;
+        RansCoder ransCoder = null;
+        if (compressedFile.usesDictionary()) {
+            if (compressedFile.getBackend() != CompressedFile.BACKEND_HUFFMAN) {
+                throw new IOException("Corrupt header: dictionary files are Huffman coded");
+            }
+            PaletteDictionary dictionary = PaletteDictionary.forId(tableInput.readInt());
+            colormap = dictionary.getColormap();
+            decoder = dictionary.getDecoder();
+        } else {
+            colormap = readColormap(tableInput);
+            int symbols = colormap.length + (compressedFile.isRunLength() ? EntropyCoder.RUN_SYMBOLS : 0);
+            if (compressedFile.getBackend() == CompressedFile.BACKEND_RANS) {
+                ransCoder = RansCoder.readFrom(tableInput, symbols);
+            } else {
+                CanonicalHuffmanCode huffmanCode = CanonicalHuffmanCode.readFrom(tableInput, symbols);
+                decoder = huffmanCode.createDecoder(); // One table lookup per pixel or run
+            }
+        }
+
+        // Step 2: Get the mapped compressed data
+        ByteBuffer compressedData = compressedFile.getPayloadBuffer();
+
+        // Step 3: Reconstruct the original image from the colormap indices
+        PixelBuffer pixels = new PixelBuffer(compressedFile.getWidth(), compressedFile.getHeight());
+        int[] output = pixels.getPixels();
+
+        if (ransCoder != null) {
+            if (compressedFile.isRunLength()) {
+                ransCoder.decodeRuns(compressedData, colormap.length, output);
+            } else {
+                ransCoder.decode(compressedData, 0, output);
+            }
+        } else {
+            BitReader bitReader = new BitReader(compressedData);
+            if (compressedFile.isRunLength()) {
+                EntropyCoder.decodeRuns(decoder, bitReader, colormap.length, output);
+            } else {
+                EntropyCoder.decode(decoder, bitReader, output, 0, output.length);
+            }
+        }
+        for (int i = 0; i < output.length; i++) {
+            output[i] = colormap[output[i]] & 0xFFFFFF;
+        }
+
+        return pixels;
+    }
+
+    // symbols a code table can hold, as it stores them in shorts
+    static final int MAX_SYMBOLS = 1 << 16;
+
+    /**
+     * Write the colormap as an entry count followed by 3 bytes (R, G, B) per entry.
+     */
+    static void writeColormap(DataOutput out, int[] colormap) throws IOException {
+        out.writeShort(colormap.length);
+        for (int color : colormap) {
+            out.writeByte((color >> 16) & 0xFF);
+            out.writeByte((color >> 8) & 0xFF);
+            out.writeByte(color & 0xFF);
+        }
+    }
+
+    static int[] readColormap(DataInput in) throws IOException {
+        int colors = in.readUnsignedShort();
+        if (colors == 0) {
+            throw new IOException("Corrupt colormap: no colors");
+        }
+        int[] colormap = new int[colors];
+        for (int i = 0; i < colors; i++) {
+            int red = in.readUnsignedByte();
+            int green = in.readUnsignedByte();
+            int blue = in.readUnsignedByte();
+            colormap[i] = (0xFF << 24) | (red << 16) | (green << 8) | blue;
+        }
+        return colormap;
+    }
+
+    // QUICK maps a pixel to the color of the tree leaf it falls in; otherwise
+    // it gets the nearest colormap entry, looked up in the inverse colormap
+    final static boolean QUICK = false;
+
+    final static int MAX_RGB = 255;
+    final static int MAX_NODES = 266817;
+    final static int MAX_TREE_DEPTH = 8;
+
+    // these are precomputed in advance
+    static int SHIFT[];
+
+    static {
+        SHIFT = new int[MAX_TREE_DEPTH + 1];
+        for (int i = 0; i < MAX_TREE_DEPTH + 1; ++i) {
+            SHIFT[i] = 1 << (15 - i);
+        }
+    }
+
+    /**
+     * Which pixels the palette is built from. A palette of a few hundred
+     * colors barely changes when it is built from a well spread sample of a
+     * large photo instead of every pixel, and classification then reads far
+     * fewer pixels.
+     */
+    public static final class Sampling {
+        public static final Sampling FULL = new Sampling("full", 1, false, 0);
+
+        // samples are placed from a fixed seed so a palette is repeatable
+        private static final long SEED = 0x5DEECE66DL;
+
+        private final String name;
+        private final int step;
+        private final boolean random;
+        private final long budget;
+
+        private Sampling(String name, int step, boolean random, long budget) {
+            this.name = name;
+            this.step = step;
+            this.random = random;
+            this.budget = budget;
+        }
+
+        /**
+         * Every step-th pixel of every step-th row.
+         */
+        public static Sampling stride(int step) {
+            checkPositive(step);
+            return new Sampling("stride " + step, step, false, 0);
+        }
+
+        /**
+         * One pixel, at a random place, from every step x step cell, which
+         * spreads the samples as evenly as stride without lining them up
+         * with patterns in the image.
+         */
+        public static Sampling stratified(int step) {
+            checkPositive(step);
+            return new Sampling("stratified " + step, step, true, 0);
+        }
+
+        /**
+         * At most maxSamples pixels, stratified over the smallest cells that
+         * keep within the budget. Images that fit are classified in full.
+         */
+        public static Sampling budget(int maxSamples) {
+            checkPositive(maxSamples);
+            return new Sampling("budget " + maxSamples, 0, true, maxSamples);
+        }
+
+        static Sampling parse(String mode, int value) {
+            switch (mode) {
+                case "stride":
+                    return stride(value);
+                case "stratified":
+                    return stratified(value);
+                case "budget":
+                    return budget(value);
+                default:
+                    throw new IllegalArgumentException("Unknown sampling " + mode);
+            }
+        }
+
+        private static void checkPositive(int value) {
+            if (value < 1) {
+                throw new IllegalArgumentException("Sampling value must be positive: " + value);
+            }
+        }
+
+        /**
+         * The sampled pixels, or the image's own pixel array when every
+         * pixel is used.
+         */
+        int[] sample(PixelBuffer pixels) {
+            int width = pixels.getWidth();
+            int height = pixels.getHeight();
+            int step = this.step;
+            if (budget > 0) {
+                step = 1;
+                while (cells(width, step) * cells(height, step) > budget) {
+                    step++;
+                }
+            }
+            if (step == 1) {
+                return pixels.getPixels();
+            }
+
+            int[] source = pixels.getPixels();
+            int[] samples = new int[(int) (cells(width, step) * cells(height, step))];
+            SplittableRandom randomPlace = new SplittableRandom(SEED);
+            int count = 0;
+            for (int y0 = 0; y0 < height; y0 += step) {
+                int cellHeight = Math.min(step, height - y0);
+                for (int x0 = 0; x0 < width; x0 += step) {
+                    int x = x0;
+                    int y = y0;
+                    if (random) {
+                        x += randomPlace.nextInt(Math.min(step, width - x0));
+                        y += randomPlace.nextInt(cellHeight);
+                    }
+                    samples[count++] = source[y * width + x];
+                }
+            }
+            return samples;
+        }
+
+        // cells of step pixels needed to cover length pixels
+        private static long cells(int length, int step) {
+            return (length + step - 1) / step;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    static class Cube {
+        static final int NODE_SIZE = 9;
+        static final int TOTALS_SIZE = 4;
+
+        PixelBuffer pixels;
+        int max_colors;
+        int colormap[];
+
+        int depth;
+
+        // counter for the number of colors in the cube. this gets
+        // recalculated often.
+        int colors;
+
+        // counter for the number of nodes in the tree
+        int nodes;
+
+        // The octree as parallel arrays indexed by node, the root being node
+        // 0. A child of 0 means there is none, as the root is nobody's child.
+        // Pruned nodes are chained through parent into a free list and reused.
+        // Fields that are read together share an array, so a step down the
+        // tree or a leaf update touches one run of memory per node.
+
+        // NODE_SIZE per node: our color midpoint, red, green and blue packed
+        // like a pixel, then our 8 children
+        int tree[];
+        int parent[];
+        int nchild[];
+        // our index within our parent
+        int id[];
+        // our level within the tree
+        int level[];
+        // the pixel count for this node and all children, weighted by SHIFT
+        long number_pixels[];
+        // TOTALS_SIZE per node: the pixel count for this node, then the sum
+        // of the red, green and blue of all pixels contained in this node
+        long totals[];
+        // used to build the colormap
+        int color_number[];
+
+        // nodes ever allocated, and the head of the free list (0 if empty)
+        int allocated;
+        int free_list;
+
+        Cube(PixelBuffer pixels, int max_colors) {
+            this.pixels = pixels;
+            this.max_colors = max_colors;
+
+            int i = max_colors;
+            // tree_depth = log max_colors
+            // 4
+            for (depth = 1; i != 0; depth++) {
+                i /= 4;
+            }
+            if (depth > 1) {
+                --depth;
+            }
+            if (depth > MAX_TREE_DEPTH) {
+                depth = MAX_TREE_DEPTH;
+            } else if (depth < 2) {
+                depth = 2;
+            }
+
+            // room for the full tree, or for a node per level for every pixel
+            long capacity = 1;
+            for (int level = 1, width = 8; level <= depth; level++, width *= 8) {
+                capacity += width;
+            }
+            capacity = Math.min(capacity, 1 + (long) pixels.getPixels().length * depth);
+            allocate((int) Math.min(capacity, MAX_NODES + MAX_TREE_DEPTH + 2));
+            allocated = 1;
+            parent[0] = 0;
+            number_pixels[0] = Long.MAX_VALUE;
+            int half = (MAX_RGB + 1) >> 1;
+            tree[0] = (half << 16) | (half << 8) | half;
+        }
+
+        // grow every node array to hold 'capacity' nodes
+        private void allocate(int capacity) {
+            tree = grow(tree, capacity * NODE_SIZE);
+            parent = grow(parent, capacity);
+            nchild = grow(nchild, capacity);
+            id = grow(id, capacity);
+            level = grow(level, capacity);
+            number_pixels = grow(number_pixels, capacity);
+            totals = grow(totals, capacity * TOTALS_SIZE);
+            color_number = grow(color_number, capacity);
+        }
+
+        private static int[] grow(int[] array, int capacity) {
+            return array == null ? new int[capacity] : Arrays.copyOf(array, capacity);
+        }
+
+        private static long[] grow(long[] array, int capacity) {
+            return array == null ? new long[capacity] : Arrays.copyOf(array, capacity);
+        }
+
+        // Trees up to this depth are built from leaf histograms counted in
+        // parallel. Deeper trees can outgrow MAX_NODES and be pruned part way
+        // through the pixels, which depends on their order, so they are
+        // walked one pixel at a time.
+        static final int HISTOGRAM_DEPTH = 5;
+        // fewest pixels worth a histogram of their own
+        static final int STRIPE_PIXELS = 1 << 16;
+
+        void classification() {
+            classification(this.pixels.getPixels());
+        }
+
+        /**
+         * Build the tree from some of the pixels, such as a Sampling of
+         * them. assignment still maps every pixel.
+         */
+        void classification(int pixels[]) {
+            if (depth <= HISTOGRAM_DEPTH) {
+                classifyLeaves(pixels);
+                return;
+            }
+
+            // convert to indexed color
+            for (int i = pixels.length; i-- > 0;) {
+                int red = (pixels[i] >> 16) & 0xFF;
+                int green = (pixels[i] >> 8) & 0xFF;
+                int blue = pixels[i] & 0xFF;
+
+                // a hard limit on the number of nodes in the tree
+                if (nodes > MAX_NODES) {
+                    System.out.println("pruning");
+                    pruneLevel(0);
+                    --depth;
+                }
+
+                // walk the tree to depth, increasing the
+                // number_pixels count for each node
+                int node = 0;
+                for (int level = 1; level <= depth; ++level) {
+                    int id = childId(tree[node * NODE_SIZE], red, green, blue);
+                    int next = tree[node * NODE_SIZE + 1 + id];
+                    if (next == 0) {
+                        next = newNode(node, id, level);
+                    }
+                    node = next;
+                    number_pixels[node] += SHIFT[level];
+                }
+
+                int t = node * TOTALS_SIZE;
+                ++totals[t];
+                totals[t + 1] += red;
+                totals[t + 2] += green;
+                totals[t + 3] += blue;
+            }
+        }
+
+        /**
+         * Count every pixel into the leaf it falls in, one histogram per
+         * stripe of pixels with the stripes counted in parallel, then add
+         * the stripes up and grow the tree down to every leaf that has
+         * pixels. The counts and sums are exact, so the tree, and the
+         * palette, are the same whatever the number of stripes.
+         */
+        private void classifyLeaves(int pixels[]) {
+            int depth = this.depth;
+            int bins[] = leafBins(depth);
+
+            // Step 1: Count each stripe into its own histogram, TOTALS_SIZE per leaf
+            int stripes = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(),
+                    pixels.length / STRIPE_PIXELS));
+            long histograms[][] = new long[stripes][];
+            IntStream.range(0, stripes).parallel().forEach(stripe -> histograms[stripe] = countLeaves(pixels,
+                    bins, depth, (int) ((long) pixels.length * stripe / stripes),
+                    (int) ((long) pixels.length * (stripe + 1) / stripes)));
+
+            // Step 2: Add the stripes up in order
+            long histogram[] = histograms[0];
+            for (int stripe = 1; stripe < stripes; stripe++) {
+                for (int i = 0; i < histogram.length; i++) {
+                    histogram[i] += histograms[stripe][i];
+                }
+            }
+
+            // Step 3: Walk down to every leaf with pixels, increasing the
+            // number_pixels count for each node as the pixels would have
+            int mask = (1 << depth) - 1;
+            for (int leaf = 0; leaf < 1 << (3 * depth); leaf++) {
+                long count = histogram[leaf * TOTALS_SIZE];
+                if (count == 0) {
+                    continue;
+                }
+                int red_bin = leaf >> (2 * depth);
+                int green_bin = (leaf >> depth) & mask;
+                int blue_bin = leaf & mask;
+                int node = 0;
+                for (int level = 1; level <= depth; ++level) {
+                    int bit = depth - level;
+                    int id = ((red_bin >> bit) & 1) | (((green_bin >> bit) & 1) << 1) | (((blue_bin >> bit) & 1) << 2);
+                    int next = tree[node * NODE_SIZE + 1 + id];
+                    if (next == 0) {
+                        next = newNode(node, id, level);
+                    }
+                    node = next;
+                    number_pixels[node] += SHIFT[level] * count;
+                }
+                System.arraycopy(histogram, leaf * TOTALS_SIZE, totals, node * TOTALS_SIZE, TOTALS_SIZE);
+            }
+        }
+
+        // pixel count and red, green and blue sums of every leaf, over pixels from to to - 1
+        private static long[] countLeaves(int pixels[], int bins[], int depth, int from, int to) {
+            long histogram[] = new long[(1 << (3 * depth)) * TOTALS_SIZE];
+            for (int i = from; i < to; i++) {
+                int red = (pixels[i] >> 16) & 0xFF;
+                int green = (pixels[i] >> 8) & 0xFF;
+                int blue = pixels[i] & 0xFF;
+                int t = ((bins[red] << (2 * depth)) | (bins[green] << depth) | bins[blue]) * TOTALS_SIZE;
+                ++histogram[t];
+                histogram[t + 1] += red;
+                histogram[t + 2] += green;
+                histogram[t + 3] += blue;
+            }
+            return histogram;
+        }
+
+        /**
+         * The leaf of a depth deep tree that a channel value falls in, its
+         * bits being childId's choice at each level, highest level first.
+         * Follows the same midpoints as newNode.
+         */
+        private static int[] leafBins(int depth) {
+            int bins[] = new int[MAX_RGB + 1];
+            for (int value = 0; value <= MAX_RGB; value++) {
+                int mid = (MAX_RGB + 1) >> 1;
+                for (int level = 1; level <= depth; level++) {
+                    int bit = value > mid ? 1 : 0;
+                    bins[value] = (bins[value] << 1) | bit;
+                    int bi = (1 << (MAX_TREE_DEPTH - level)) >> 1;
+                    mid += bit != 0 ? bi : -bi;
+                }
+            }
+            return bins;
+        }
+
+        /**
+         * Add a child to a node, reusing a pruned node if there is one.
+         */
+        private int newNode(int parent, int id, int level) {
+            int node = free_list;
+            if (node != 0) {
+                free_list = this.parent[node];
+            } else {
+                if (allocated == this.parent.length) {
+                    allocate(allocated * 2);
+                }
+                node = allocated++;
+            }
+            Arrays.fill(tree, node * NODE_SIZE + 1, node * NODE_SIZE + NODE_SIZE, 0);
+            Arrays.fill(totals, node * TOTALS_SIZE, node * TOTALS_SIZE + TOTALS_SIZE, 0);
+            this.parent[node] = parent;
+            nchild[node] = 0;
+            this.id[node] = id;
+            this.level[node] = level;
+            number_pixels[node] = 0;
+            color_number[node] = 0;
+
+            // add to the cube
+            ++nodes;
+            if (level == depth) {
+                ++colors;
+            }
+
+            // add to the parent
+            ++nchild[parent];
+            tree[parent * NODE_SIZE + 1 + id] = node;
+
+            // figure out our midpoint
+            int bi = (1 << (MAX_TREE_DEPTH - level)) >> 1;
+            int mid = tree[parent * NODE_SIZE];
+            int mid_red = ((mid >> 16) & 0xFF) + ((id & 1) > 0 ? bi : -bi);
+            int mid_green = ((mid >> 8) & 0xFF) + ((id & 2) > 0 ? bi : -bi);
+            int mid_blue = (mid & 0xFF) + ((id & 4) > 0 ? bi : -bi);
+            tree[node * NODE_SIZE] = (mid_red << 16) | (mid_green << 8) | mid_blue;
+            return node;
+        }
+
+        // which of a node's children a color falls into
+        private static int childId(int mid, int red, int green, int blue) {
+            return (((red > ((mid >> 16) & 0xFF) ? 1 : 0) << 0) |
+                    ((green > ((mid >> 8) & 0xFF) ? 1 : 0) << 1) |
+                    ((blue > (mid & 0xFF) ? 1 : 0) << 2));
+        }
+
+        /**
+         * Remove a child node, and make sure its parent absorbs its pixel
+         * statistics. The node goes onto the free list.
+         */
+        private void pruneChild(int node) {
+            int parent = this.parent[node];
+            --nchild[parent];
+            for (int i = 0; i < TOTALS_SIZE; i++) {
+                totals[parent * TOTALS_SIZE + i] += totals[node * TOTALS_SIZE + i];
+            }
+            tree[parent * NODE_SIZE + 1 + id[node]] = 0;
+            --nodes;
+            this.parent[node] = free_list;
+            free_list = node;
+        }
+
+        /**
+         * Prune the lowest layer of the tree below a node.
+         */
+        private void pruneLevel(int node) {
+            if (nchild[node] != 0) {
+                for (int id = 0; id < 8; id++) {
+                    if (tree[node * NODE_SIZE + 1 + id] != 0) {
+                        pruneLevel(tree[node * NODE_SIZE + 1 + id]);
+                    }
+                }
+            }
+            if (level[node] == depth) {
+                pruneChild(node);
+            }
+        }
+
+        /**
+         * Merge the nodes with the fewest pixels into their parents until no
+         * more than max_colors colors are left. Only childless nodes can be
+         * merged, and a node always has more pixels than its children, so
+         * the childless nodes wait in a min-heap on number_pixels and a
+         * parent joins it once its last child is merged. All the nodes tied
+         * for the fewest pixels are merged together, as the passes over the
+         * whole tree with a rising threshold did, so the palette is the same
+         * but a merge costs O(log nodes) rather than a pass per threshold.
+         */
+        void reduction() {
+            if (colors <= max_colors) {
+                return;
+            }
+
+            // Step 1: Count the colors and heap the childless nodes
+            int heap[] = new int[nodes];
+            colors = 0;
+            int size = collectLeaves(0, heap, 0);
+            for (int i = size / 2; i-- > 0;) {
+                siftDown(heap, size, i);
+            }
+
+            // Step 2: Merge every node tied for the fewest pixels until few enough colors are left
+            while (colors > max_colors && size > 0) {
+                long fewest = number_pixels[heap[0]];
+                while (size > 0 && number_pixels[heap[0]] == fewest) {
+                    int node = heap[0];
+                    heap[0] = heap[--size];
+                    siftDown(heap, size, 0);
+
+                    int parent = this.parent[node];
+                    if (totals[node * TOTALS_SIZE] != 0 && totals[parent * TOTALS_SIZE] != 0) {
+                        colors--;
+                    }
+                    pruneChild(node);
+                    if (nchild[parent] == 0 && parent != 0) {
+                        heap[size] = parent;
+                        siftUp(heap, size++);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Add the childless nodes below a node to the heap, unordered, and
+         * count the nodes holding a color. Returns the new heap size.
+         */
+        private int collectLeaves(int node, int heap[], int size) {
+            if (nchild[node] != 0) {
+                for (int id = 0; id < 8; id++) {
+                    if (tree[node * NODE_SIZE + 1 + id] != 0) {
+                        size = collectLeaves(tree[node * NODE_SIZE + 1 + id], heap, size);
+                    }
+                }
+            } else if (node != 0) {
+                heap[size++] = node;
+            }
+            if (totals[node * TOTALS_SIZE] != 0) {
+                colors++;
+            }
+            return size;
+        }
+
+        private void siftUp(int heap[], int i) {
+            int node = heap[i];
+            while (i > 0 && number_pixels[heap[(i - 1) / 2]] > number_pixels[node]) {
+                heap[i] = heap[(i - 1) / 2];
+                i = (i - 1) / 2;
+            }
+            heap[i] = node;
+        }
+
+        private void siftDown(int heap[], int size, int i) {
+            int node = heap[i];
+            for (int child; (child = 2 * i + 1) < size; i = child) {
+                if (child + 1 < size && number_pixels[heap[child + 1]] < number_pixels[heap[child]]) {
+                    child++;
+                }
+                if (number_pixels[heap[child]] >= number_pixels[node]) {
+                    break;
+                }
+                heap[i] = heap[child];
+            }
+            heap[i] = node;
+        }
+
+        /**
+         * Map every pixel to its colormap index, in the same row-major order
+         * as the pixel buffer.
+         */
+        int[] assignment() {
+            colormap = new int[colors];
+
+            colors = 0;
+            colormap(0);
+
+            int pixels[] = this.pixels.getPixels();
+            int results[] = new int[pixels.length];
+
+            InverseColormap inverse_colormap = QUICK ? null : new InverseColormap(colormap);
+
+            // convert to indexed color
+            for (int i = pixels.length; i-- > 0;) {
+                int red = (pixels[i] >> 16) & 0xFF;
+                int green = (pixels[i] >> 8) & 0xFF;
+                int blue = pixels[i] & 0xFF;
+
+                if (QUICK) {
+                    // walk the tree to find the cube containing that color
+                    int node = 0;
+                    for (;;) {
+                        int id = childId(tree[node * NODE_SIZE], red, green, blue);
+                        if (tree[node * NODE_SIZE + 1 + id] == 0) {
+                            break;
+                        }
+                        node = tree[node * NODE_SIZE + 1 + id];
+                    }
+
+                    // if QUICK is set, just use that
+                    // node. Strictly speaking, this isn't
+                    // necessarily best match.
+                    results[i] = color_number[node];
+                } else {
+                    // Find the closest color.
+                    results[i] = inverse_colormap.closestColor(red, green, blue);
+                }
+            }
+            return results;
+        }
+
+        int[] getColorMap() {
+            return this.colormap;
+        }
+
+        /*
+         * colormap traverses the color cube tree and notes each
+         * colormap entry. A colormap entry is any node in the
+         * color cube tree where the number of unique colors is
+         * not zero.
+         */
+        private void colormap(int node) {
+            if (nchild[node] != 0) {
+                for (int id = 0; id < 8; id++) {
+                    if (tree[node * NODE_SIZE + 1 + id] != 0) {
+                        colormap(tree[node * NODE_SIZE + 1 + id]);
+                    }
+                }
+            }
+            long unique = totals[node * TOTALS_SIZE];
+            if (unique != 0) {
+                int r = (int) ((totals[node * TOTALS_SIZE + 1] + (unique >> 1)) / unique);
+                int g = (int) ((totals[node * TOTALS_SIZE + 2] + (unique >> 1)) / unique);
+                int b = (int) ((totals[node * TOTALS_SIZE + 3] + (unique >> 1)) / unique);
+                colormap[colors] = (((0xFF) << 24) |
+                        ((r & 0xFF) << 16) |
+                        ((g & 0xFF) << 8) |
+                        ((b & 0xFF) << 0));
+                color_number[node] = colors++;
+            }
+        }
+    }
+
+    /**
+     * Nearest colormap entry for any color, looked up in a table of RGB
+     * cells that is filled as colors first fall in them. The result is the
+     * entry an exhaustive search would return, ties included.
+     */
+    static class InverseColormap {
+        // bits per channel of the inverse colormap cells: 6 gives 256K cells,
+        // 5 gives 32K, with more cells left to a per-color search
+        static final int INVERSE_BITS = 6;
+        // marks a color of a shared cell that is not resolved yet; colormaps
+        // hold at most 65535 entries, so it is never an index
+        static final char UNRESOLVED = 0xFFFF;
+
+        // for each RGB cell, the block of cell_colors that holds the
+        // colormap index nearest to each color in it; -1 until a color in
+        // the cell first needs it. Block i below the colormap size is entry
+        // i throughout, for the cells only one entry can be nearest in.
+        // Later blocks belong to one shared cell each, whose colors are
+        // searched among cell_candidates[block - colormap size] as they are
+        // first looked up
+        int inverse_colormap[];
+        char cell_colors[];
+        int cell_candidates[][] = new int[0][];
+        int blocks;
+        // the high BOX_BITS[level] bits of each channel pick a box of cells,
+        // and only the colormap entries that can be nearest to some color in
+        // the box are considered for its cells. Each level narrows the lists
+        // of the one before. null until a cell in the box is first needed
+        static final int BOX_BITS[] = { 3, 5 };
+        int box_candidates[][][];
+        // the colormap split into channels for the nearest color search
+        int colormap_red[];
+        int colormap_green[];
+        int colormap_blue[];
+        // distances, then the entries kept, of the last candidates call
+        int scratch[];
+
+        InverseColormap(int colormap[]) {
+            inverse_colormap = new int[1 << (3 * INVERSE_BITS)];
+            Arrays.fill(inverse_colormap, -1);
+            box_candidates = new int[BOX_BITS.length][][];
+            for (int level = 0; level < BOX_BITS.length; level++) {
+                box_candidates[level] = new int[1 << (3 * BOX_BITS[level])][];
+            }
+            colormap_red = new int[colormap.length];
+            colormap_green = new int[colormap.length];
+            colormap_blue = new int[colormap.length];
+            scratch = new int[colormap.length];
+            for (int i = 0; i < colormap.length; i++) {
+                colormap_red[i] = (colormap[i] >> 16) & 0xFF;
+                colormap_green[i] = (colormap[i] >> 8) & 0xFF;
+                colormap_blue[i] = colormap[i] & 0xFF;
+            }
+            int block_size = 1 << (3 * (8 - INVERSE_BITS));
+            blocks = colormap.length;
+            cell_colors = new char[blocks * block_size];
+            for (int i = 0; i < blocks; i++) {
+                Arrays.fill(cell_colors, i * block_size, (i + 1) * block_size, (char) i);
+            }
+        }
+
+        /**
+         * Fill every cell and resolve every color of the shared ones.
+         * Lookups then only read the table, so one inverse colormap can
+         * serve many threads.
+         */
+        void fill() {
+            int shift = 8 - INVERSE_BITS;
+            int mask = (1 << INVERSE_BITS) - 1;
+            int size = 1 << shift;
+            for (int cell = 0; cell < inverse_colormap.length; cell++) {
+                int red = (cell >> (2 * INVERSE_BITS)) << shift;
+                int green = ((cell >> INVERSE_BITS) & mask) << shift;
+                int blue = (cell & mask) << shift;
+                closestColor(red, green, blue);
+                if (inverse_colormap[cell] < colormap_red.length) {
+                    continue;
+                }
+                for (int r = 0; r < size; r++) {
+                    for (int g = 0; g < size; g++) {
+                        for (int b = 0; b < size; b++) {
+                            closestColor(red + r, green + g, blue + b);
+                        }
+                    }
+                }
+            }
+            box_candidates = null;
+            cell_candidates = null;
+        }
+
+        /**
+         * The colormap index of every pixel.
+         */
+        int[] map(int pixels[]) {
+            int results[] = new int[pixels.length];
+            for (int i = 0; i < pixels.length; i++) {
+                results[i] = closestColor((pixels[i] >> 16) & 0xFF, (pixels[i] >> 8) & 0xFF, pixels[i] & 0xFF);
+            }
+            return results;
+        }
+
+        /*
+         * closestColor looks up the colormap entry nearest to a
+         * color in the inverse colormap. The first color to fall in
+         * a cell narrows the candidates of its box down to those of
+         * the cell. When only one entry is left every color in the
+         * cell maps to it; otherwise the cell is shared, and each of
+         * its colors is searched among the entries left the first
+         * time it is looked up. Later lookups are two array reads.
+         */
+        int closestColor(int red, int green, int blue) {
+            int shift = 8 - INVERSE_BITS;
+            int cell = ((red >> shift) << (2 * INVERSE_BITS)) | ((green >> shift) << INVERSE_BITS) | (blue >> shift);
+            int block = inverse_colormap[cell];
+            if (block < 0) {
+                block = fillCell(cell, red, green, blue);
+            }
+            int mask = (1 << shift) - 1;
+            int index = (block << (3 * shift)) | ((red & mask) << (2 * shift)) | ((green & mask) << shift)
+                    | (blue & mask);
+            int color_number = cell_colors[index];
+            if (color_number == UNRESOLVED) {
+                color_number = nearest(cell_candidates[block - colormap_red.length], red, green, blue);
+                cell_colors[index] = (char) color_number;
+            }
+            return color_number;
+        }
+
+        // narrow the box candidates down to those of a cell and store the result
+        private int fillCell(int cell, int red, int green, int blue) {
+            int shift = 8 - INVERSE_BITS;
+            int count = candidates(boxCandidates(BOX_BITS.length - 1, red, green, blue),
+                    (red >> shift) << shift, (green >> shift) << shift, (blue >> shift) << shift, (1 << shift) - 1);
+            if (count == 1) {
+                inverse_colormap[cell] = scratch[0];
+                return scratch[0];
+            }
+
+            int shared = blocks - colormap_red.length;
+            if (shared == cell_candidates.length) {
+                int capacity = Math.max(64, 2 * shared);
+                cell_candidates = Arrays.copyOf(cell_candidates, capacity);
+                cell_colors = Arrays.copyOf(cell_colors, (colormap_red.length + capacity) << (3 * shift));
+                Arrays.fill(cell_colors, blocks << (3 * shift), cell_colors.length, UNRESOLVED);
+            }
+            cell_candidates[shared] = Arrays.copyOf(scratch, count);
+            inverse_colormap[cell] = blocks;
+            return blocks++;
+        }
+
+        // the first of the given entries at the smallest distance from a color
+        private int nearest(int candidates[], int red, int green, int blue) {
+            int color_number = candidates[0];
+            int best_distance = Integer.MAX_VALUE;
+            for (int i : candidates) {
+                int dr = colormap_red[i] - red;
+                int dg = colormap_green[i] - green;
+                int db = colormap_blue[i] - blue;
+                int distance = dr * dr + dg * dg + db * db;
+                if (distance < best_distance) {
+                    best_distance = distance;
+                    color_number = i;
+                }
+            }
+            return color_number;
+        }
+
+        /*
+         * boxCandidates lists, in colormap order, the entries that
+         * may be nearest to some color in the box of the given level
+         * a color falls in.
+         */
+        private int[] boxCandidates(int level, int red, int green, int blue) {
+            int shift = 8 - BOX_BITS[level];
+            int bits = BOX_BITS[level];
+            int box = ((red >> shift) << (2 * bits)) | ((green >> shift) << bits) | (blue >> shift);
+            int candidates[] = box_candidates[level][box];
+            if (candidates == null) {
+                int entries[];
+                if (level == 0) {
+                    entries = new int[colormap_red.length];
+                    for (int i = 0; i < entries.length; i++) {
+                        entries[i] = i;
+                    }
+                } else {
+                    entries = boxCandidates(level - 1, red, green, blue);
+                }
+                candidates = Arrays.copyOf(scratch, candidates(entries, (red >> shift) << shift,
+                        (green >> shift) << shift, (blue >> shift) << shift, (1 << shift) - 1));
+                box_candidates[level][box] = candidates;
+            }
+            return candidates;
+        }
+
+        /*
+         * candidates puts in scratch, in order, the entries of
+         * 'entries' that may be nearest to some color in the cube
+         * from low to low + span in each channel, and returns how
+         * many there are. Every color in the cube is
+         * within the smallest farthest-point distance of some entry,
+         * so an entry whose nearest point in the cube is farther than
+         * that is never nearest, and the ones at exactly that
+         * distance are kept for ties. 'entries' must hold every
+         * entry that can be nearest in the cube.
+         */
+        private int candidates(int entries[], int low_red, int low_green, int low_blue, int span) {
+            int nearest[] = scratch;
+            int min_farthest = Integer.MAX_VALUE;
+            for (int k = 0; k < entries.length; k++) {
+                int i = entries[k];
+                int farthest = square(farthest(colormap_red[i], low_red, span))
+                        + square(farthest(colormap_green[i], low_green, span))
+                        + square(farthest(colormap_blue[i], low_blue, span));
+                min_farthest = Math.min(min_farthest, farthest);
+                nearest[k] = square(gap(colormap_red[i], low_red, span))
+                        + square(gap(colormap_green[i], low_green, span))
+                        + square(gap(colormap_blue[i], low_blue, span));
+            }
+
+            int count = 0;
+            for (int k = 0; k < entries.length; k++) {
+                if (nearest[k] <= min_farthest) {
+                    nearest[count++] = entries[k];
+                }
+            }
+            return count;
+        }
+
+        // distance from a value to the farthest point of [low, low + span]
+        private static int farthest(int value, int low, int span) {
+            return Math.max(value - low, low + span - value);
+        }
+
+        // distance from a value to the nearest point of [low, low + span]
+        private static int gap(int value, int low, int span) {
+            return value < low ? low - value : value > low + span ? value - low - span : 0;
+        }
+
+        private static int square(int value) {
+            return value * value;
+        }
+    }
+
+}
@@ -0,0 +1,321 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Adaptive block codec. Instead of averaging fixed 2x2 or 3x3 blocks, the
+ * image is split into a quadtree: a block is divided into four quarters until
+ * the variance of its colors falls under a threshold, so flat regions become
+ * a few large blocks and detailed regions keep small ones. Each leaf stores
+ * its average color, rounded to the nearest 10 like Utility.
+ *
+ * The tree is rooted at a power-of-two square covering the image. Blocks
+ * larger than the block factor are always split, and the quarters that fall
+ * outside the image are left out. Compression splits the tree top-down in
+ * ForkJoin tasks, one per block of at most the block factor.
+ *
+ * Payload layout, all integers big-endian:
+ *
+ * <pre>
+ * length of the structure bitstream in bytes (int),
+ * structure bitstream: in preorder, one bit per block that could be split, 1 if it is,
+ * leaf colors in preorder, red, green then blue, Huffman coded
+ * </pre>
+ *
+ * Blocks that only have their top-left quarter inside the image cover the
+ * same pixels as that quarter, so they are always split and, like single
+ * pixels, have no structure bit.
+ */
+public class UtilityQuadtree {
+    // largest leaf side in pixels, stored as the block factor
+    static final int MAX_BLOCK_SIZE = 64;
+
+    // color variance per channel sample under which a block is not split: a
+    // standard deviation of 10, the step the leaf colors are rounded to
+    static final double DEFAULT_THRESHOLD = 100;
+
+    private final double threshold;
+
+    public UtilityQuadtree() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param threshold variance per channel sample under which a block is
+     *                  kept whole; 0 keeps only blocks of one color
+     */
+    public UtilityQuadtree(double threshold) {
+        if (threshold < 0 || Double.isNaN(threshold)) {
+            throw new IllegalArgumentException("Threshold must not be negative: " + threshold);
+        }
+        this.threshold = threshold;
+    }
+
+    public void Compress(int[][][] pixels, String outputFileName) throws IOException {
+        Compress(PixelBuffer.fromArray(pixels), outputFileName);
+    }
+
+    public void Compress(PixelBuffer pixels, String outputFileName) throws IOException {
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+        // fail before the split rather than when the file is written; an empty
+        // image would never split down to its blocks
+        CompressedFile.checkDimensions(width, height);
+
+        // Step 1: Split the tree in parallel, one task per block of at most MAX_BLOCK_SIZE
+        List<Subtree> subtrees = ForkJoinPool.commonPool()
+                .invoke(new SplitTask(this, pixels, 0, 0, rootSize(width, height, MAX_BLOCK_SIZE)));
+
+        // Step 2: Join the structure bits and the leaf colors of the blocks in preorder
+        int splitCount = 0;
+        int leafCount = 0;
+        for (Subtree subtree : subtrees) {
+            splitCount += subtree.splitCount;
+            leafCount += subtree.leaves.length;
+        }
+        BitWriter structureWriter = new BitWriter((splitCount + 7) / 8);
+        int[] leaves = new int[leafCount];
+        int leafIndex = 0;
+        for (Subtree subtree : subtrees) {
+            for (int i = 0; i < subtree.splitCount; i++) {
+                structureWriter.writeBits(subtree.splits[i], 1);
+            }
+            System.arraycopy(subtree.leaves, 0, leaves, leafIndex, subtree.leaves.length);
+            leafIndex += subtree.leaves.length;
+        }
+        byte[] structureBytes = structureWriter.toByteArray();
+
+        // Step 3: Huffman code the leaf colors
+        int[] colorFrequency = new int[256];
+        EntropyCoder.countChannels(leaves, colorFrequency);
+        CanonicalHuffmanCode huffmanCode = EntropyCoder.buildCode(colorFrequency);
+        BitWriter colorWriter = new BitWriter(leaves.length);
+        EntropyCoder.encodeChannels(leaves, huffmanCode, colorWriter);
+        byte[] colorBytes = colorWriter.toByteArray();
+
+        // Step 4: Write the code lengths, the structure and the colors into the output file
+        ByteBuffer payload = ByteBuffer.allocate(4 + structureBytes.length + colorBytes.length);
+        payload.putInt(structureBytes.length).put(structureBytes).put(colorBytes);
+        ByteArrayOutputStream tableSection = new ByteArrayOutputStream();
+        huffmanCode.writeTo(new DataOutputStream(tableSection));
+        new CompressedFile(CompressedFile.CODEC_QUADTREE, MAX_BLOCK_SIZE, width, height,
+                tableSection.toByteArray(), payload.array()).write(outputFileName);
+    }
+
+    public int[][][] Decompress(String inputFileName) throws IOException {
+        return DecompressToBuffer(inputFileName).toArray();
+    }
+
+    public PixelBuffer DecompressToBuffer(String inputFileName) throws IOException {
+        CompressedFile compressedFile = CompressedFile.map(inputFileName, CompressedFile.CODEC_QUADTREE);
+        return compressedFile.decodeChecked(() -> DecompressMapped(compressedFile));
+    }
+
+    /**
+     * Decode a mapped file, whose CRC decodeChecked checks afterwards.
+     */
+    private static PixelBuffer DecompressMapped(CompressedFile compressedFile) throws IOException {
+        // Step 1: Read the Huffman code lengths
+        CanonicalHuffmanCode huffmanCode = CanonicalHuffmanCode.readFrom(compressedFile.openTableSection(), 256);
+        int maxBlockSize = compressedFile.getBlockFactor();
+        if (Integer.bitCount(maxBlockSize) != 1) {
+            throw new IOException("Corrupt header: block factor " + maxBlockSize + " is not a power of two");
+        }
+
+        // Step 2: Find the structure and color bitstreams in the payload
+        ByteBuffer payload = compressedFile.getPayloadBuffer();
+        int structureLength = payload.limit() < 4 ? -1 : payload.getInt(0);
+        if (structureLength < 0 || structureLength > payload.limit() - 4) {
+            throw new IOException("Corrupt payload: structure length " + structureLength);
+        }
+        BitReader structureReader = new BitReader(payload, 4, structureLength);
+        BitReader colorReader = new BitReader(payload, 4 + structureLength, payload.limit() - 4 - structureLength);
+
+        // Step 3: Walk the tree in preorder, filling every leaf with its color
+        PixelBuffer pixels = new PixelBuffer(compressedFile.getWidth(), compressedFile.getHeight());
+        int rootSize = rootSize(pixels.getWidth(), pixels.getHeight(), maxBlockSize);
+        decodeBlock(pixels, 0, 0, rootSize, maxBlockSize, structureReader, colorReader,
+                huffmanCode.createDecoder());
+        return pixels;
+    }
+
+    private static void decodeBlock(PixelBuffer pixels, int x, int y, int size, int maxBlockSize,
+            BitReader structureReader, BitReader colorReader, HuffmanDecoder decoder) {
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+        int blockWidth = Math.min(size, width - x);
+        int blockHeight = Math.min(size, height - y);
+        int half = size / 2;
+        boolean split = size > maxBlockSize || (blockWidth <= half && blockHeight <= half)
+                || (blockWidth * blockHeight > 1 && structureReader.readBits(1) == 1);
+
+        if (split) {
+            for (int quarter = 0; quarter < 4; quarter++) {
+                int quarterX = x + (quarter & 1) * half;
+                int quarterY = y + (quarter >> 1) * half;
+                if (quarterX < width && quarterY < height) {
+                    decodeBlock(pixels, quarterX, quarterY, half, maxBlockSize, structureReader, colorReader,
+                            decoder);
+                }
+            }
+            return;
+        }
+
+        int red = decoder.decodeSymbol(colorReader);
+        int green = decoder.decodeSymbol(colorReader);
+        int blue = decoder.decodeSymbol(colorReader);
+        int rgb = PixelBuffer.pack(red, green, blue);
+        int[] output = pixels.getPixels();
+        for (int row = y; row < y + blockHeight; row++) {
+            Arrays.fill(output, row * width + x, row * width + x + blockWidth, rgb);
+        }
+    }
+
+    // smallest power-of-two square, at least maxBlockSize, that covers the image
+    static int rootSize(int width, int height, int maxBlockSize) {
+        int rootSize = maxBlockSize;
+        while (rootSize < width || rootSize < height) {
+            rootSize *= 2;
+        }
+        return rootSize;
+    }
+
+    /**
+     * Splits the blocks larger than MAX_BLOCK_SIZE into quarters in parallel,
+     * returning the subtrees of the blocks below in preorder.
+     */
+    private static class SplitTask extends RecursiveTask<List<Subtree>> {
+        private static final long serialVersionUID = 1L;
+
+        private final UtilityQuadtree coder;
+        private final PixelBuffer pixels;
+        private final int x;
+        private final int y;
+        private final int size;
+
+        SplitTask(UtilityQuadtree coder, PixelBuffer pixels, int x, int y, int size) {
+            this.coder = coder;
+            this.pixels = pixels;
+            this.x = x;
+            this.y = y;
+            this.size = size;
+        }
+
+        @Override
+        protected List<Subtree> compute() {
+            if (size <= MAX_BLOCK_SIZE) {
+                Subtree subtree = new Subtree(Math.min(size, pixels.getWidth() - x)
+                        * Math.min(size, pixels.getHeight() - y));
+                coder.splitBlock(pixels, x, y, size, subtree);
+                subtree.leaves = Arrays.copyOf(subtree.leaves, subtree.leafCount);
+                return List.of(subtree);
+            }
+
+            int half = size / 2;
+            List<SplitTask> quarters = new ArrayList<>(4);
+            for (int quarter = 0; quarter < 4; quarter++) {
+                int quarterX = x + (quarter & 1) * half;
+                int quarterY = y + (quarter >> 1) * half;
+                if (quarterX < pixels.getWidth() && quarterY < pixels.getHeight()) {
+                    quarters.add(new SplitTask(coder, pixels, quarterX, quarterY, half));
+                }
+            }
+            invokeAll(quarters);
+            List<Subtree> subtrees = new ArrayList<>();
+            for (SplitTask quarter : quarters) {
+                subtrees.addAll(quarter.join());
+            }
+            return subtrees;
+        }
+    }
+
+    /**
+     * Split one block top-down, appending its structure bits and leaf colors
+     * to the subtree in preorder.
+     */
+    private void splitBlock(PixelBuffer pixels, int x, int y, int size, Subtree subtree) {
+        int width = pixels.getWidth();
+        int[] source = pixels.getPixels();
+        int blockWidth = Math.min(size, width - x);
+        int blockHeight = Math.min(size, pixels.getHeight() - y);
+        int half = size / 2;
+        if (blockWidth <= half && blockHeight <= half) {
+            // only the top-left quarter lies in the image
+            splitBlock(pixels, x, y, half, subtree);
+            return;
+        }
+
+        // Sums of each channel and of its square; a 64x64 block of 255s still fits in an int
+        int sumR = 0, sumG = 0, sumB = 0;
+        int squaresR = 0, squaresG = 0, squaresB = 0;
+        for (int row = y; row < y + blockHeight; row++) {
+            for (int i = row * width + x; i < row * width + x + blockWidth; i++) {
+                int rgb = source[i];
+                int red = (rgb >> 16) & 0xFF;
+                int green = (rgb >> 8) & 0xFF;
+                int blue = rgb & 0xFF;
+                sumR += red;
+                sumG += green;
+                sumB += blue;
+                squaresR += red * red;
+                squaresG += green * green;
+                squaresB += blue * blue;
+            }
+        }
+
+        int n = blockWidth * blockHeight;
+        if (n > 1) {
+            // n times the variance of each channel, added up
+            double spread = squaresR - (double) sumR * sumR / n + squaresG - (double) sumG * sumG / n
+                    + squaresB - (double) sumB * sumB / n;
+            boolean split = spread > threshold * 3 * n;
+            subtree.addSplit(split);
+            if (split) {
+                for (int quarter = 0; quarter < 4; quarter++) {
+                    int quarterX = x + (quarter & 1) * half;
+                    int quarterY = y + (quarter >> 1) * half;
+                    if (quarterX < width && quarterY < pixels.getHeight()) {
+                        splitBlock(pixels, quarterX, quarterY, half, subtree);
+                    }
+                }
+                return;
+            }
+        }
+
+        subtree.addLeaf(PixelBuffer.pack(roundColor(sumR / n), roundColor(sumG / n), roundColor(sumB / n)));
+    }
+
+    // rounding to near 10, as Utility does for its 2x2 blocks
+    private static int roundColor(int average) {
+        return average == 255 ? 250 : Math.round(average / (float) 10) * 10;
+    }
+
+    /**
+     * Structure bits and leaf colors of one block of at most MAX_BLOCK_SIZE.
+     */
+    private static class Subtree {
+        byte[] splits;
+        int splitCount;
+        int[] leaves;
+        int leafCount;
+
+        // a block of n pixels has at most n leaves, and a split bit for each
+        // leaf and each block split into more than one quarter
+        Subtree(int pixelCount) {
+            splits = new byte[2 * pixelCount];
+            leaves = new int[pixelCount];
+        }
+
+        void addSplit(boolean split) {
+            splits[splitCount++] = (byte) (split ? 1 : 0);
+        }
+
+        void addLeaf(int rgb) {
+            leaves[leafCount++] = rgb;
+        }
+    }
+}